@@ -0,0 +1,63 @@
+package com.grouleff.pumpcontrol;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One proxy hop as Client does it: frame a telegram from the client's stream, send it
+ * on the link and take the reply - against the simulated dongle at baud 0, so this is
+ * the software overhead of the forward path.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClientForwardBenchmark {
+
+    @Param({"6", "16", "64", "255"})
+    int size;
+
+    @Param({"1000", "7"})
+    int fragment;
+
+    TelegramFixtures.FragmentedInputStream in;
+    final TelegramFramer framer = new TelegramFramer();
+    final Packet packet = new Packet();
+    SimulatedLink link;
+
+    @Setup
+    public void setup() throws IOException, InterruptedException {
+        TelegramFixtures.silenceConsole();
+        in = new TelegramFixtures.FragmentedInputStream(TelegramFixtures.telegram(size), fragment);
+        link = new SimulatedLink(new MI301Simulator(0, 0, 0, 0, 0, 1));
+        link.setPumpAddress(255, new Packet()); // So the pump answers.
+        link.getArbiter().newLease("bench", LinkArbiter.PRIORITY_CLIENT).acquire(1000); // Kept, nobody else uses the link.
+    }
+
+    @Benchmark
+    public int forward() throws IOException, InterruptedException, ExecutionException {
+        in.rewind();
+        if (!framer.receive(in, packet, 1000)) {
+            return 0;
+        }
+        Packet reply = link.send(packet, 1000).get();
+        int length = reply.getLength();
+        PacketPool.SHARED.release(reply);
+        return length;
+    }
+}
@@ -0,0 +1,64 @@
+package com.grouleff.pumpcontrol;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GeniCRCBenchmark {
+
+    @Param({"6", "16", "64", "255"})
+    int size;
+
+    byte[] telegram;
+    ByteBuffer direct;
+    final GeniCRC.Accumulator accumulator = new GeniCRC.Accumulator();
+
+    @Setup
+    public void setup() {
+        telegram = TelegramFixtures.telegram(size);
+        direct = ByteBuffer.allocateDirect(size);
+        direct.put(telegram);
+    }
+
+    @Benchmark
+    public int reference() {
+        return GeniCRC.calculateReferenceCheckValue(telegram, 1, size - 2);
+    }
+
+    @Benchmark
+    public int sliced() {
+        return GeniCRC.calculateTransmitterCheckValue(telegram, 1, size - 2);
+    }
+
+    @Benchmark
+    public int directBuffer() {
+        return GeniCRC.calculateTransmitterCheckValue(direct, 1, size - 2);
+    }
+
+    /** Receiver side check with the telegram arriving in two halves. */
+    @Benchmark
+    public boolean accumulatorInTwoPieces() {
+        accumulator.reset();
+        int half = size / 2;
+        accumulator.update(telegram, 1, half);
+        accumulator.update(telegram, half, size);
+        return accumulator.isReceivedTelegramValid();
+    }
+}
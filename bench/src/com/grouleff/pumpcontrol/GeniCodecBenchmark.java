@@ -0,0 +1,101 @@
+package com.grouleff.pumpcontrol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GeniCodecBenchmark {
+
+    @Param({"1", "8", "40"})
+    int items;
+
+    final Packet request = new Packet();
+    final Packet reply = new Packet();
+    final GeniRequest encoder = new GeniRequest(new Packet());
+    final GeniValues values = new GeniValues();
+    final PreEncodedTelegram stop = PreEncodedTelegram.pumpCommand("stop", 5);
+    final Packet command = new Packet();
+    final OutputStream sink = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+    int seq;
+
+    @Setup
+    public void setup() {
+        GeniRequest r = new GeniRequest(request).begin(GeniRequest.PUMP).apdu(GeniApdu.CLASS_MEASURED, GeniApdu.OP_GET);
+        reply.addByte(0x24);
+        reply.addByte(0);
+        reply.addByte(1);
+        reply.addByte(0);
+        reply.addByte(GeniApdu.CLASS_MEASURED);
+        reply.addByte(GeniApdu.opAndLength(GeniApdu.ACK_OK, items));
+        for (int id = 1; id <= items; id++) {
+            r.id(id);
+            reply.addByte(id * 3);
+        }
+        r.close();
+        reply.close();
+    }
+
+    @Benchmark
+    public Packet encodeGet() {
+        GeniRequest r = encoder.begin(GeniRequest.PUMP).apdu(GeniApdu.CLASS_MEASURED, GeniApdu.OP_GET);
+        for (int id = 1; id <= items; id++) {
+            r.id(id);
+        }
+        return r.close();
+    }
+
+    @Benchmark
+    public int decode() {
+        return values.decode(request, reply, 1);
+    }
+
+    /** A stop command the way it was built by hand before, CRC computed on every send. */
+    @Benchmark
+    public void handBuiltStop() throws IOException {
+        seq = seq % 255 + 1;
+        command.reset();
+        command.addByte(0x27);
+        command.addByte(4);
+        command.addByte(1);
+        command.addByte(seq);
+        command.addByte(3);
+        command.addByte(128 + 1);
+        command.addByte(5);
+        command.addByte(0);
+        command.addByte(0);
+        command.updateLengthAndCheckSum();
+        sink.write(command.getByte(0));
+    }
+
+    @Benchmark
+    public void preEncodedStop() throws IOException {
+        seq = seq % 255 + 1;
+        stop.writeTo(sink, seq);
+    }
+}
@@ -0,0 +1,54 @@
+package com.grouleff.pumpcontrol;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of recording on the serial path: a counter increment and a histogram record,
+ * alone and with the receiver, the commander and a client thread recording at once.
+ * With "-prof gc" the gc.alloc.rate.norm should be ~0 B/op.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricsBenchmark {
+
+    final Metrics.Counter counter = Metrics.counter("bench_counter_total", "Benchmark.");
+    final Metrics.Histogram histogram = Metrics.histogram("bench_latency_seconds", "Benchmark.");
+    long nanos = 3000000L;
+
+    @Benchmark
+    public void counter() {
+        counter.inc();
+    }
+
+    @Benchmark
+    public void histogram() {
+        histogram.record(nanos);
+    }
+
+    @Benchmark
+    @Threads(3)
+    public void counterContended() {
+        counter.inc();
+    }
+
+    @Benchmark
+    @Threads(3)
+    public void histogramContended() {
+        histogram.record(nanos);
+    }
+}
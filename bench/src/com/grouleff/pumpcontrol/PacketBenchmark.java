@@ -0,0 +1,81 @@
+package com.grouleff.pumpcontrol;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Packet framing, sending and hex formatting. Run with "-prof gc" (the bench target
+ * does) to get allocations per operation next to the throughput.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketBenchmark {
+
+    @Param({"6", "16", "64", "255"})
+    int size;
+
+    /** Max bytes handed out per read - 1000 means the whole telegram at once. */
+    @Param({"1000", "7"})
+    int fragment;
+
+    /** Non-delimiter bytes in front of the telegram. */
+    @Param({"0", "3"})
+    int junk;
+
+    TelegramFixtures.FragmentedInputStream in;
+    final TelegramFixtures.NullOutputStream out = new TelegramFixtures.NullOutputStream();
+    Packet packet;
+    final Packet reused = new Packet();
+
+    @Setup
+    public void setup() {
+        TelegramFixtures.silenceConsole();
+        byte[] telegram = TelegramFixtures.telegram(size);
+        in = new TelegramFixtures.FragmentedInputStream(TelegramFixtures.withJunkPrefix(telegram, junk), fragment);
+        packet = new Packet(telegram);
+    }
+
+    /** Instance readFrom, driven to completion one read at a time. */
+    @Benchmark
+    public boolean readFrom() throws IOException {
+        in.rewind();
+        reused.reset();
+        for (int i = 0; i < 1000 && !reused.isComplete(); i++) {
+            reused.readFrom(in);
+        }
+        return reused.isCheckSumValid();
+    }
+
+    /** The static variant used for acks, including its logging. */
+    @Benchmark
+    public Packet readFromWithTimeout() throws IOException {
+        in.rewind();
+        return Packet.readFrom(in, 500);
+    }
+
+    @Benchmark
+    public void writeTo() throws IOException {
+        packet.writeTo(out);
+    }
+
+    @Benchmark
+    public String formatHex() {
+        return packet.toString();
+    }
+}
@@ -0,0 +1,89 @@
+package com.grouleff.pumpcontrol;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Allocation check for the pooled telegram path: with "-prof gc" the
+ * gc.alloc.rate.norm of the pooled benchmarks should stay at ~0 B/op,
+ * against ~300 B/op for the allocating variants.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketPoolBenchmark {
+
+    @Param({"6", "255"})
+    int size;
+
+    TelegramFixtures.FragmentedInputStream in;
+    final TelegramFixtures.NullOutputStream out = new TelegramFixtures.NullOutputStream();
+    final PacketPool pool = new PacketPool(4);
+    Packet source;
+
+    @Setup
+    public void setup() {
+        byte[] telegram = TelegramFixtures.telegram(size);
+        in = new TelegramFixtures.FragmentedInputStream(telegram, 7);
+        source = new Packet(telegram);
+    }
+
+    /** Proxy hop: frame into a pooled packet and forward through its view. */
+    @Benchmark
+    public boolean pooledForward() throws IOException {
+        in.rewind();
+        Packet p = pool.acquire();
+        try {
+            while (!p.isComplete()) {
+                p.readFrom(in);
+            }
+            TelegramView v = p.view();
+            v.writeTo(out);
+            return v.isCheckSumValid();
+        } finally {
+            pool.release(p);
+        }
+    }
+
+    @Benchmark
+    public boolean allocatingForward() throws IOException {
+        in.rewind();
+        Packet p = new Packet();
+        while (!p.isComplete()) {
+            p.readFrom(in);
+        }
+        p.view().writeTo(out);
+        return p.isCheckSumValid();
+    }
+
+    @Benchmark
+    public int pooledCopy() {
+        Packet p = pool.acquire();
+        try {
+            p.copyFrom(source);
+            return p.getTop();
+        } finally {
+            pool.release(p);
+        }
+    }
+
+    @Benchmark
+    public Object cloneCopy() throws CloneNotSupportedException {
+        return source.clone();
+    }
+}
@@ -0,0 +1,68 @@
+package com.grouleff.pumpcontrol;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Round trips of the scheduler's start command against the simulated dongle, reported
+ * as a latency distribution. With baud 0 and no latency this is the software overhead
+ * of a request/ack exchange; with the IR line speed it should sit near the wire time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SimulatedLinkBenchmark {
+
+    @Param({"0", "9600"})
+    int baud;
+
+    @Param({"0", "20000"})
+    int latencyMicros;
+
+    SimulatedLink link;
+    final Packet request = new Packet();
+    final Packet reply = new Packet();
+
+    @Setup
+    public void setup() throws IOException {
+        TelegramFixtures.silenceConsole();
+        link = new SimulatedLink(new MI301Simulator(baud, latencyMicros, 0, 0, 0, 1));
+        // Address the pump, like CustomScheduler does, so it answers.
+        request.startDongleRslp(0x27);
+        request.addByte(3);
+        request.addByte(16);
+        request.addByte(1);
+        request.addByte(255);
+        request.close();
+        link.exchange(request, reply, 1000);
+    }
+
+    @Benchmark
+    public boolean startCommand() throws IOException {
+        request.reset();
+        request.addByte(0x27);
+        request.addByte(0);
+        request.addByte(1); // IR
+        request.addByte(0);
+        request.addByte(3);
+        request.addByte(128 + 1);
+        request.addByte(MI301Simulator.CMD_START);
+        request.close();
+        return link.exchange(request, reply, 1000);
+    }
+}
@@ -0,0 +1,110 @@
+package com.grouleff.pumpcontrol;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * In-memory telegrams and streams for the benchmarks.
+ *
+ * Sizes are total telegram sizes including Start Delimiter, length, header and CRC,
+ * from the minimal 6 byte RSLP frame up to a full 255 byte GENI telegram.
+ */
+final class TelegramFixtures {
+
+    static final int MIN_TELEGRAM = 6;
+    static final int MAX_TELEGRAM = 255;
+
+    private TelegramFixtures() {
+        // static stuff only.
+    }
+
+    /** A complete, valid RSLP telegram of the given total size. */
+    static byte[] telegram(int size) {
+        if (size < MIN_TELEGRAM || size > MAX_TELEGRAM) {
+            throw new IllegalArgumentException("telegram size " + size);
+        }
+        byte[] raw = new byte[size];
+        raw[0] = 0x27;
+        raw[1] = (byte)(size - 4);
+        raw[2] = 1; // IR
+        raw[3] = 1; // seqno.
+        for (int i = 4; i < size - 2; i++) {
+            raw[i] = (byte)(i * 31 + 7);
+        }
+        GeniCRC.appendTransmitterCheckValue(raw, 1, size - 2);
+        return raw;
+    }
+
+    /** junk bytes (none of them a Start Delimiter) followed by the telegram. */
+    static byte[] withJunkPrefix(byte[] telegram, int junk) {
+        byte[] raw = new byte[junk + telegram.length];
+        for (int i = 0; i < junk; i++) {
+            raw[i] = (byte)(0x40 + (i % 0x40));
+        }
+        System.arraycopy(telegram, 0, raw, junk, telegram.length);
+        return raw;
+    }
+
+    /**
+     * Replays a byte array, handing out at most fragment bytes per read like a
+     * serial port delivering a telegram in pieces. When exhausted, reads return 0
+     * like a port with a receive timeout. rewind() starts over without allocating.
+     */
+    static final class FragmentedInputStream extends InputStream {
+        private final byte[] data;
+        private final int fragment;
+        private int pos;
+
+        FragmentedInputStream(byte[] data, int fragment) {
+            this.data = data;
+            this.fragment = fragment;
+        }
+
+        void rewind() {
+            pos = 0;
+        }
+
+        @Override
+        public int read() {
+            return pos < data.length ? data[pos++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            int n = Math.min(Math.min(len, fragment), data.length - pos);
+            if (n <= 0) {
+                return 0;
+            }
+            System.arraycopy(data, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return data.length - pos;
+        }
+    }
+
+    /** Discards everything written. */
+    static final class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+
+    /**
+     * Send the console output of the code under test to /dev/null, so the numbers
+     * measure formatting and not the terminal.
+     */
+    static void silenceConsole() {
+        PrintStream nowhere = new PrintStream(new NullOutputStream());
+        System.setOut(nowhere);
+        System.setErr(nowhere);
+    }
+}
@@ -0,0 +1,82 @@
+package com.grouleff.pumpcontrol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A burst of telegrams with junk in between, framed by TelegramFramer and,
+ * for comparison, by repeated Packet.readFrom calls. Scores are bursts per time unit.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TelegramFramerBenchmark {
+
+    static final int TELEGRAMS_PER_BURST = 8;
+
+    @Param({"6", "64", "255"})
+    int size;
+
+    @Param({"0", "5"})
+    int junk;
+
+    TelegramFixtures.FragmentedInputStream in;
+    final TelegramFramer framer = new TelegramFramer();
+    final Packet packet = new Packet();
+
+    @Setup
+    public void setup() {
+        byte[] telegram = TelegramFixtures.telegram(size);
+        ByteArrayOutputStream burst = new ByteArrayOutputStream();
+        for (int i = 0; i < TELEGRAMS_PER_BURST; i++) {
+            byte[] t = TelegramFixtures.withJunkPrefix(telegram, junk);
+            burst.write(t, 0, t.length);
+        }
+        in = new TelegramFixtures.FragmentedInputStream(burst.toByteArray(), 4096);
+    }
+
+    @Benchmark
+    public int framer() throws IOException {
+        in.rewind();
+        framer.clear();
+        int n = 0;
+        while (framer.fill(in) > 0) {
+            while (framer.next(packet)) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    @Benchmark
+    public int packetReadFrom() throws IOException {
+        in.rewind();
+        int n = 0;
+        for (int i = 0; i < 4 * TELEGRAMS_PER_BURST * (size + junk); i++) {
+            packet.readFrom(in);
+            if (packet.isComplete()) {
+                packet.reset();
+                n++;
+            } else if (in.available() == 0 && packet.getTop() == 0) {
+                break;
+            }
+        }
+        return n;
+    }
+}
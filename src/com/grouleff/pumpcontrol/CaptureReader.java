@@ -0,0 +1,194 @@
+package com.grouleff.pumpcontrol;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Streams the records of a capture written by CaptureWriter, oldest first.
+ *
+ * The reader is a flyweight: after next() returns true, the getters describe the
+ * current record directly in the mapped segment, nothing is copied until copyTo().
+ */
+public class CaptureReader implements Closeable {
+    private final File dir;
+    private final File[] segments;
+    private int segmentIndex = -1;
+    private MappedByteBuffer segment;
+    private int position;
+
+    private int length;
+    private int direction;
+    private long epochNanos;
+    private int payloadAt;
+
+    public CaptureReader(File dir) throws IOException {
+        this.dir = dir;
+        File[] files = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File d, String name) {
+                return name.startsWith("capture-") && name.endsWith(CaptureWriter.SEGMENT_SUFFIX);
+            }
+        });
+        if (files == null) {
+            throw new IOException("No capture in " + dir);
+        }
+        // Names carry the start time; sort numerically, not lexically.
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(startMillis(a), startMillis(b));
+            }
+        });
+        segments = files;
+    }
+
+    private static long startMillis(File f) {
+        String name = f.getName();
+        return Long.parseLong(name.substring("capture-".length(), name.length() - CaptureWriter.SEGMENT_SUFFIX.length()));
+    }
+
+    private boolean openSegment(int index) throws IOException {
+        segment = null;
+        segmentIndex = index;
+        if (index >= segments.length) {
+            return false;
+        }
+        RandomAccessFile f = new RandomAccessFile(segments[index], "r");
+        try {
+            segment = f.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, f.length());
+        } finally {
+            f.close(); // The mapping stays valid.
+        }
+        if (segment.getInt(0) != CaptureWriter.MAGIC || segment.getInt(4) != CaptureWriter.VERSION) {
+            throw new IOException("Not a capture segment: " + segments[index]);
+        }
+        position = CaptureWriter.SEGMENT_HEADER;
+        return true;
+    }
+
+    /**
+     * Position so that next() returns the first record at or after the given time.
+     * Uses the index to skip whole segments and most of the segment within.
+     */
+    public void seek(long epochNanos) throws IOException {
+        int index = 0;
+        for (int i = 0; i < segments.length; i++) {
+            if (startMillis(segments[i]) * 1000000 <= epochNanos) {
+                index = i;
+            }
+        }
+        if (!openSegment(index)) {
+            return;
+        }
+        position = indexedOffset(index, epochNanos);
+        while (peekEpochNanos() >= 0 && peekEpochNanos() < epochNanos) {
+            next();
+        }
+    }
+
+    /** Offset of the last index entry not after the time, by binary search in the index file. */
+    private int indexedOffset(int index, long epochNanos) throws IOException {
+        String name = segments[index].getName();
+        File idx = new File(dir, name.substring(0, name.length() - CaptureWriter.SEGMENT_SUFFIX.length()) + CaptureWriter.INDEX_SUFFIX);
+        if (!idx.exists()) {
+            return CaptureWriter.SEGMENT_HEADER;
+        }
+        RandomAccessFile f = new RandomAccessFile(idx, "r");
+        try {
+            ByteBuffer entries = f.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, f.length());
+            int lo = 0;
+            int hi = (int)(f.length() / CaptureWriter.INDEX_ENTRY) - 1;
+            int offset = CaptureWriter.SEGMENT_HEADER;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (entries.getLong(mid * CaptureWriter.INDEX_ENTRY) <= epochNanos) {
+                    offset = entries.getInt(mid * CaptureWriter.INDEX_ENTRY + 8);
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            return offset;
+        } finally {
+            f.close();
+        }
+    }
+
+    private long peekEpochNanos() throws IOException {
+        if (segment == null) {
+            return -1;
+        }
+        if (position + CaptureWriter.RECORD_HEADER > segment.limit() || (segment.getShort(position) & 0xffff) == 0) {
+            return -1;
+        }
+        return segment.getLong(position + 4);
+    }
+
+    /** @return true if there is a current record. */
+    public boolean next() throws IOException {
+        if (segmentIndex < 0 && !openSegment(0)) {
+            return false;
+        }
+        while (segment != null) {
+            if (position + CaptureWriter.RECORD_HEADER <= segment.limit()) {
+                int len = segment.getShort(position) & 0xffff;
+                if (len != 0 && position + CaptureWriter.RECORD_HEADER + len <= segment.limit()) {
+                    length = len;
+                    direction = segment.get(position + 2);
+                    epochNanos = segment.getLong(position + 4);
+                    payloadAt = position + CaptureWriter.RECORD_HEADER;
+                    position = payloadAt + len;
+                    return true;
+                }
+            }
+            openSegment(segmentIndex + 1);
+        }
+        return false;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public int getDirection() {
+        return direction;
+    }
+
+    public long getEpochNanos() {
+        return epochNanos;
+    }
+
+    public byte getByte(int i) {
+        return segment.get(payloadAt + i);
+    }
+
+    /** CRC check straight on the mapped bytes. */
+    public boolean isCheckSumValid() {
+        if (length < 6) {
+            return false;
+        }
+        int checkValue = ((segment.get(payloadAt + length - 2) & 0xff) << 8) | (segment.get(payloadAt + length - 1) & 0xff);
+        return GeniCRC.calculateTransmitterCheckValue(segment, payloadAt + 1, payloadAt + length - 2) == checkValue;
+    }
+
+    public void copyTo(Packet p) {
+        p.reset();
+        for (int i = 0; i < length; i++) {
+            p.addByte(segment.get(payloadAt + i));
+        }
+        p.markComplete();
+    }
+
+    @Override
+    public void close() {
+        segment = null;
+    }
+}
@@ -0,0 +1,147 @@
+package com.grouleff.pumpcontrol;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * Plays a capture back, for reproducing a production session offline.
+ *
+ * Usage: CaptureReplay dir [--speed N] [--from epochMillis] [--to epochMillis] [--connect host:port]
+ *
+ * Without --connect the records are only read, CRC checked and counted. With --connect
+ * the telegrams sent to the dongle are sent to a running proxy, the way a client would,
+ * keeping the recorded gaps between them divided by the speed (0 for as fast as possible),
+ * and the replies are counted.
+ */
+public class CaptureReplay {
+    private static final int REPLY_WAIT = 2000;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: CaptureReplay dir [--speed N] [--from epochMillis] [--to epochMillis] [--connect host:port]");
+            System.exit(1);
+        }
+        double speed = 1;
+        long from = Long.MIN_VALUE;
+        long to = Long.MAX_VALUE;
+        String connect = null;
+        for (int i = 1; i + 1 < args.length; i += 2) {
+            if ("--speed".equals(args[i])) {
+                speed = Double.parseDouble(args[i + 1]);
+            } else if ("--from".equals(args[i])) {
+                from = Long.parseLong(args[i + 1]) * 1000000;
+            } else if ("--to".equals(args[i])) {
+                to = Long.parseLong(args[i + 1]) * 1000000;
+            } else if ("--connect".equals(args[i])) {
+                connect = args[i + 1];
+            } else {
+                throw new IllegalArgumentException(args[i]);
+            }
+        }
+
+        CaptureReader reader = new CaptureReader(new File(args[0]));
+        try {
+            if (from != Long.MIN_VALUE) {
+                reader.seek(from);
+            }
+            if (connect == null) {
+                verify(reader, to);
+            } else {
+                int colon = connect.lastIndexOf(':');
+                Socket socket = new Socket(connect.substring(0, colon), Integer.parseInt(connect.substring(colon + 1)));
+                try {
+                    replay(reader, to, speed, socket);
+                } finally {
+                    socket.close();
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void verify(CaptureReader reader, long to) throws IOException {
+        long[] records = new long[2];
+        long[] bytes = new long[2];
+        long[] bad = new long[2];
+        long first = -1;
+        long last = -1;
+        while (reader.next() && reader.getEpochNanos() <= to) {
+            int dir = reader.getDirection() & 1;
+            records[dir]++;
+            bytes[dir] += reader.getLength();
+            if (!reader.isCheckSumValid()) {
+                bad[dir]++;
+            }
+            if (first < 0) {
+                first = reader.getEpochNanos();
+            }
+            last = reader.getEpochNanos();
+        }
+        System.out.println("Span: " + (last - first) / 1000000 + " ms");
+        System.out.println("TX: " + records[0] + " records, " + bytes[0] + " bytes, " + bad[0] + " bad CRC");
+        System.out.println("RX: " + records[1] + " records, " + bytes[1] + " bytes, " + bad[1] + " bad CRC");
+    }
+
+    private static void replay(CaptureReader reader, long to, double speed, Socket socket) throws Exception {
+        final InputStream in = socket.getInputStream();
+        OutputStream out = socket.getOutputStream();
+        final long[] replies = new long[1];
+        Thread receiver = new Thread("replay-receiver") {
+            @Override
+            public void run() {
+                TelegramFramer framer = new TelegramFramer();
+                Packet reply = new Packet();
+                try {
+                    while (true) {
+                        if (framer.receive(in, reply, Long.MAX_VALUE)) {
+                            synchronized (replies) {
+                                replies[0]++;
+                            }
+                        }
+                    }
+                } catch (IOException e) {
+                    // Socket closed, done.
+                }
+            }
+        };
+        receiver.setDaemon(true);
+        receiver.start();
+
+        Packet p = new Packet();
+        long sent = 0;
+        long skipped = 0;
+        long captureStart = -1;
+        long replayStart = System.nanoTime();
+        while (reader.next() && reader.getEpochNanos() <= to) {
+            if (reader.getDirection() != CaptureWriter.DIRECTION_TX) {
+                continue;
+            }
+            if (!reader.isCheckSumValid()) {
+                skipped++; // A chunk of a telegram written in pieces, or line noise.
+                continue;
+            }
+            if (captureStart < 0) {
+                captureStart = reader.getEpochNanos();
+            }
+            if (speed > 0) {
+                long due = replayStart + (long)((reader.getEpochNanos() - captureStart) / speed);
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+                }
+            }
+            reader.copyTo(p);
+            p.writeTo(out);
+            sent++;
+        }
+        Thread.sleep(REPLY_WAIT); // Let the last replies arrive.
+        synchronized (replies) {
+            System.out.println("Sent " + sent + " telegrams, skipped " + skipped + ", received " + replies[0] + " replies in "
+                    + (System.nanoTime() - replayStart) / 1000000 + " ms");
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.grouleff.pumpcontrol;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Append-only capture of bus traffic, for offline replay and profiling.
+ *
+ * A capture is a directory of segment files, capture-[epoch millis].gcap, each memory
+ * mapped at a fixed size. A segment starts with a 16 byte header (magic, version, first
+ * timestamp) followed by records:
+ *
+ *   0: length of telegram (unsigned 16 bit)
+ *   2: direction (DIRECTION_TX to the dongle, DIRECTION_RX from it)
+ *   3: reserved
+ *   4: timestamp, nanoseconds since the epoch (64 bit)
+ *  12: raw telegram bytes
+ *
+ * A zero length marks the end of the written part. Next to each segment an index file,
+ * capture-[epoch millis].gidx, gets a (timestamp, offset) pair every index interval, so
+ * a reader can seek to a time without scanning.
+ *
+ * Writes go to the page cache only; the kernel writes back dirty pages in batches, and
+ * a segment is forced to disk when it is full or the writer is closed. Not thread safe -
+ * PacketLog's consumer thread is the only writer.
+ */
+public class CaptureWriter implements Closeable {
+    static final int MAGIC = 0x47434150; // "GCAP"
+    static final int VERSION = 1;
+    static final int SEGMENT_HEADER = 16;
+    static final int RECORD_HEADER = 12;
+    static final int INDEX_ENTRY = 12;
+    static final String SEGMENT_SUFFIX = ".gcap";
+    static final String INDEX_SUFFIX = ".gidx";
+
+    public static final int DIRECTION_TX = 0;
+    public static final int DIRECTION_RX = 1;
+
+    private final File dir;
+    private final int segmentSize;
+    private final long indexIntervalNanos;
+
+    private RandomAccessFile segmentFile;
+    private MappedByteBuffer segment;
+    private RandomAccessFile indexFile;
+    private final ByteBuffer indexEntry = ByteBuffer.allocate(INDEX_ENTRY);
+    private long nextIndexAt;
+    private long records;
+
+    public CaptureWriter(File dir) {
+        this(dir, Integer.getInteger("pumpcontrol.capture.segmentMB", 16) * 1024 * 1024, 10L * 1000 * 1000 * 1000);
+    }
+
+    public CaptureWriter(File dir, int segmentSize, long indexIntervalNanos) {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.indexIntervalNanos = indexIntervalNanos;
+    }
+
+    public void append(int direction, long epochNanos, byte[] raw, int offset, int length) throws IOException {
+        if (segment == null || segment.remaining() < RECORD_HEADER + length + 2) {
+            roll(epochNanos);
+        }
+        int at = segment.position();
+        if (epochNanos >= nextIndexAt) {
+            ((Buffer)indexEntry).clear();
+            indexEntry.putLong(epochNanos).putInt(at);
+            ((Buffer)indexEntry).flip();
+            indexFile.getChannel().write(indexEntry);
+            nextIndexAt = epochNanos + indexIntervalNanos;
+        }
+        segment.putShort((short)length);
+        segment.put((byte)direction);
+        segment.put((byte)0);
+        segment.putLong(epochNanos);
+        segment.put(raw, offset, length);
+        records++;
+    }
+
+    public long getRecords() {
+        return records;
+    }
+
+    private void roll(long epochNanos) throws IOException {
+        closeSegment();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create capture directory " + dir);
+        }
+        String name = "capture-" + (epochNanos / 1000000);
+        File f = new File(dir, name + SEGMENT_SUFFIX);
+        for (int i = 1; f.exists(); i++) {
+            name = "capture-" + (epochNanos / 1000000 + i);
+            f = new File(dir, name + SEGMENT_SUFFIX);
+        }
+        segmentFile = new RandomAccessFile(f, "rw");
+        segment = segmentFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        segment.putInt(MAGIC);
+        segment.putInt(VERSION);
+        segment.putLong(epochNanos);
+        indexFile = new RandomAccessFile(new File(dir, name + INDEX_SUFFIX), "rw");
+        nextIndexAt = Long.MIN_VALUE;
+    }
+
+    private void closeSegment() throws IOException {
+        if (segment != null) {
+            segment.force();
+            segment = null;
+            segmentFile.close();
+            indexFile.close();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closeSegment();
+    }
+}
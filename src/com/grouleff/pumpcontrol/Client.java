@@ -2,20 +2,53 @@ package com.grouleff.pumpcontrol;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.Socket;
-import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 
 public class Client extends Thread {
 
 	private static final int REVC_PKG_TIMEOUT = 2000;
     private static final long IDLE_TIME_OUT = 60 * 1000;
+    /**
+     * Telegrams a client may have waiting for a reply from the dongle at once. More than one
+     * is faster for clients that pipeline, but a waiting pump command then sits behind all of
+     * them - so one, unless pumpcontrol.window says otherwise.
+     */
+    static final int WINDOW = Integer.getInteger("pumpcontrol.window", 1);
+    /** Replies a client may be behind on reading before more are dropped. */
+    private static final int BACKLOG = 16;
     private final Socket clientSocket;
     private RXTXLink dongle;
+    private final TelegramFramer fromClient = new TelegramFramer();
+    private final InFlightWindow window = new InFlightWindow(WINDOW);
+    /** Replies for the socket - the link's receiver hands them over here and never waits for a client. */
+    private final BlockingQueue<Packet> toClient = new ArrayBlockingQueue<Packet>(BACKLOG);
+    private volatile long lastUse;
+    private volatile boolean stopped;
+    private LinkArbiter.Lease lease;
+    /** Guards taking and giving back the lease against sending. */
+    private final Object turn = new Object();
+
+    // Metrics of all proxy clients, see also NioListener.
+    static final Metrics.Counter CONNECTIONS = Metrics.counter("pumpcontrol_client_connections_total", "Proxy clients accepted.");
+    static final Metrics.Counter REQUESTS = Metrics.counter("pumpcontrol_client_requests_total", "Telegrams forwarded from clients to the dongle.");
+    static final Metrics.Counter LOST_REPLIES = Metrics.counter("pumpcontrol_client_lost_replies_total", "Client telegrams the dongle did not answer in time.");
+    static final Metrics.Counter UNREAD = Metrics.counter("pumpcontrol_client_unread_replies_total", "Replies dropped, the client was not reading them.");
+    static final Metrics.Counter INCOMPLETE = Metrics.counter("pumpcontrol_client_incomplete_total", "Telegrams NioListener gave up waiting for a reply to.");
+    static final Metrics.Counter SKIPPED = Metrics.counter("pumpcontrol_framer_skipped_bytes_total", Metrics.label("side", "client"),
+            "Bytes skipped looking for a sound telegram.");
+    static final Metrics.Counter CRC_REJECTS = Metrics.counter("pumpcontrol_framer_crc_rejects_total", Metrics.label("side", "client"),
+            "Candidate telegrams with a bad CRC.");
 
 	public Client(Socket clientSocket, String name) {
 	    super(name);
 		this.clientSocket = clientSocket;
+		fromClient.countInto(SKIPPED, CRC_REJECTS);
+		CONNECTIONS.inc();
 		setDaemon(true);
 		start();
 	}
@@ -24,25 +57,36 @@ public class Client extends Thread {
 	public void run() {
 		try {
 	        clientSocket.setSoTimeout(MI301DongleProxy.SO_TIMEOUT);
-	        dongle = MI301DongleProxy.getLink(); // throws if it fails...
-	        resetDongle();
-	        long lastUse = System.currentTimeMillis();
-			while (true) {
-				int len = handle();
-				if (len > 0) {
-				    lastUse = System.currentTimeMillis();
-				}
-				if (System.currentTimeMillis() - lastUse > IDLE_TIME_OUT) {
-				    return;
-				}
-			}
+	        dongle = MI301DongleProxy.getLink();
+	        lease = dongle.getArbiter().newLease(getName(), LinkArbiter.PRIORITY_CLIENT);
+	        if (lease.acquire(REVC_PKG_TIMEOUT)) {
+	            try {
+	                resetDongle(dongle);
+	            } finally {
+	                lease.release();
+	            }
+	        }
+	        lastUse = System.currentTimeMillis();
+	        Thread downstream = new Thread(getName() + "-out") {
+	            @Override
+	            public void run() {
+	                pumpDownstream();
+	            }
+	        };
+	        downstream.setDaemon(true);
+	        downstream.start();
+	        pumpUpstream();
 		} catch (java.net.SocketException e) {
 			//fine.
 		} catch (IOException e) {
 			e.printStackTrace();
+		} catch (InterruptedException e) {
+		    // fine.
 		} finally {
-		    if (dongle != null) {
-		        MI301DongleProxy.releaseLink(dongle);
+		    stopped = true;
+		    System.err.println("Client " + getName() + " framing: " + fromClient + " expired=" + window.getExpired());
+		    if (lease != null) {
+		        lease.release();
 		    }
 		    try {
                 clientSocket.close();
@@ -50,78 +94,182 @@ public class Client extends Thread {
             }
 		}
 	}
-	
-    private void resetDongle() throws IOException {
-        Packet reset = rslpBegin(2);
-        reset.addByte((byte)3);
-        reset.addByte((byte)7); // reset dongle.
-        reset.addByte((byte)0);
-        reset.addByte((byte)0);
-        reset.updateLengthAndCheckSum();
-        reset.writeTo(dongle.getOutputStream(), false);
+
+    /**
+     * Socket to dongle: renumber each telegram with a seqno of the link and send it
+     * as soon as the window has room, without waiting for earlier replies. The replies
+     * come back through the link's receiver, see onReply().
+     */
+    private void pumpUpstream() throws IOException, InterruptedException {
+        Packet p = PacketPool.SHARED.acquire();
         try {
-            Thread.sleep(500);
-        } catch (InterruptedException e) {
+            while (!stopped) {
+                if (System.currentTimeMillis() - lastUse > IDLE_TIME_OUT) {
+                    return;
+                }
+                if (!receive(fromClient, clientSocket.getInputStream(), p)) {
+                    continue;
+                }
+                if (!send(p)) {
+                    p.log(PacketLog.Tag.DROPPED, ">>>");
+                }
+            }
+        } finally {
+            PacketPool.SHARED.release(p);
         }
     }
 
-    private Packet rslpBegin(int payloadLength) {
-        Packet rslp = new Packet();
-        rslp.addByte((byte)0x27);
-        rslp.addByte((byte)(payloadLength + 2));
-        rslp.addByte((byte)0); // to dongle
-        rslp.addByte((byte)1); // seqno.
-        return rslp;
+    /**
+     * Send under the lease. The lease is kept while telegrams are in flight, but no new
+     * telegrams are added once somebody else is waiting for the link.
+     *
+     * @return false if the link could not be had within REVC_PKG_TIMEOUT.
+     */
+    private boolean send(Packet p) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + REVC_PKG_TIMEOUT;
+        while (true) {
+            synchronized (turn) {
+                if (lease.isHeld() && !lease.shouldYield() && window.getInFlight() < window.getSize()) {
+                    int original = p.getSeqnoAndSrcField();
+                    final int seqno = dongle.nextSeqno();
+                    window.add(seqno, original); // Before sending, the reply may be quick.
+                    // Replies to those in flight ahead of it come first. Not sent again - the client does that.
+                    long timeout = dongle.getRtt().getTimeoutMillis() * window.getInFlight();
+                    CompletableFuture<Packet> reply = dongle.send(p, seqno, timeout); // Logged by the link, as SEND.
+                    REQUESTS.inc();
+                    reply.whenComplete(new BiConsumer<Packet, Throwable>() {
+                        @Override
+                        public void accept(Packet reply, Throwable error) {
+                            onReply(seqno, reply);
+                        }
+                    });
+                    lease.renew();
+                    lastUse = System.currentTimeMillis();
+                    return true;
+                }
+                if (lease.isHeld() && window.getInFlight() == 0) {
+                    lease.release(); // Our turn is over, queue up again behind the waiter.
+                }
+            }
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                return false;
+            }
+            if (lease.isHeld()) {
+                // Wait for room in the window, or for it to drain if somebody is waiting for the link.
+                window.awaitChange(Math.min(left, MI301DongleProxy.SO_TIMEOUT));
+            } else if (!lease.acquire(left)) {
+                return false;
+            }
+        }
     }
 
-    Random random = new Random();
-    public int copyPacket(InputStream inputStream, OutputStream outputStream, String dir) throws IOException {
-        Packet in = new Packet();
-        long startedAt = System.currentTimeMillis();
-        while (!in.isComplete()) {
-            in.readFrom(inputStream);
-            long time = System.currentTimeMillis() - startedAt;
-            if (in.getTop() == 0 && time > REVC_PKG_TIMEOUT) {
-                break; // If nothing has been received, break out of loop.
-            }
-            if (in.getTop() > 0 && time > IDLE_TIME_OUT) {
-                break; // Give up after idle timeout.
+    /** Give the link back when nothing is in flight, so other users get in between bursts. */
+    private void releaseIfDrained() {
+        synchronized (turn) {
+            if (window.getInFlight() == 0) {
+                lease.release();
             }
         }
-        if (in.isComplete()) {
-            System.out.println(dir + " " + in);
-            in.writeTo(outputStream, false);
-            return in.getLength();
-        } else {
-            System.out.println(dir + " INCOMPLETE  " + in);
-            return 0;
+    }
+
+    /**
+     * Dongle to client: restore the client's seqno and queue the reply for the socket.
+     * Runs on the link's receiver thread, or on the timer thread with a null reply on
+     * timeout - so nothing here may wait for the client. A client too slow to take its
+     * replies loses them, and asks again like for any other lost reply.
+     */
+    private void onReply(int seqno, Packet reply) {
+        if (reply == null) {
+            window.abandon(seqno);
+            LOST_REPLIES.inc();
+            System.out.println("<<< LOST reply to " + seqno);
+            releaseIfDrained();
+            return;
+        }
+        int original = window.complete(seqno);
+        if (original < 0 || stopped) {
+            PacketPool.SHARED.release(reply);
+            return;
+        }
+        lease.renew();
+        releaseIfDrained();
+        reply.setSeqnoAndSrcField((byte)original);
+        reply.updateLengthAndCheckSum();
+        if (!toClient.offer(reply)) {
+            UNREAD.inc();
+            reply.log(PacketLog.Tag.DROPPED, "<<<");
+            PacketPool.SHARED.release(reply);
         }
     }
-	private int handle() throws IOException {
-	    int len = copyPacket(clientSocket.getInputStream(), dongle.getOutputStream(), ">>>");
-	    len += copyPacket(dongle.getInputStream(), clientSocket.getOutputStream(), "<<<");
-	    return len;
-	}
 
-    private static String hex(byte[] buffer, int top) {
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < top; i++) {
-            hex(buffer[i], sb);
-            if (((i+1) % 16) == 0) {
-                sb.append("\n     ");
-            } else {
-                sb.append(' ');
+    /** Queue to socket, on a thread of the client's own, so only this thread waits for a slow client. */
+    private void pumpDownstream() {
+        try {
+            while (!stopped) {
+                Packet reply = toClient.poll(MI301DongleProxy.SO_TIMEOUT, TimeUnit.MILLISECONDS);
+                if (reply == null) {
+                    continue;
+                }
+                try {
+                    reply.log(PacketLog.Tag.FORWARD, "<<<"); // Written as is: the link logs replies to send() nowhere else.
+                    reply.view().writeTo(clientSocket.getOutputStream());
+                    lastUse = System.currentTimeMillis();
+                } finally {
+                    PacketPool.SHARED.release(reply);
+                }
+            }
+        } catch (IOException e) {
+            if (!stopped) {
+                e.printStackTrace();
+            }
+            stopped = true;
+            try {
+                clientSocket.close(); // Wakes up the upstream pump.
+            } catch (IOException e1) {
+            }
+        } catch (InterruptedException e) {
+            // fine.
+        } finally {
+            Packet left;
+            while ((left = toClient.poll()) != null) {
+                PacketPool.SHARED.release(left);
             }
         }
-        return sb.toString();
     }
-    
-    private static void hex(byte b, StringBuilder sb) {
-        String hexString = Integer.toHexString(((int)b) & 0xff);
-        if (hexString.length() < 2) {
-            sb.append('0');
+
+    /**
+     * One read at most.
+     *
+     * @return true if a complete telegram is in the packet.
+     */
+    private static boolean receive(TelegramFramer framer, InputStream inputStream, Packet p) throws IOException {
+        if (framer.next(p)) {
+            return true;
+        }
+        int readLen = framer.fill(inputStream);
+        if (readLen < 0) {
+            throw new IOException("end of stream inside telegram");
+        }
+        if (readLen == 0) {
+            framer.resync(); // Line went quiet - a candidate still waiting for bytes was junk.
+        }
+        return framer.next(p);
+    }
+	
+    /**
+     * Reset the dongle and wait for its ack - the dongle answers once it is done - sent
+     * again if the ack is late. Caller must hold a lease.
+     *
+     * @return true if acked.
+     */
+    static boolean resetDongle(RXTXLink dongle) throws IOException {
+        Packet ack = PacketPool.SHARED.acquire();
+        try {
+            return dongle.exchange(PreEncodedTelegram.RESET_DONGLE, ack);
+        } finally {
+            PacketPool.SHARED.release(ack);
         }
-        sb.append(hexString.toUpperCase());
     }
 
 }
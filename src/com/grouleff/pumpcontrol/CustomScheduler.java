@@ -1,77 +1,118 @@
 package com.grouleff.pumpcontrol;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.Calendar;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * Created by mgr on 12/2/15.
+ *
+ * Controls one circuit: a pump, at its GENI address behind a dongle, and the two
+ * sensors of its loop. Several run side by side, a thread each, see MI301DongleProxy;
+ * circuits on the same dongle share its link and LinkSupervisor.
  */
 public class CustomScheduler {
 
-    private RXTXLink dongle;
+    private final String name; // "" for the first circuit, so its history keeps the old names.
+    private final String prefix; // Of history series and log lines.
+    private final RXTXLink dongle;
+    private final int pumpAddress;
+    private LinkArbiter.Lease lease;
+    private static final long LEASE_WAIT = 5000;
 
     private final String circSensorPath, returnSensorPath;
+    private final W1SensorBank sensors = new W1SensorBank();
+    private W1SensorBank.Sensor circSensor, returnSensor;
+    private PumpCommander commander;
+    private final LinkSupervisor supervisor;
+    private TelemetryPoller telemetry; // null if no items are configured.
+    private static final int CMD_STOP = 5; // /Operation/CMD_STOP
+    private static final int CMD_START = 6; // /Operation/CMD_START
+    private static final int CMD_CONSTANT_CURVE = 22;
+    private static final int CMD_MINIMUM = 25;
+    private final TimeSeriesStore history; // null if not kept.
+    private final ScheduleWatcher schedule;
+    private final Metrics.Histogram ackTime;
+    private final Metrics.Counter refused;
+    private final Metrics.Counter unacked;
+    private final Metrics.Histogram tickTime;
+    private final Metrics.Counter overruns;
+    private final Metrics.Counter ticks;
+    private final Metrics.Histogram tickPeriod;
+    private final Metrics.Histogram reaction;
+    private final TickPlanner planner = TickPlanner.fromProperties();
+    /** Bounds for tick periods and reaction times: 100 ms to 2 minutes. */
+    private static final long[] PERIOD_NANOS = {
+        100000000L, 250000000L, 500000000L,
+        1000000000L, 2000000000L, 5000000000L,
+        10000000000L, 20000000000L, 30000000000L,
+        60000000000L, 120000000000L,
+    };
 
-    public CustomScheduler(String circSensorPath, String returnSensorPath) {
+    /**
+     * @param name - prefixes history series and log lines, "" for none.
+     * @param pumpAddress - GENI unit address, or 255 for broadcast to the one pump in range.
+     * @param history - shared by all circuits, or null.
+     */
+    public CustomScheduler(String name, RXTXLink dongle, LinkSupervisor supervisor, int pumpAddress,
+                           String circSensorPath, String returnSensorPath, TimeSeriesStore history) {
+        this.name = name;
+        this.prefix = name.isEmpty() ? "" : name + "-";
+        this.dongle = dongle;
+        this.supervisor = supervisor;
+        this.pumpAddress = pumpAddress;
         this.circSensorPath = circSensorPath;
         this.returnSensorPath = returnSensorPath;
+        this.history = history;
+        this.schedule = ScheduleWatcher.fromProperties(name);
+        String circuit = Metrics.label("circuit", name.isEmpty() ? "circuit1" : name);
+        ackTime = Metrics.histogram("pumpcontrol_scheduler_ack_seconds", circuit,
+                "From a pump command sent to its ack.", Metrics.LATENCY_NANOS);
+        refused = Metrics.counter("pumpcontrol_scheduler_refused_total", circuit, "Pump commands acked with an error.");
+        unacked = Metrics.counter("pumpcontrol_scheduler_unacked_total", circuit, "Pump commands not sent or not acked.");
+        tickTime = Metrics.histogram("pumpcontrol_scheduler_tick_seconds", circuit,
+                "Time spent in one control tick, sleep excluded.", Metrics.LATENCY_NANOS);
+        overruns = Metrics.counter("pumpcontrol_scheduler_overruns_total", circuit, "Ticks that ended after the next was due.");
+        ticks = Metrics.counter("pumpcontrol_scheduler_ticks_total", circuit, "Control ticks, each reading the sensors.");
+        tickPeriod = Metrics.histogram("pumpcontrol_scheduler_period_seconds", circuit,
+                "Sleep chosen between ticks, see TickPlanner.", PERIOD_NANOS);
+        reaction = Metrics.histogram("pumpcontrol_scheduler_reaction_seconds", circuit,
+                "Time since the tick before, when the pump is switched - the most it can be late.", PERIOD_NANOS);
     }
 
-    private double readTemperature(String path) {
-        File f = new File(path);
-        FileInputStream fis = null;
+    public void run() {
         try {
-            fis = new FileInputStream(f);
-            byte[] buffer = new byte[400];
-            int len = fis.read(buffer);
-            String s = new String(buffer, 0, len);
-            Pattern p = Pattern.compile(".*t=(\\d+).*", Pattern.MULTILINE | Pattern.DOTALL);
-            Matcher m = p.matcher(s);
-            if (m.matches()) {
-                String t = m.group(1);
-                return Double.parseDouble(t) / 1000d;
-            } else {
-                System.out.println("Temperature parsing problem: " + s);
-            }
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            if (fis != null) {
-                try {
-                    fis.close();
-                } catch (IOException e) {
-                    // Ignore
+            lease = dongle.getArbiter().newLease("scheduler" + (name.isEmpty() ? "" : "-" + name), LinkArbiter.PRIORITY_CONTROL);
+            schedule.start();
+            startSensors();
+            Startup.mark("sensorsStarted");
+            commander = new PumpCommander(new PumpCommander.Sender() {
+                @Override
+                public boolean send(int command) throws IOException {
+                    return sendPumpByteCommmand(command);
+                }
+            });
+            supervisor.addRecoveryListener(new Runnable() {
+                @Override
+                public void run() {
+                    commander.invalidate(); // The pump may have missed commands meanwhile.
                 }
+            });
+            // Sets the dongle up now, unless another circuit on it did, and again whenever
+            // the link has to be reopened. Meanwhile the sensors take their first samples.
+            supervisor.start();
+            Startup.mark("dongleSetUp");
+            telemetry = TelemetryPoller.fromProperties(dongle, pumpAddress);
+            if (telemetry != null) {
+                telemetry.start(); // Polls under a background lease - our commands go first.
             }
-        }
-        return Double.NaN;
-    }
-
-    public void run() {
-        try {
-            dongle = MI301DongleProxy.getLink(); // throws if it fails...
-            resetDongle();
-            setIrBroadcastDongle();
-//            sendStopCommmand();
-//            sendStartCommmand();
+            if (!sensors.awaitReadings(5000)) {
+                System.out.println("Not all sensors have a reading yet");
+            }
+            Startup.mark("sensorsRead");
+            commander.start();
 
-            long lastUse = System.currentTimeMillis();
             while (true) {
                 doScheduling();
-                long now = System.currentTimeMillis();
-                long spent = now - lastUse;
-                if (spent > (3600 * 1000L)) {
-                    sendStopCommmand();
-                    Thread.sleep(1000);
-                    System.exit(0); // Restart once in a while, just in case..
-                }
             }
         } catch (java.net.SocketException e) {
             //fine.
@@ -80,140 +121,204 @@ public class CustomScheduler {
         } catch (InterruptedException e) {
             // fine.
         } finally {
-            if (dongle != null) {
-                MI301DongleProxy.releaseLink(dongle);
+            if (telemetry != null) {
+                telemetry.stop();
+            }
+            if (commander != null) {
+                commander.stop();
             }
+            if (lease != null) {
+                lease.release();
+            }
+            sensors.close();
+            schedule.close();
+        }
+    }
+
+    private void startSensors() throws InterruptedException {
+        // Only this circuit's two; the others on the bus belong to other circuits, or nobody.
+        circSensor = sensors.add(circSensorPath);
+        returnSensor = sensors.add(returnSensorPath);
+        for (W1SensorBank.Sensor s : sensors.getSensors()) {
+            System.out.println("Sensor " + s.getId() + " at " + s.getPath());
         }
+        for (String path : sensors.discover()) {
+            String id = new File(path).getParentFile().getName();
+            if (!id.equals(circSensor.getId()) && !id.equals(returnSensor.getId())) {
+                System.out.println(prefix + "Sensor " + id + " at " + path + " not sampled by this circuit");
+            }
+        }
+        sensors.start();
     }
 
     private boolean isRunning = false;
     private long lastStop = System.currentTimeMillis();
     private long lastSleepAt = System.currentTimeMillis();
+    private long lastTickAt;
+    private long loggedAt;
+    private long pumpRecordedUpTo;
 
     private void doScheduling() throws InterruptedException, IOException {
-        double circTemp = readTemperature(circSensorPath);
-        double returnTemp = readTemperature(returnSensorPath);
-        boolean inPauseInterval = getInPauseInterval();
-        long sleepInterval = 10*1000;
+        long tickStart = System.nanoTime();
+        // Latest background samples - NaN when stale, which fails every comparison below.
+        double circTemp = circSensor.getTemperature();
+        double returnTemp = returnSensor.getTemperature();
+        if (history != null) {
+            long now = System.currentTimeMillis();
+            if (!Double.isNaN(circTemp)) {
+                history.record(prefix + "circTemp", now, circTemp);
+            }
+            if (!Double.isNaN(returnTemp)) {
+                history.record(prefix + "returnTemp", now, returnTemp);
+            }
+        }
+        TelemetryPoller.Snapshot pump = telemetry != null ? telemetry.getSnapshot() : null;
+        if (pump != null && history != null) {
+            long newest = pumpRecordedUpTo;
+            for (int i = 0; i < pump.size(); i++) {
+                if (pump.getAt(i) > pumpRecordedUpTo) { // Read since the last tick.
+                    history.record(prefix + pump.getName(i), pump.getAt(i), pump.getValue(i));
+                    newest = Math.max(newest, pump.getAt(i));
+                }
+            }
+            pumpRecordedUpTo = newest;
+        }
+        ScheduleConfig rules = schedule.get(); // One set of rules for the whole tick, even if reloaded meanwhile.
+        boolean inPauseInterval = rules.isPauseAt(System.currentTimeMillis());
         long hasRunFor = (System.currentTimeMillis() - lastStop)  / 1000;
         final boolean wasActive = isRunning;
-        if (returnTemp > 40 && returnTemp > circTemp + 5 && !isRunning && hasRunFor > 60) {
-            // Valve failure in heater. Start pump to trigger valve reset...
-            isRunning = true;
-        } else if (circTemp < 22) {
-            // Cold water backwards through pump, start pump, pause or no pause.
-            isRunning = true;
-        } else if ((inPauseInterval && hasRunFor > 30)
-                   || circTemp > 44
-                   || (isRunning && hasRunFor > 180)) {
-            isRunning = false;
-        } else if (!inPauseInterval && circTemp < 39) {
-            isRunning = true;
+        switch (rules.decide(circTemp, returnTemp, inPauseInterval, isRunning, hasRunFor)) {
+            case ScheduleConfig.RUN:
+                isRunning = true;
+                break;
+            case ScheduleConfig.STOP:
+                isRunning = false;
+                break;
+            default:
+                break;
         }
 
+        long now = System.currentTimeMillis();
         if (isRunning != wasActive) {
-            lastStop = System.currentTimeMillis();
+            lastStop = now;
             hasRunFor = 0;
+            planner.switched(now);
+            if (lastTickAt > 0) {
+                reaction.record((now - lastTickAt) * 1000000L);
+            }
+            if (history != null) {
+                history.record(prefix + "pump", lastStop, isRunning ? 1 : 0);
+            }
         }
 
-        if (isRunning) {
-            sendStartCommmand();
-        } else {
-            sendStopCommmand();
-        }
+        // Only sent when it differs from what the pump has acked, see PumpCommander.
+        commander.setDesired(isRunning ? CMD_START : CMD_STOP);
 
-        if (isRunning) {
-            System.out.println("pauseMode=" + inPauseInterval
-                               + " circTemp=" + circTemp
-                               + " returnTemp=" + returnTemp
-                               + " runTime=" + hasRunFor);
-        } else {
-            System.out.println("pauseMode=" + inPauseInterval
-                               + " circTemp=" + circTemp
-                               + " returnTemp=" + returnTemp
-                               + " stoppedTime=" + hasRunFor);
+        // Sooner near a threshold or a rule on time, later far from all, see TickPlanner.
+        planner.sampled(Math.max(circSensor.getLatest().getAt(), returnSensor.getLatest().getAt()), circTemp, returnTemp);
+        long sleepInterval = planner.next(now, rules.marginCelsius(circTemp, returnTemp, isRunning),
+                                          rules.millisToTimedRule(now, isRunning, now - lastStop, planner.getMaxMillis()));
+        sensors.setIntervalMillis(sleepInterval); // Fresh samples for the next tick, and no more.
+        ticks.inc();
+        tickPeriod.record(sleepInterval * 1000000L);
+        lastTickAt = now;
+
+        // As often as ever, however fast the ticks.
+        if (isRunning != wasActive || now - loggedAt >= TickPlanner.DEFAULT_MILLIS) {
+            loggedAt = now;
+            String tick = " tick=" + sleepInterval + "ms " + planner.getReason();
+            if (isRunning) {
+                System.out.println(prefix + "pauseMode=" + inPauseInterval
+                                   + " circTemp=" + circTemp
+                                   + " returnTemp=" + returnTemp
+                                   + " runTime=" + hasRunFor
+                                   + tick
+                                   + (pump != null ? " pump: " + pump : ""));
+            } else {
+                System.out.println(prefix + "pauseMode=" + inPauseInterval
+                                   + " circTemp=" + circTemp
+                                   + " returnTemp=" + returnTemp
+                                   + " stoppedTime=" + hasRunFor
+                                   + tick
+                                   + (pump != null ? " pump: " + pump : ""));
+            }
         }
 
+        tickTime.recordSince(tickStart);
         lastSleepAt += sleepInterval;
         long sleepTime = lastSleepAt - System.currentTimeMillis();
-        Thread.sleep(sleepTime);
-    }
-
-    private boolean getInPauseInterval() {
-        Calendar cal = Calendar.getInstance();
-        int dow = cal.get(Calendar.DAY_OF_WEEK);
-        int hour = cal.get(Calendar.HOUR_OF_DAY);
-        if (dow == Calendar.SATURDAY) {
-            return hour < 9 || hour >= 23;
-        } else if (dow == Calendar.FRIDAY) {
-            return hour < 6 || hour >= 23;
-        } else if (dow == Calendar.SUNDAY) {
-            return hour < 9 || hour >= 22;
+        if (sleepTime < 0) {
+            overruns.inc();
+            lastSleepAt = System.currentTimeMillis(); // Start over from now, rather than catch up.
+            return;
         }
-        return hour < 6 || hour >= 22;
-    }
-
-
-    private void sendPumpByteCommmand(int c) throws IOException {
-        Packet p = rslpBegin(2, 1); // Set
-        p.addByte((byte)3);
-        p.addByte((byte)(128 +1));
-        p.addByte((byte)c);
-        p.addByte((byte)0);
-        p.addByte((byte)0);
-        p.updateLengthAndCheckSum();
-        p.writeTo(dongle.getOutputStream(), false);
-        Packet.readFrom(dongle.getInputStream(), 500); // Wait for ack.
-    }
-
-    private void sendMinimumCommmand() throws IOException {
-        sendPumpByteCommmand(25);
-    }
-
-    private void sendConstantCurveCommmand() throws IOException {
-        sendPumpByteCommmand(22);
+        Thread.sleep(sleepTime);
     }
 
-    private void sendStopCommmand() throws IOException {
-        sendPumpByteCommmand(5); // /Operation/CMD_STOP
-    }
+    // Encoded once, CRC and all - sending is a single write.
+    private static final PreEncodedTelegram STOP = PreEncodedTelegram.pumpCommand("stop", CMD_STOP);
+    private static final PreEncodedTelegram START = PreEncodedTelegram.pumpCommand("start", CMD_START);
+    private static final PreEncodedTelegram CONSTANT_CURVE = PreEncodedTelegram.pumpCommand("constant curve", CMD_CONSTANT_CURVE);
+    private static final PreEncodedTelegram MINIMUM = PreEncodedTelegram.pumpCommand("minimum", CMD_MINIMUM);
 
-    private void sendStartCommmand() throws IOException {
-        sendPumpByteCommmand(6); // /Operation/CMD_START
-    }
-
-    private void resetDongle() throws IOException {
-        Packet reset = rslpBegin(2, 0);
-        reset.addByte((byte)3);
-        reset.addByte((byte)7); // reset dongle.
-        reset.addByte((byte)0);
-        reset.addByte((byte)0);
-        reset.updateLengthAndCheckSum();
-        reset.writeTo(dongle.getOutputStream(), false);
-        Packet.readFrom(dongle.getInputStream(), 500); // Wait for ack.
+    private synchronized boolean sendPumpByteCommmand(int c) throws IOException {
+        PreEncodedTelegram command;
+        switch (c) {
+            case CMD_STOP: command = STOP; break;
+            case CMD_START: command = START; break;
+            case CMD_CONSTANT_CURVE: command = CONSTANT_CURVE; break;
+            case CMD_MINIMUM: command = MINIMUM; break;
+            default: throw new IllegalArgumentException("command " + c);
+        }
+        Startup.mark("firstCommand");
+        if (!exchange(command)) { // Wait for ack.
+            unacked.inc();
+            return false;
+        }
+        if (GeniApdu.getAck(ack, 0) != GeniApdu.ACK_OK) {
+            refused.inc();
+            System.out.println(prefix + "Pump refused " + command + ": " + ack);
+            return false;
+        }
+        Startup.acked();
+        return true;
     }
 
-    private void setIrBroadcastDongle() throws IOException {
-        Packet reset = rslpBegin(4, 0);
-        reset.addByte((byte)3);
-        reset.addByte((byte)16); // set address
-        reset.addByte((byte)1);  // IR
-        reset.addByte((byte)(255)); // Broadcast
-        reset.addByte((byte)0);
-        reset.addByte((byte)0);
-        reset.updateLengthAndCheckSum();
-        reset.writeTo(dongle.getOutputStream(), false);
-        Packet.readFrom(dongle.getInputStream(), 500); // Wait for ack.
+    /**
+     * One telegram to our pump and its ack under the lease. Our priority puts us ahead of
+     * proxy clients, and the link is given back right after. The dongle is pointed at
+     * our pump first if another circuit on the link had it.
+     */
+    private boolean exchange(PreEncodedTelegram request) throws IOException {
+        try {
+            if (!lease.acquire(LEASE_WAIT)) {
+                System.out.println("Link busy, not sent: " + request);
+                return false;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        try {
+            if (!dongle.addressPump(pumpAddress, ack)) {
+                return false;
+            }
+            long sentAt = System.nanoTime();
+            boolean acked = dongle.exchange(request, ack); // Sent again if the ack is late, see RttEstimator.
+            if (acked) {
+                ackTime.recordSince(sentAt);
+            }
+            if (acked && history != null) {
+                history.record(prefix + "ackLatency", System.currentTimeMillis(), (System.nanoTime() - sentAt) / 1e6);
+            }
+            return acked;
+        } finally {
+            lease.release();
+        }
     }
 
-    private Packet rslpBegin(int payloadLength, int target) {
-        Packet rslp = new Packet();
-        rslp.addByte((byte)0x27);
-        rslp.addByte((byte)(payloadLength + 2));
-        rslp.addByte((byte)target); // 0=to dongle, 1=IR.
-        rslp.addByte((byte)1); // seqno.
-        return rslp;
-    }
+    // Reused for every ack. One telegram at a time: sendPumpByteCommmand is synchronized.
+    private final Packet ack = new Packet();
 
     public void runForever() {
         run();
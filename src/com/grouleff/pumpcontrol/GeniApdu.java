@@ -0,0 +1,93 @@
+package com.grouleff.pumpcontrol;
+
+/**
+ * GENIbus APDUs - the payload of a telegram to or from the pump, see Packet for the frame.
+ * A telegram carries one or more APDUs back to back:
+ *
+ *  request: class, op << 6 | length, data[length]
+ *  reply:   class, ack << 6 | length, data[length]
+ *
+ * For GET and INFO the request data is a list of data item IDs and the reply has the
+ * values (or info) in the same order; for SET it is ID, value pairs - or just IDs for
+ * class 3 commands - and the reply is an ack without data. The pump answers the APDUs
+ * of a request in order, one reply APDU each.
+ *
+ * Build requests with GeniRequest, decode replies with GeniValues.
+ */
+public final class GeniApdu {
+    public static final int CLASS_PROTOCOL = 0;
+    public static final int CLASS_BUS = 1;
+    public static final int CLASS_MEASURED = 2;
+    public static final int CLASS_COMMAND = 3;
+    public static final int CLASS_CONFIG = 4;
+    public static final int CLASS_REFERENCE = 5;
+    public static final int CLASS_ASCII = 7;
+    /** Classes 0..CLASSES-1 have room in GeniValues. */
+    public static final int CLASSES = 8;
+
+    public static final int OP_GET = 0;
+    public static final int OP_SET = 2;
+    public static final int OP_INFO = 3;
+
+    public static final int ACK_OK = 0;
+    public static final int ACK_CLASS_UNKNOWN = 1;
+    public static final int ACK_ID_UNKNOWN = 2;
+    public static final int ACK_OPERATION_ILLEGAL = 3;
+
+    /** The length field has 6 bits. */
+    public static final int MAX_DATA = 63;
+    /** Offset of the first APDU in a telegram. */
+    public static final int FIRST = 4;
+
+    private GeniApdu() {
+    }
+
+    public static int opAndLength(int op, int length) {
+        return op << 6 | length;
+    }
+
+    /** @return the op of a request APDU, or the ack of a reply APDU, from its second byte. */
+    public static int op(int opAndLength) {
+        return (opAndLength >>> 6) & 3;
+    }
+
+    public static int length(int opAndLength) {
+        return opAndLength & 0x3f;
+    }
+
+    /** @return the ack of the index'th APDU of a reply, or -1 if it has fewer APDUs. */
+    public static int getAck(Packet reply, int index) {
+        int end = reply.getTop() - 2;
+        int i = FIRST;
+        while (i + 1 < end) {
+            int opAndLength = reply.getByte(i + 1) & 0xff;
+            if (index == 0) {
+                return op(opAndLength);
+            }
+            index--;
+            i += 2 + length(opAndLength);
+        }
+        return -1;
+    }
+
+    /** @return true if the reply has an APDU for each of the request, all acked OK. */
+    public static boolean isAllAcked(Packet request, Packet reply) {
+        int apdus = count(request);
+        for (int n = 0; n < apdus; n++) {
+            if (getAck(reply, n) != ACK_OK) {
+                return false;
+            }
+        }
+        return apdus > 0;
+    }
+
+    /** @return the number of APDUs in a telegram. */
+    public static int count(Packet telegram) {
+        int end = telegram.getTop() - 2;
+        int n = 0;
+        for (int i = FIRST; i + 1 < end; i += 2 + length(telegram.getByte(i + 1) & 0xff)) {
+            n++;
+        }
+        return n;
+    }
+}
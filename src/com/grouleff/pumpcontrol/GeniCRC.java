@@ -1,5 +1,9 @@
 package com.grouleff.pumpcontrol;
 
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
 /** CRC used on bus accoprding to "GENIbus Protocol Specification"
  *
  * "16 bit CCITT, polynomial is 0x1021, Start Delimiter excluded.
@@ -43,6 +47,24 @@ public class GeniCRC {
 	/** unsigned 16 bit values as int, 256 values. */
 	private static final int[] crctab = generatecrctab();
 
+	/**
+	 * Tables for slicing-by-8: entry [k * 256 + b] is the crc contribution of byte b
+	 * followed by k zero bytes. Table 0 is crctab.
+	 */
+	private static int[] generateslicetab() {
+		int[] tab = new int[8 * 256];
+		System.arraycopy(crctab, 0, tab, 0, 256);
+		for (int k = 1; k < 8; k++) {
+			for (int b = 0; b < 256; b++) {
+				int prev = tab[(k - 1) * 256 + b];
+				tab[k * 256 + b] = ((prev << 8) ^ crctab[prev >>> 8]) & _0XFFFF;
+			}
+		}
+		return tab;
+	}
+
+	private static final int[] slicetab = generateslicetab();
+
 	/* 
 		Transmitter: The CRC-Accumulator is initialized to 'all ones' and each byte, except the Start
 		Delimiter, is processed through the crc_update function before being sent to the Drivers. Finally the
@@ -64,6 +86,22 @@ public class GeniCRC {
 	 * @return checkValue - 16 bit unsigned as int.
 	 */
 	static int calculateTransmitterCheckValue(byte[] raw, int start, int end) {
+		return ~update(_0XFFFF, raw, start, end) & _0XFFFF;
+	}
+
+	/**
+	 * Same as calculateTransmitterCheckValue(byte[], int, int), but reading from absolute
+	 * offsets of a heap or direct buffer. Position and limit of the buffer are not touched.
+	 */
+	static int calculateTransmitterCheckValue(ByteBuffer raw, int start, int end) {
+		return ~update(_0XFFFF, raw, start, end) & _0XFFFF;
+	}
+
+	/**
+	 * The original byte-at-a-time algorithm. Kept as the reference the sliced
+	 * implementation is checked against - do not use on the receive path.
+	 */
+	static int calculateReferenceCheckValue(byte[] raw, int start, int end) {
 		int accum = _0XFFFF;
 		for (int i = start; i < end; i++) {
 			int unsignedData = ((int)raw[i]) & 0xff;
@@ -71,6 +109,67 @@ public class GeniCRC {
 		}
 		return ~accum & _0XFFFF;
 	}
+
+	private static int update(int accum, int unsignedData) {
+		return ((accum << 8) ^ crctab[(accum >> 8) ^ unsignedData]) & _0XFFFF;
+	}
+
+	/**
+	 * Run the crc_update function over raw[start..end), eight bytes per step.
+	 * 
+	 * @param accum - CRC-Accumulator so far, 0xFFFF when starting a telegram.
+	 * @return the new CRC-Accumulator (not inverted).
+	 */
+	static int update(int accum, byte[] raw, int start, int end) {
+		int i = start;
+		final int[] t = slicetab;
+		for (; i + 8 <= end; i += 8) {
+			accum = t[7 * 256 + ((raw[i] & 0xff) ^ (accum >>> 8))]
+				  ^ t[6 * 256 + ((raw[i + 1] & 0xff) ^ (accum & 0xff))]
+				  ^ t[5 * 256 + (raw[i + 2] & 0xff)]
+				  ^ t[4 * 256 + (raw[i + 3] & 0xff)]
+				  ^ t[3 * 256 + (raw[i + 4] & 0xff)]
+				  ^ t[2 * 256 + (raw[i + 5] & 0xff)]
+				  ^ t[1 * 256 + (raw[i + 6] & 0xff)]
+				  ^ t[raw[i + 7] & 0xff];
+		}
+		for (; i < end; i++) {
+			accum = update(accum, raw[i] & 0xff);
+		}
+		return accum;
+	}
+
+	/**
+	 * Run the crc_update function over absolute offsets [start..end) of a buffer.
+	 * Heap buffers go through the array, direct buffers are read a long at a time.
+	 */
+	static int update(int accum, ByteBuffer raw, int start, int end) {
+		if (raw.hasArray()) {
+			int offset = raw.arrayOffset();
+			return update(accum, raw.array(), offset + start, offset + end);
+		}
+		int i = start;
+		final int[] t = slicetab;
+		final boolean swap = raw.order() != ByteOrder.BIG_ENDIAN;
+		for (; i + 8 <= end; i += 8) {
+			long w = raw.getLong(i);
+			if (swap) {
+				w = Long.reverseBytes(w);
+			}
+			accum = t[7 * 256 + (((int)(w >>> 56) & 0xff) ^ (accum >>> 8))]
+				  ^ t[6 * 256 + (((int)(w >>> 48) & 0xff) ^ (accum & 0xff))]
+				  ^ t[5 * 256 + ((int)(w >>> 40) & 0xff)]
+				  ^ t[4 * 256 + ((int)(w >>> 32) & 0xff)]
+				  ^ t[3 * 256 + ((int)(w >>> 24) & 0xff)]
+				  ^ t[2 * 256 + ((int)(w >>> 16) & 0xff)]
+				  ^ t[1 * 256 + ((int)(w >>> 8) & 0xff)]
+				  ^ t[(int)w & 0xff];
+		}
+		for (; i < end; i++) {
+			accum = update(accum, raw.get(i) & 0xff);
+		}
+		return accum;
+	}
 	
 	/**
 	 * Calculate checksum and write is as the two bytes pointed to by end.
@@ -100,5 +199,64 @@ public class GeniCRC {
 		return calculateTransmitterCheckValue(raw, start, end) == (checkValue & _0XFFFF);
 	}
 
-	
+	/**
+	 * Resumable CRC-Accumulator, for feeding a telegram through as it arrives in pieces.
+	 * Start Delimiter must not be fed. Not thread safe.
+	 */
+	public static final class Accumulator {
+		private int accum = _0XFFFF;
+		private int count;
+
+		public void reset() {
+			accum = _0XFFFF;
+			count = 0;
+		}
+
+		public void update(byte b) {
+			accum = GeniCRC.update(accum, b & 0xff);
+			count++;
+		}
+
+		public void update(byte[] raw, int start, int end) {
+			accum = GeniCRC.update(accum, raw, start, end);
+			count += end - start;
+		}
+
+		/** Consume the remaining bytes of the buffer, leaving position at limit. */
+		public void update(ByteBuffer raw) {
+			int pos = raw.position();
+			int limit = raw.limit();
+			accum = GeniCRC.update(accum, raw, pos, limit);
+			count += limit - pos;
+			((Buffer)raw).position(limit); // Buffer cast keeps this linkable on Java 8.
+		}
+
+		/** @return number of bytes fed since last reset. */
+		public int getCount() {
+			return count;
+		}
+
+		/** @return the check value for the bytes fed so far - 16 bit unsigned as int. */
+		public int getCheckValue() {
+			return ~accum & _0XFFFF;
+		}
+
+		/**
+		 * Receiver side check, for when the two CRC-Value bytes have been fed as well:
+		 * the telegram is sound if the accumulator hereafter matches the CRC of the check value itself.
+		 */
+		public boolean isReceivedTelegramValid() {
+			// Feeding the non-inverted value leaves a fixed residue instead of zero.
+			return accum == RESIDUE;
+		}
+	}
+
+	/** Accumulator after processing a telegram followed by its own CRC-Value. */
+	private static final int RESIDUE = residue();
+
+	private static int residue() {
+		byte[] probe = new byte[] {0, 0, 0};
+		appendTransmitterCheckValue(probe, 0, 1);
+		return update(_0XFFFF, probe, 0, 3);
+	}
 }
@@ -0,0 +1,105 @@
+package com.grouleff.pumpcontrol;
+
+/**
+ * Writes a GENI request - one or more APDUs - into a Packet, instead of hand-assembled
+ * bytes. Lengths are filled in as APDUs are finished; several classes and operations
+ * share one telegram, so reading many values costs one round trip:
+ *
+ *  new GeniRequest(packet).begin(PUMP)
+ *      .apdu(CLASS_MEASURED, OP_GET).id(a).id(b)
+ *      .apdu(CLASS_REFERENCE, OP_GET).id(c)
+ *      .close();
+ *
+ * The seqno is left 0 - the link sets it on sending. Reusable: begin() starts over in
+ * the same packet.
+ */
+public final class GeniRequest {
+    /** Payload bytes a telegram may carry, all APDUs together. */
+    public static final int MAX_PAYLOAD = Integer.getInteger("pumpcontrol.geni.maxPayload", 64);
+
+    public static final int DONGLE = 0;
+    public static final int PUMP = 1;
+
+    private final Packet p;
+    private int apduAt = -1;
+
+    public GeniRequest(Packet p) {
+        this.p = p;
+    }
+
+    public Packet getPacket() {
+        return p;
+    }
+
+    /** @param dst - DONGLE, or PUMP for the pump in IR range. */
+    public GeniRequest begin(int dst) {
+        p.reset();
+        p.addByte(0x27);
+        p.addByte(0); // Length - in close().
+        p.addByte(dst);
+        p.addByte(0); // Seqno - by the link.
+        apduAt = -1;
+        return this;
+    }
+
+    /** Start the next APDU. */
+    public GeniRequest apdu(int cls, int op) {
+        finishApdu();
+        if (room() < 2) {
+            throw new IllegalStateException("telegram full");
+        }
+        apduAt = p.getTop();
+        p.addByte(cls);
+        p.addByte(GeniApdu.opAndLength(op, 0));
+        return this;
+    }
+
+    /** A data item to GET or INFO, or a command to SET. */
+    public GeniRequest id(int id) {
+        checkRoom(1);
+        p.addByte(id);
+        return this;
+    }
+
+    /** A data item to SET to an 8 bit value. */
+    public GeniRequest set(int id, int value) {
+        checkRoom(2);
+        p.addByte(id);
+        p.addByte(value);
+        return this;
+    }
+
+    /** @return payload bytes left in the telegram. */
+    public int room() {
+        return GeniApdu.FIRST + MAX_PAYLOAD - p.getTop();
+    }
+
+    /** @return data bytes the current APDU may still take. */
+    public int roomInApdu() {
+        return apduAt < 0 ? 0 : Math.min(room(), GeniApdu.MAX_DATA - (p.getTop() - apduAt - 2));
+    }
+
+    private void checkRoom(int bytes) {
+        if (apduAt < 0) {
+            throw new IllegalStateException("no APDU begun");
+        }
+        if (roomInApdu() < bytes) {
+            throw new IllegalStateException("APDU full");
+        }
+    }
+
+    private void finishApdu() {
+        if (apduAt >= 0) {
+            int length = p.getTop() - apduAt - 2;
+            int op = GeniApdu.op(p.getByte(apduAt + 1));
+            p.setByte(apduAt + 1, GeniApdu.opAndLength(op, length));
+            apduAt = -1;
+        }
+    }
+
+    /** Fill in lengths and CRC. @return the packet, ready to send. */
+    public Packet close() {
+        finishApdu();
+        return p.close();
+    }
+}
@@ -0,0 +1,165 @@
+package com.grouleff.pumpcontrol;
+
+/**
+ * Data item values decoded from GENI replies, in flat arrays indexed by class << 8 | ID -
+ * no object per item, nothing allocated while decoding.
+ *
+ * A reply only has values, in the order the request asked for them, so decode() walks
+ * the request and the reply side by side. APDUs not acked OK leave their items as they
+ * were. Values are the raw bytes; 16 bit quantities are a hi and a lo item, see get16().
+ *
+ * Not thread safe - one decoder, readers take a copy (see copyFrom()).
+ */
+public final class GeniValues {
+    private static final int SIZE = GeniApdu.CLASSES << 8;
+    private static final int MAX_APDUS = 32;
+
+    private final int[] values = new int[SIZE];
+    private final long[] updatedAt = new long[SIZE]; // Millis, 0 for never.
+    // INFO: head, and the scale of scaled items.
+    private final byte[] infoHead = new byte[SIZE];
+    private final byte[] infoUnit = new byte[SIZE];
+    private final byte[] infoZero = new byte[SIZE];
+    private final byte[] infoRange = new byte[SIZE];
+    private final boolean[] hasInfo = new boolean[SIZE];
+    // Acks of the last decode, one per APDU.
+    private final int[] acks = new int[MAX_APDUS];
+    private int apdus;
+
+    private static int key(int cls, int id) {
+        return cls << 8 | (id & 0xff);
+    }
+
+    /** @return the last value of an 8 bit item, or -1 if never received. */
+    public int get(int cls, int id) {
+        int k = key(cls, id);
+        return updatedAt[k] == 0 ? -1 : values[k];
+    }
+
+    /** @return hi << 8 | lo, or -1 if either was never received. */
+    public int get16(int cls, int hiId, int loId) {
+        int hi = get(cls, hiId);
+        int lo = get(cls, loId);
+        return hi < 0 || lo < 0 ? -1 : hi << 8 | lo;
+    }
+
+    /** @return when the item was last received, in millis, or 0. */
+    public long getUpdatedAt(int cls, int id) {
+        return updatedAt[key(cls, id)];
+    }
+
+    public boolean hasInfo(int cls, int id) {
+        return hasInfo[key(cls, id)];
+    }
+
+    public int getInfoHead(int cls, int id) {
+        return infoHead[key(cls, id)] & 0xff;
+    }
+
+    public int getInfoUnit(int cls, int id) {
+        return infoUnit[key(cls, id)] & 0xff;
+    }
+
+    public int getInfoZero(int cls, int id) {
+        return infoZero[key(cls, id)] & 0xff;
+    }
+
+    public int getInfoRange(int cls, int id) {
+        return infoRange[key(cls, id)] & 0xff;
+    }
+
+    /** @return APDUs in the last reply decoded. */
+    public int getApdus() {
+        return apdus;
+    }
+
+    /** @return the ack of an APDU of the last reply decoded. */
+    public int getAck(int apdu) {
+        return acks[apdu];
+    }
+
+    /**
+     * Store the values of a reply to request.
+     *
+     * @return items stored, or -1 if the reply does not answer the request.
+     */
+    public int decode(Packet request, Packet reply, long now) {
+        int reqEnd = request.getTop() - 2;
+        int repEnd = reply.getTop() - 2;
+        int i = GeniApdu.FIRST;
+        int j = GeniApdu.FIRST;
+        int stored = 0;
+        apdus = 0;
+        while (i + 1 < reqEnd) {
+            if (j + 1 >= repEnd || apdus == MAX_APDUS) {
+                return -1;
+            }
+            int cls = request.getByte(i) & 0xff;
+            int op = GeniApdu.op(request.getByte(i + 1));
+            int length = GeniApdu.length(request.getByte(i + 1));
+            int ack = GeniApdu.op(reply.getByte(j + 1));
+            int replyLength = GeniApdu.length(reply.getByte(j + 1));
+            if ((reply.getByte(j) & 0xff) != cls || j + 2 + replyLength > repEnd || cls >= GeniApdu.CLASSES) {
+                return -1;
+            }
+            acks[apdus++] = ack;
+            if (ack == GeniApdu.ACK_OK) {
+                if (op == GeniApdu.OP_GET) {
+                    stored += storeValues(request, i + 2, length, reply, j + 2, replyLength, cls, now);
+                } else if (op == GeniApdu.OP_INFO) {
+                    stored += storeInfo(request, i + 2, length, reply, j + 2, replyLength, cls);
+                }
+            }
+            i += 2 + length;
+            j += 2 + replyLength;
+        }
+        return stored;
+    }
+
+    private int storeValues(Packet request, int ids, int count, Packet reply, int data, int length, int cls, long now) {
+        int n = Math.min(count, length);
+        for (int k = 0; k < n; k++) {
+            int key = key(cls, request.getByte(ids + k));
+            values[key] = reply.getByte(data + k) & 0xff;
+            updatedAt[key] = now;
+        }
+        return n;
+    }
+
+    /** INFO per item: a head, and for scaled items (SIF 2, 3 in the low bits) unit, zero and range. */
+    private int storeInfo(Packet request, int ids, int count, Packet reply, int data, int length, int cls) {
+        int at = data;
+        int end = data + length;
+        int n = 0;
+        for (; n < count && at < end; n++) {
+            int key = key(cls, request.getByte(ids + n));
+            byte head = reply.getByte(at);
+            boolean scaled = (head & 3) >= 2;
+            if (scaled && at + 4 > end) {
+                break;
+            }
+            infoHead[key] = head;
+            if (scaled) {
+                infoUnit[key] = reply.getByte(at + 1);
+                infoZero[key] = reply.getByte(at + 2);
+                infoRange[key] = reply.getByte(at + 3);
+            }
+            hasInfo[key] = true;
+            at += scaled ? 4 : 1;
+        }
+        return n;
+    }
+
+    /** Take a copy of everything decoded so far, without allocating. */
+    public void copyFrom(GeniValues other) {
+        System.arraycopy(other.values, 0, values, 0, SIZE);
+        System.arraycopy(other.updatedAt, 0, updatedAt, 0, SIZE);
+        System.arraycopy(other.infoHead, 0, infoHead, 0, SIZE);
+        System.arraycopy(other.infoUnit, 0, infoUnit, 0, SIZE);
+        System.arraycopy(other.infoZero, 0, infoZero, 0, SIZE);
+        System.arraycopy(other.infoRange, 0, infoRange, 0, SIZE);
+        System.arraycopy(other.hasInfo, 0, hasInfo, 0, SIZE);
+        System.arraycopy(other.acks, 0, acks, 0, MAX_APDUS);
+        apdus = other.apdus;
+    }
+}
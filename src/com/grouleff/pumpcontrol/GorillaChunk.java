@@ -0,0 +1,233 @@
+package com.grouleff.pumpcontrol;
+
+/**
+ * A block of (timestamp, value) samples, compressed the Gorilla way into a long[]:
+ * timestamps as delta-of-delta, values as XOR with the previous value. Samples of a
+ * slowly moving temperature every 10 s take two to three bytes each.
+ *
+ * Layout of the bit stream, most significant bit first in each word:
+ *  first sample: 64 bit timestamp (millis), 64 bit double.
+ *  then per sample:
+ *   delta-of-delta: '0' | '10'+7 bits | '110'+9 bits | '1110'+12 bits | '1111'+32 bits,
+ *                   two's complement
+ *   value xor: '0' for same value | '10'+bits in the previous window |
+ *              '11'+5 bits leading zeros+6 bits length+bits
+ *
+ * Not thread safe.
+ */
+public class GorillaChunk {
+    /** Worst case size of one sample, in bits. */
+    private static final int MAX_SAMPLE_BITS = 4 + 32 + 2 + 5 + 6 + 64;
+
+    private final long[] words;
+    private int bits;
+    private int count;
+
+    private long firstTime;
+    private long lastTime;
+    private long lastDelta;
+    private long lastValueBits;
+    private int lastLeading;
+    private int lastTrailing;
+
+    public GorillaChunk(int capacityWords) {
+        words = new long[capacityWords];
+    }
+
+    /** Forget all samples. */
+    public void reset() {
+        for (int i = 0, n = (bits + 63) >>> 6; i < n; i++) {
+            words[i] = 0;
+        }
+        bits = 0;
+        count = 0;
+    }
+
+    public long[] getWords() {
+        return words;
+    }
+
+    /** @return bits used - words[0..(bits+63)/64) hold the samples. */
+    public int getBits() {
+        return bits;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public long getFirstTime() {
+        return firstTime;
+    }
+
+    public long getLastTime() {
+        return lastTime;
+    }
+
+    /**
+     * @param time - millis, not before the last sample.
+     * @return false if the chunk is full, or the sample does not fit the encoding; start a new chunk.
+     */
+    public boolean append(long time, double value) {
+        if (bits + MAX_SAMPLE_BITS > words.length * 64) {
+            return false;
+        }
+        long valueBits = Double.doubleToRawLongBits(value);
+        if (count == 0) {
+            write(time, 64);
+            write(valueBits, 64);
+            firstTime = time;
+            lastDelta = 0;
+            lastLeading = Integer.MAX_VALUE;
+            lastTrailing = 0;
+        } else {
+            long delta = time - lastTime;
+            long dod = delta - lastDelta;
+            if (delta < 0 || dod < Integer.MIN_VALUE || dod > Integer.MAX_VALUE) {
+                return false;
+            }
+            if (dod == 0) {
+                write(0, 1);
+            } else if (dod >= -64 && dod <= 63) {
+                write(0x2, 2);
+                write(dod, 7);
+            } else if (dod >= -256 && dod <= 255) {
+                write(0x6, 3);
+                write(dod, 9);
+            } else if (dod >= -2048 && dod <= 2047) {
+                write(0xe, 4);
+                write(dod, 12);
+            } else {
+                write(0xf, 4);
+                write(dod, 32);
+            }
+            lastDelta = delta;
+
+            long xor = valueBits ^ lastValueBits;
+            if (xor == 0) {
+                write(0, 1);
+            } else {
+                int leading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+                int trailing = Long.numberOfTrailingZeros(xor);
+                if (leading >= lastLeading && trailing >= lastTrailing) {
+                    write(0x2, 2);
+                    write(xor >>> lastTrailing, 64 - lastLeading - lastTrailing);
+                } else {
+                    int length = 64 - leading - trailing;
+                    write(0x3, 2);
+                    write(leading, 5);
+                    write(length & 63, 6); // 64 is written as 0.
+                    write(xor >>> trailing, length);
+                    lastLeading = leading;
+                    lastTrailing = trailing;
+                }
+            }
+        }
+        lastTime = time;
+        lastValueBits = valueBits;
+        count++;
+        return true;
+    }
+
+    private void write(long value, int n) {
+        int word = bits >>> 6;
+        int free = 64 - (bits & 63);
+        if (n < 64) {
+            value &= (1L << n) - 1;
+        }
+        if (n <= free) {
+            words[word] |= value << (free - n);
+        } else {
+            words[word] |= value >>> (n - free);
+            words[word + 1] |= value << (64 - (n - free));
+        }
+        bits += n;
+    }
+
+    /** Receives decoded samples. */
+    public interface Visitor {
+        void sample(long time, double value);
+    }
+
+    /**
+     * Decode count samples from a bit stream written by append(), calling the visitor
+     * for those in [from..to]. Stops early once past to.
+     */
+    public static void decode(long[] words, int count, long from, long to, Visitor visitor) {
+        if (count == 0) {
+            return;
+        }
+        BitReader in = new BitReader(words);
+        long time = in.read(64);
+        long valueBits = in.read(64);
+        long delta = 0;
+        int leading = 0;
+        int trailing = 0;
+        for (int i = 0; ; ) {
+            if (time > to) {
+                return;
+            }
+            if (time >= from) {
+                visitor.sample(time, Double.longBitsToDouble(valueBits));
+            }
+            if (++i == count) {
+                return;
+            }
+            long dod;
+            if (in.read(1) == 0) {
+                dod = 0;
+            } else if (in.read(1) == 0) {
+                dod = in.readSigned(7);
+            } else if (in.read(1) == 0) {
+                dod = in.readSigned(9);
+            } else if (in.read(1) == 0) {
+                dod = in.readSigned(12);
+            } else {
+                dod = in.readSigned(32);
+            }
+            delta += dod;
+            time += delta;
+            if (in.read(1) != 0) {
+                if (in.read(1) != 0) {
+                    leading = (int)in.read(5);
+                    int length = (int)in.read(6);
+                    if (length == 0) {
+                        length = 64;
+                    }
+                    trailing = 64 - leading - length;
+                }
+                valueBits ^= in.read(64 - leading - trailing) << trailing;
+            }
+        }
+    }
+
+    private static final class BitReader {
+        private final long[] words;
+        private int bits;
+
+        BitReader(long[] words) {
+            this.words = words;
+        }
+
+        long read(int n) {
+            int word = bits >>> 6;
+            int available = 64 - (bits & 63);
+            long value;
+            if (n <= available) {
+                value = words[word] << (64 - available);
+                value = n == 64 ? value : value >>> (64 - n);
+            } else {
+                long high = (words[word] << (64 - available)) >>> (64 - available);
+                value = (high << (n - available)) | (words[word + 1] >>> (64 - (n - available)));
+            }
+            bits += n;
+            return value;
+        }
+
+        /** Read an n bit two's complement number - the values written for negative dods. */
+        long readSigned(int n) {
+            long v = read(n);
+            return (v << (64 - n)) >> (64 - n);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.grouleff.pumpcontrol;
+
+/**
+ * Table driven hex dump in the layout Packet.toString() has always used:
+ * upper case byte pairs, 16 to a line.
+ */
+final class Hex {
+    private static final char[] DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private Hex() {
+        // static stuff only.
+    }
+
+    static void append(StringBuilder sb, byte[] raw, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            int b = raw[offset + i] & 0xff;
+            sb.append(DIGITS[b >>> 4]).append(DIGITS[b & 0xf]);
+            if (((i+1) % 16) == 0) {
+                sb.append("\n     ");
+            } else {
+                sb.append(' ');
+            }
+        }
+    }
+
+    static String toString(byte[] raw, int offset, int length) {
+        StringBuilder sb = new StringBuilder(length * 3 + (length / 16) * 6);
+        append(sb, raw, offset, length);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,78 @@
+package com.grouleff.pumpcontrol;
+
+/**
+ * Book keeping for telegrams sent to the dongle but not yet answered, keyed by the
+ * RSLP seqno (byte 3) they were sent with. Remembers the seqno the telegram had before
+ * it was renumbered, so the reply can be given back its original number.
+ *
+ * At most size telegrams should be in flight: the sender compares getInFlight() with
+ * getSize(), and awaitChange() for a reply or an expiry to free a slot.
+ */
+public class InFlightWindow {
+    private static final int FREE = -1;
+
+    private final int size;
+    private final int[] originalSeqno = new int[256];
+    private int inFlight;
+    private long expired;
+
+    public InFlightWindow(int size) {
+        if (size < 1 || size > 64) {
+            throw new IllegalArgumentException("window size " + size);
+        }
+        this.size = size;
+        for (int i = 0; i < originalSeqno.length; i++) {
+            originalSeqno[i] = FREE;
+        }
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /** Wait for a reply or an expiry - anything that frees a slot. */
+    public synchronized void awaitChange(long timeoutMillis) throws InterruptedException {
+        if (inFlight > 0) {
+            wait(timeoutMillis);
+        }
+    }
+
+    public synchronized void add(int seqno, int original) {
+        seqno &= 0xff;
+        if (originalSeqno[seqno] == FREE) {
+            inFlight++;
+        }
+        originalSeqno[seqno] = original & 0xff;
+    }
+
+    /**
+     * A reply arrived.
+     *
+     * @return the original seqno of the matching request, or -1 if none is in flight.
+     */
+    public synchronized int complete(int seqno) {
+        seqno &= 0xff;
+        int original = originalSeqno[seqno];
+        if (original != FREE) {
+            originalSeqno[seqno] = FREE;
+            inFlight--;
+            notifyAll();
+        }
+        return original;
+    }
+
+    /** Give up on one telegram, its reply is not coming. */
+    public synchronized void abandon(int seqno) {
+        if (complete(seqno) >= 0) {
+            expired++;
+        }
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public synchronized long getExpired() {
+        return expired;
+    }
+}
@@ -0,0 +1,205 @@
+package com.grouleff.pumpcontrol;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hands out the one serial link to its users (scheduler, proxy clients) by lease.
+ *
+ * Waiters queue by priority, and first come first served within a priority, instead
+ * of failing. A holder is expected to give the link back as soon as shouldYield() says
+ * somebody is waiting - after one telegram exchange at most - so users interleave at
+ * telegram granularity. The exception is a proxy client with pumpcontrol.window above 1:
+ * it sends nothing new once told to yield, but gives the link back only when the
+ * telegrams it has in flight are answered or timed out. A lease that has not been
+ * renewed for leaseTimeout is reclaimed when somebody else wants the link, so a hung
+ * client cannot keep it.
+ *
+ * Each user creates one Lease and acquires/releases it for as long as it lives.
+ */
+public class LinkArbiter {
+
+    /** Pump commands from the scheduler - safety first. */
+    public static final int PRIORITY_CONTROL = 0;
+    /** Proxy clients, PC tools. */
+    public static final int PRIORITY_CLIENT = 10;
+    /** Polling that may wait. */
+    public static final int PRIORITY_BACKGROUND = 20;
+
+    public static final long DEFAULT_LEASE_TIMEOUT = 5000;
+
+    private final String name;
+    private final long leaseTimeout;
+    private final ReentrantLock lock = new ReentrantLock(true);
+    private final Condition changed = lock.newCondition();
+    private final PriorityQueue<Lease> waiters = new PriorityQueue<Lease>();
+    private Lease holder;
+    private volatile int holderPriority = Integer.MAX_VALUE; // Of the holder, for readers without the lock.
+    private long nextTicket;
+
+    public LinkArbiter(String name) {
+        this(name, DEFAULT_LEASE_TIMEOUT);
+    }
+
+    public LinkArbiter(String name, long leaseTimeout) {
+        this.name = name;
+        this.leaseTimeout = leaseTimeout;
+    }
+
+    public Lease newLease(String owner, int priority) {
+        return new Lease(owner, priority);
+    }
+
+    /** @return the priority of whoever holds the link, Integer.MAX_VALUE if nobody does. */
+    public int getHolderPriority() {
+        return holderPriority;
+    }
+
+    /** Called with lock held. */
+    private void reclaimIfExpired(long now) {
+        if (holder != null && !waiters.isEmpty() && now - holder.renewedAt > leaseTimeout) {
+            System.err.println(name + ": reclaimed link from " + holder.owner);
+            holder = null;
+            holderPriority = Integer.MAX_VALUE;
+            changed.signalAll();
+        }
+    }
+
+    public final class Lease implements Comparable<Lease> {
+        private final String owner;
+        private final int priority;
+        private long ticket;
+        private long renewedAt;
+        private int usedSinceGrant;
+
+        private Lease(String owner, int priority) {
+            this.owner = owner;
+            this.priority = priority;
+        }
+
+        public String getOwner() {
+            return owner;
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+
+        @Override
+        public int compareTo(Lease o) {
+            if (priority != o.priority) {
+                return priority < o.priority ? -1 : 1;
+            }
+            return ticket < o.ticket ? -1 : (ticket == o.ticket ? 0 : 1);
+        }
+
+        /**
+         * Wait for the link. Returns at once if already held.
+         *
+         * @return true if held, false on timeout.
+         */
+        public boolean acquire(long timeoutMillis) throws InterruptedException {
+            lock.lock();
+            try {
+                long now = System.currentTimeMillis();
+                if (holder == this) {
+                    renewedAt = now;
+                    return true;
+                }
+                long deadline = now + timeoutMillis;
+                ticket = nextTicket++;
+                waiters.add(this);
+                try {
+                    while (true) {
+                        reclaimIfExpired(now);
+                        if (holder == null && waiters.peek() == this) {
+                            waiters.poll();
+                            holder = this;
+                            holderPriority = priority;
+                            renewedAt = now;
+                            usedSinceGrant = 0;
+                            return true;
+                        }
+                        long wait = deadline - now;
+                        if (wait <= 0) {
+                            return false;
+                        }
+                        if (holder != null) {
+                            // Wake up when the holder's lease runs out, in case it is hung.
+                            wait = Math.min(wait, Math.max(1, holder.renewedAt + leaseTimeout - now + 1));
+                        }
+                        changed.await(wait, TimeUnit.MILLISECONDS);
+                        now = System.currentTimeMillis();
+                    }
+                } finally {
+                    if (holder != this) {
+                        waiters.remove(this);
+                        changed.signalAll(); // Somebody else may be at the head now.
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public void release() {
+            lock.lock();
+            try {
+                if (holder == this) {
+                    holder = null;
+                    holderPriority = Integer.MAX_VALUE;
+                    changed.signalAll();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /** @return true if this lease holds the link and has not been reclaimed. */
+        public boolean isHeld() {
+            lock.lock();
+            try {
+                return holder == this;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /** Note a telegram sent or received under this lease, keeping it from being reclaimed. */
+        public void renew() {
+            lock.lock();
+            try {
+                if (holder == this) {
+                    renewedAt = System.currentTimeMillis();
+                    usedSinceGrant++;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * @return true if the holder has had its turn (at least one telegram) and somebody
+         * of the same or higher priority is waiting.
+         */
+        public boolean shouldYield() {
+            lock.lock();
+            try {
+                if (holder != this || usedSinceGrant == 0) {
+                    return false;
+                }
+                Lease next = waiters.peek();
+                return next != null && next.priority <= priority;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return owner + "@" + priority;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.grouleff.pumpcontrol;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The only reader of a link. A thread of its own frames everything the dongle sends and
+ * hands each telegram to whoever expects its seqno, the moment it is framed - no polling,
+ * so a round trip costs wire time plus a thread wake-up. Deadlines are kept in the shared
+ * TimerWheel.
+ *
+ * Replies are completed into packets from PacketPool.SHARED; whoever takes a reply from
+ * a future should release it to the pool. Futures complete on the receiver thread (or the
+ * wheel thread on timeout), so callbacks must be quick.
+ */
+public class LinkReceiver {
+    private final RXTXLink link;
+    private final AtomicReferenceArray<Expected> expected = new AtomicReferenceArray<Expected>(256);
+    private volatile long unmatched;
+    private volatile long timedOut;
+    private final AtomicInteger missed = new AtomicInteger(); // In a row.
+    private volatile long receivedAt = System.currentTimeMillis();
+
+    private static final class Expected extends CompletableFuture<Packet> {
+        TimerWheel.Timeout timeout;
+        long expectedAt; // System.nanoTime(), just before the request is sent.
+    }
+
+    LinkReceiver(RXTXLink link) {
+        this.link = link;
+    }
+
+    void start() {
+        Thread t = new Thread(link.portName + "-rx") {
+            @Override
+            public void run() {
+                receiveForever();
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Expect a reply with this seqno. Call before sending, the reply may be quick.
+     *
+     * @return completes with the reply, or exceptionally with a TimeoutException.
+     */
+    public CompletableFuture<Packet> expect(int seqno, long timeoutMillis) {
+        final int seq = seqno & 0xff;
+        final Expected e = new Expected();
+        e.expectedAt = System.nanoTime();
+        e.timeout = TimerWheel.SHARED.schedule(new Runnable() {
+            @Override
+            public void run() {
+                expected.compareAndSet(seq, e, null);
+                if (e.completeExceptionally(new TimeoutException("no reply to seqno " + seq))) {
+                    timedOut++;
+                    link.timedOut.inc();
+                    missed.incrementAndGet();
+                }
+            }
+        }, timeoutMillis);
+        Expected previous = expected.getAndSet(seq, e);
+        if (previous != null) {
+            // Seqnos go round every 255 telegrams - an old request nobody answered.
+            previous.timeout.cancel();
+            previous.completeExceptionally(new TimeoutException("seqno " + seq + " reused"));
+        }
+        return e;
+    }
+
+    /** @return replies nobody was waiting for - late, or to a telegram nobody expected an answer to. */
+    public long getUnmatched() {
+        return unmatched;
+    }
+
+    public long getTimedOut() {
+        return timedOut;
+    }
+
+    /** @return requests timed out since the last reply, a sign the dongle has stopped answering. */
+    public int getMissed() {
+        return missed.get();
+    }
+
+    public void resetMissed() {
+        missed.set(0);
+    }
+
+    /** @return when the last telegram was received, in millis. */
+    public long getReceivedAt() {
+        return receivedAt;
+    }
+
+    private void receiveForever() {
+        TelegramFramer framer = link.getFramer();
+        Packet p = new Packet();
+        while (true) {
+            int generation = link.getGeneration();
+            try {
+                while (framer.next(p)) {
+                    dispatch(p);
+                }
+                int readLen = framer.fill(link.getInputStream());
+                if (readLen < 0) {
+                    throw new IOException("end of stream");
+                }
+                link.receivedBytes.add(readLen);
+                if (readLen == 0) {
+                    framer.resync(); // Line went quiet - a candidate still waiting for bytes was junk.
+                }
+            } catch (IOException e) {
+                System.err.println("Receiving from " + link.portName + ": " + e);
+                link.reportFailure(e);
+                try {
+                    link.awaitGeneration(generation, 1000); // Reconnected by the supervisor, or on next use.
+                } catch (InterruptedException e1) {
+                    return;
+                }
+                framer.clear(); // Half a telegram from a broken stream.
+            }
+        }
+    }
+
+    private void dispatch(Packet p) {
+        receivedAt = System.currentTimeMillis();
+        int seq = p.getSeqnoAndSrcField() & 0xff;
+        Expected e = expected.getAndSet(seq, null);
+        if (e == null) {
+            unmatched++;
+            link.unmatched.inc();
+            p.log(PacketLog.Tag.UNMATCHED, "<<<");
+            return;
+        }
+        e.timeout.cancel();
+        long rtt = System.nanoTime() - e.expectedAt;
+        link.roundTrip.record(rtt);
+        link.getRtt().sample(rtt);
+        missed.set(0);
+        Packet reply = PacketPool.SHARED.acquire();
+        reply.copyFrom(p);
+        if (!e.complete(reply)) {
+            PacketPool.SHARED.release(reply);
+        }
+    }
+}
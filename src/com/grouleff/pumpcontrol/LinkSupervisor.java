@@ -0,0 +1,284 @@
+package com.grouleff.pumpcontrol;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Keeps a link working, so the process can run for months instead of restarting to
+ * recover. Every check interval it looks for:
+ *
+ *  - the device gone, e.g. the USB dongle unplugged or re-enumerated,
+ *  - I/O errors reported by the link or its receiver,
+ *  - requests going unanswered, several in a row,
+ *  - no reply to the probe, sent when the link has been quiet for a while.
+ *
+ * On trouble it closes and opens the port, with backoff while that fails, and replays
+ * the setup steps (reset, set address) the dongle needs before it reaches the pump.
+ * Then the recovery listeners are told, e.g. so the PumpCommander sends its command again.
+ * A port that was opened again by someone else meanwhile is only set up again.
+ *
+ * Configured by system properties:
+ *  pumpcontrol.supervisor.check - milliseconds between checks (default 250)
+ *  pumpcontrol.supervisor.misses - unanswered requests in a row that count as a stall (default 3)
+ *  pumpcontrol.supervisor.probe - seconds of silence before probing (default 60, 0 for never)
+ *  pumpcontrol.supervisor.backoff.min, pumpcontrol.supervisor.backoff.max - between
+ *      reconnect attempts, in milliseconds (default 100, 5000)
+ */
+public class LinkSupervisor {
+
+    /** A telegram exchange, e.g. a setup step. */
+    public interface Step {
+        /** @return true if acked. */
+        boolean run() throws IOException;
+    }
+
+    private final RXTXLink link;
+    private final long checkMillis = Integer.getInteger("pumpcontrol.supervisor.check", 250);
+    private final int maxMisses = Integer.getInteger("pumpcontrol.supervisor.misses", 3);
+    private final long probeMillis = Integer.getInteger("pumpcontrol.supervisor.probe", 60) * 1000L;
+    private final long backoffMin = Integer.getInteger("pumpcontrol.supervisor.backoff.min", 100);
+    private final long backoffMax = Integer.getInteger("pumpcontrol.supervisor.backoff.max", 5000);
+
+    private final List<Step> setup = new ArrayList<Step>();
+    private final List<Runnable> listeners = new CopyOnWriteArrayList<Runnable>(); // Added to while running.
+    private Step probe;
+    private int setUpGeneration = -1;
+    private long probedAt;
+    private volatile boolean stopped;
+    private Thread thread;
+
+    private volatile long recoveries;
+    private volatile long lastRecoveryMillis;
+    private volatile String lastTrouble;
+
+    private final Metrics.Counter recoveryCount;
+    private final Metrics.Histogram recoveryTime;
+
+    public LinkSupervisor(RXTXLink link) {
+        this.link = link;
+        String port = Metrics.label("port", link.portName);
+        recoveryCount = Metrics.counter("pumpcontrol_link_recoveries_total", port, "Reconnects and setups after trouble.");
+        recoveryTime = Metrics.histogram("pumpcontrol_link_recovery_seconds", port,
+                "From trouble seen to the dongle set up again.", Metrics.LATENCY_NANOS);
+    }
+
+    /**
+     * The MI301 setup: reset the dongle, then point it at a pump. The probe sets the
+     * address again - acked by the dongle itself, the pump is not disturbed. Steps go
+     * under a lease of their own, ahead of proxy clients.
+     *
+     * @param pumpAddress - GENI unit address, or 255 for broadcast. Schedulers of other
+     * pumps on the link address theirs as they go, see RXTXLink.addressPump().
+     */
+    public static LinkSupervisor forDongle(final RXTXLink link, final int pumpAddress) {
+        final LinkArbiter.Lease lease = link.getArbiter().newLease("supervisor", LinkArbiter.PRIORITY_CONTROL);
+        final Packet ack = new Packet();
+        LinkSupervisor supervisor = new LinkSupervisor(link);
+        supervisor.addSetup(new Step() {
+            @Override
+            public boolean run() throws IOException {
+                return exchange(lease, link, -1, ack);
+            }
+        });
+        Step setAddress = new Step() {
+            @Override
+            public boolean run() throws IOException {
+                return exchange(lease, link, pumpAddress, ack);
+            }
+        };
+        supervisor.addSetup(setAddress);
+        supervisor.setProbe(setAddress);
+        return supervisor;
+    }
+
+    private static final long LEASE_WAIT = 5000;
+
+    /** @param pumpAddress - to set, or -1 to reset the dongle. */
+    private static boolean exchange(LinkArbiter.Lease lease, RXTXLink link, int pumpAddress, Packet ack) throws IOException {
+        synchronized (ack) { // Setup on start() and probes on the supervisor thread share it.
+            try {
+                if (!lease.acquire(LEASE_WAIT)) {
+                    System.out.println("Link busy, not sent: " + (pumpAddress < 0 ? PreEncodedTelegram.RESET_DONGLE : "set address " + pumpAddress));
+                    return false;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            try {
+                if (pumpAddress < 0) {
+                    return link.exchange(PreEncodedTelegram.RESET_DONGLE, ack); // Wait for ack.
+                }
+                return link.setPumpAddress(pumpAddress, ack);
+            } finally {
+                lease.release();
+            }
+        }
+    }
+
+    /** Run after every (re)connect, in order. Add before start(). */
+    public void addSetup(Step step) {
+        setup.add(step);
+    }
+
+    /** Sent when nothing has been received for the probe interval; must not disturb the pump. */
+    public void setProbe(Step probe) {
+        this.probe = probe;
+    }
+
+    /** Called on the supervisor thread after each recovery. May be added while running. */
+    public void addRecoveryListener(Runnable listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Set the dongle up, on the calling thread, and watch the link from now on. When
+     * several share the supervisor, the first sets up and the others wait for that.
+     */
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        try {
+            if (setUp()) {
+                setUpGeneration = link.getGeneration();
+            }
+        } catch (IOException e) {
+            link.reportFailure(e);
+        }
+        probedAt = System.currentTimeMillis();
+        thread = new Thread(link.portName + "-supervisor") {
+            @Override
+            public void run() {
+                try {
+                    superviseForever();
+                } catch (InterruptedException e) {
+                    // Stopped.
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        stopped = true;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    public RXTXLink getLink() {
+        return link;
+    }
+
+    public long getRecoveries() {
+        return recoveries;
+    }
+
+    /** @return from trouble seen to the dongle set up again, for the last recovery. */
+    public long getLastRecoveryMillis() {
+        return lastRecoveryMillis;
+    }
+
+    /** @return what caused the last recovery, or null. */
+    public String getLastTrouble() {
+        return lastTrouble;
+    }
+
+    private void superviseForever() throws InterruptedException {
+        while (!stopped) {
+            Thread.sleep(checkMillis);
+            String trouble = diagnose();
+            if (trouble != null) {
+                recover(trouble, true);
+            } else if (link.getGeneration() != setUpGeneration) {
+                recover("port opened without setup", false);
+            }
+        }
+    }
+
+    /** @return what is wrong with the link, or null if nothing seems to be. */
+    private String diagnose() {
+        if (!link.isPresent()) {
+            return "device gone";
+        }
+        IOException failure = link.takeFailure();
+        if (failure != null) {
+            return failure.toString();
+        }
+        LinkReceiver receiver = link.getReceiver();
+        int missed = receiver.getMissed();
+        if (missed >= maxMisses) {
+            return missed + " requests unanswered";
+        }
+        long now = System.currentTimeMillis();
+        if (probe != null && probeMillis > 0 && now - Math.max(receiver.getReceivedAt(), probedAt) > probeMillis) {
+            probedAt = now;
+            try {
+                if (!probe.run()) {
+                    return "no reply to probe";
+                }
+            } catch (IOException e) {
+                return e.toString();
+            }
+        }
+        return null;
+    }
+
+    private void recover(String trouble, boolean reopen) throws InterruptedException {
+        long began = System.currentTimeMillis();
+        System.err.println(link.portName + ": " + trouble + ", recovering");
+        long backoff = backoffMin;
+        int attempts = 0;
+        while (!stopped) {
+            attempts++;
+            if (reopen && !link.isPresent()) {
+                // Nothing to open - wait for the device to come back.
+            } else if (!reopen || link.reconnect()) {
+                try {
+                    if (setUp()) {
+                        break;
+                    }
+                } catch (IOException e) {
+                    System.err.println(link.portName + ": setup failed: " + e);
+                }
+            }
+            reopen = true;
+            Thread.sleep(backoff);
+            backoff = Math.min(backoff * 2, backoffMax);
+        }
+        if (stopped) {
+            return;
+        }
+        setUpGeneration = link.getGeneration();
+        probedAt = System.currentTimeMillis();
+        lastTrouble = trouble;
+        lastRecoveryMillis = probedAt - began;
+        recoveries++;
+        recoveryCount.inc();
+        recoveryTime.record(lastRecoveryMillis * 1000000L);
+        System.err.println(link.portName + ": recovered in " + lastRecoveryMillis + " ms, " + attempts + " attempts");
+        for (Runnable listener : listeners) {
+            try {
+                listener.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /** @return true if every setup step was acked. */
+    private boolean setUp() throws IOException {
+        link.takeFailure(); // Anything before this connection is history.
+        for (Step step : setup) {
+            if (!step.run()) {
+                return false;
+            }
+        }
+        link.getReceiver().resetMissed();
+        return link.takeFailure() == null;
+    }
+}
@@ -1,35 +1,130 @@
 package com.grouleff.pumpcontrol;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class MI301DongleProxy {
     public static final int SO_TIMEOUT = 100;
+    /** GENI address reaching whichever pump is in range. */
+    public static final int BROADCAST = 255;
     private static String temperatureSensorPath;
 
     public static void main(String[] args) throws Exception {
+        Startup.mark("main");
         start(args);
     }
 
     private static List<RXTXLink> allLinks = Collections.synchronizedList(new ArrayList<RXTXLink>());
 
     private static void start(String[] args) throws Exception {
-        if (args.length != 3) {
+        if (args.length == 0 || args.length % 3 != 0) {
             System.out.println("Usage: CMD /dev/ttyUSB0 /sys/bus/w1/devices/28-0000072ab93b/w1_slave /sys/bus/w1/devices/28-0000072a54b1/w1_slave");
+            System.out.println("  sim: or tcp:host:port in place of the serial port for a simulated dongle, see MI301Simulator.");
+            System.out.println("  Several circuits: port[@pumpAddress] circSensor returnSensor, again for each. Without");
+            System.out.println("  an address the pump is reached by broadcast - give each its address when pumps share a dongle.");
+            return;
         }
 
-        RXTXLink link = new RXTXLink(args[0]);
-        allLinks.add(link);
-        //new Listener(port).listenForever();
-        new CustomScheduler(args[1], args[2]).runForever();
+        // A link, with its reader and supervisor, per port. Circuits on the same port share it.
+        final TimeSeriesStore history = TimeSeriesStore.fromProperties(); // null if not kept.
+        Map<String, LinkSupervisor> supervisors = new HashMap<String, LinkSupervisor>();
+        Map<String, Integer> circuitsOnPort = new HashMap<String, Integer>();
+        List<Thread> circuits = new ArrayList<Thread>();
+        int firstPumpAddress = BROADCAST;
+        for (int i = 0; i < args.length; i += 3) {
+            String portName = args[i];
+            int pumpAddress = BROADCAST;
+            int at = portName.lastIndexOf('@');
+            if (at > 0) {
+                pumpAddress = Integer.parseInt(portName.substring(at + 1));
+                portName = portName.substring(0, at);
+            }
+            LinkSupervisor supervisor = supervisors.get(portName);
+            if (supervisor == null) {
+                RXTXLink link = RXTXLink.forName(portName);
+                addLink(link);
+                supervisor = LinkSupervisor.forDongle(link, pumpAddress);
+                supervisors.put(portName, supervisor);
+            }
+            Integer shared = circuitsOnPort.get(portName);
+            circuitsOnPort.put(portName, shared == null ? 1 : shared + 1);
+            if (shared != null && pumpAddress == BROADCAST) {
+                System.err.println("Several pumps on " + portName + " - give each its address, or all of them get the commands");
+            }
+            if (i == 0) {
+                firstPumpAddress = pumpAddress;
+            }
+            String name = i == 0 ? "" : "circuit" + (i / 3 + 1);
+            final CustomScheduler scheduler = new CustomScheduler(name, supervisor.getLink(), supervisor, pumpAddress,
+                                                                  args[i + 1], args[i + 2], history);
+            circuits.add(new Thread(i == 0 ? "circuit1" : name) {
+                @Override
+                public void run() {
+                    scheduler.runForever();
+                }
+            });
+        }
+        // Proxy and schedulers share the first link through its LinkArbiter.
+        final Integer port = Integer.getInteger("proxy.port");
+        if (port != null) {
+            // Not needed for the first pump command - in fast startup mode it waits for that.
+            Startup.afterFirstAck(new Runnable() {
+                @Override
+                public void run() {
+                    startProxy(port);
+                }
+            });
+        }
+        // Pump data for local consumers, from the first circuit's pump. Deferred like the proxy.
+        final int gatewayAddress = firstPumpAddress;
+        Startup.afterFirstAck(new Runnable() {
+            @Override
+            public void run() {
+                PumpGateway.serveFromProperties(getLink(), gatewayAddress);
+            }
+        });
+        Metrics.serveFromProperties();
+        // Each circuit on its own thread: a slow link or pump holds up only its own.
+        for (Thread circuit : circuits) {
+            circuit.start();
+        }
+        for (Thread circuit : circuits) {
+            circuit.join();
+        }
+        if (history != null) {
+            history.close();
+        }
     }
 
-    public static RXTXLink getLink() {
-        return allLinks.remove(0);
+    private static void startProxy(int port) {
+        try {
+            final NioListener listener = new NioListener(port);
+            Thread proxy = new Thread("proxy") {
+                @Override
+                public void run() {
+                    listener.listenForever();
+                }
+            };
+            proxy.setDaemon(true);
+            proxy.start();
+            //new Listener(port).listenForever(); // Thread per client instead.
+        } catch (IOException e) {
+            System.err.println("Proxy not started on port " + port + ": " + e);
+        }
     }
-    
-    public static void releaseLink(RXTXLink link) {
+
+    public static void addLink(RXTXLink link) {
         allLinks.add(link);
     }
+
+    /**
+     * @return the link of the first port - shared, take turns through its getArbiter().
+     */
+    public static RXTXLink getLink() {
+        return allLinks.get(0);
+    }
 }
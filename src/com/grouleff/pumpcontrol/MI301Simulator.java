@@ -0,0 +1,441 @@
+package com.grouleff.pumpcontrol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Stands in for an MI301 dongle with a Magna pump in IR range, for testing without
+ * hardware. Speaks RSLP as described in Packet and answers:
+ *
+ *  to dongle (dst 0): 3/7 reset, 3/16 set address - acked with class 3, ack OK.
+ *  to pump (dst 1): GENI APDUs, each answered in turn, but only after the address of
+ *      the pump (or 255, broadcast) is set, as the real dongle does not reach the pump
+ *      before that:
+ *      class 3 SET of command 5 (stop), 6 (start), 22 (constant curve), 25 (minimum);
+ *      GET and INFO of data items given a value with setItem(); SET of class 4, 5 items.
+ *
+ * Anything else well framed to the dongle is answered with ack "ID unknown", to the pump
+ * with the GENI ack that fits. Replies carry the seqno of the request and start
+ * delimiter 0x24.
+ *
+ * The line is emulated, not slept on: each request arrives when its last byte would
+ * have passed the wire at the configured baud rate, the reply is due a latency (plus
+ * random jitter) later, and then trickles into the input stream a byte time per byte.
+ * Replies queue behind each other like on a real line. Drops and single bit errors
+ * are drawn from a seeded Random, so a run can be repeated exactly.
+ *
+ * setHung() makes the dongle swallow everything, like one that has locked up, until the
+ * port is closed - for testing recovery, see LinkSupervisor.
+ *
+ * Configured by system properties, used by the no-argument constructor:
+ *  pumpcontrol.sim.baud (default 9600 - the IR side; 0 for no line delay)
+ *  pumpcontrol.sim.latency, pumpcontrol.sim.jitter - microseconds (default 20000, 5000)
+ *  pumpcontrol.sim.drop, pumpcontrol.sim.corrupt - per mille of replies (default 0)
+ *  pumpcontrol.sim.seed (default 1)
+ *  pumpcontrol.sim.items=class/id=value,... - data items the pump has (default none)
+ *  pumpcontrol.sim.address - the GENI unit address of the pump (default 32)
+ */
+public class MI301Simulator {
+    public static final int CMD_STOP = 5;
+    public static final int CMD_START = 6;
+    public static final int CMD_CONSTANT_CURVE = 22;
+    public static final int CMD_MINIMUM = 25;
+
+    private static final int ACK_OK = 0;
+    private static final int ACK_ID_UNKNOWN = 2;
+
+    private final long byteNanos;
+    private final long latencyNanos;
+    private final long jitterNanos;
+    private final int dropPerMille;
+    private final int corruptPerMille;
+    private final Random random;
+
+    private final TelegramFramer framer = new TelegramFramer();
+    private final Packet request = new Packet();
+    private final byte[] reply = new byte[300]; // The reply being built.
+    private int replyTop;
+    private final int[] items = new int[GeniApdu.CLASSES << 8]; // Data item values, -1 for unknown.
+    private final ArrayDeque<Reply> replies = new ArrayDeque<Reply>();
+    private long requestLineFreeAt;
+    private long replyLineFreeAt;
+
+    private boolean hung;
+    private int address = -1; // Set by the host, -1 for none.
+    private int pumpAddress = Integer.getInteger("pumpcontrol.sim.address", 32);
+    private boolean running;
+    private int mode = CMD_CONSTANT_CURVE;
+    private long requests;
+    private long dropped;
+    private long corrupted;
+
+    private final InputStream in = new SimulatorInputStream();
+    private final OutputStream out = new SimulatorOutputStream();
+
+    private static class Reply {
+        final byte[] bytes;
+        final long firstByteAt;
+        int read;
+
+        Reply(byte[] bytes, long firstByteAt) {
+            this.bytes = bytes;
+            this.firstByteAt = firstByteAt;
+        }
+    }
+
+    public MI301Simulator() {
+        this(Integer.getInteger("pumpcontrol.sim.baud", 9600),
+             Integer.getInteger("pumpcontrol.sim.latency", 20000),
+             Integer.getInteger("pumpcontrol.sim.jitter", 5000),
+             Integer.getInteger("pumpcontrol.sim.drop", 0),
+             Integer.getInteger("pumpcontrol.sim.corrupt", 0),
+             Long.getLong("pumpcontrol.sim.seed", 1));
+        String items = System.getProperty("pumpcontrol.sim.items");
+        if (items != null && !items.trim().isEmpty()) {
+            for (String item : items.split(",")) {
+                String[] parts = item.trim().split("[/=]");
+                setItem(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+            }
+        }
+    }
+
+    /**
+     * @param baud - 0 for an infinitely fast line.
+     * @param latencyMicros - from request received to reply starting.
+     * @param jitterMicros - uniform random extra latency, up to this.
+     */
+    public MI301Simulator(int baud, int latencyMicros, int jitterMicros, int dropPerMille, int corruptPerMille, long seed) {
+        this.byteNanos = baud > 0 ? 10L * 1000 * 1000 * 1000 / baud : 0; // 8N1 - ten bits per byte.
+        this.latencyNanos = latencyMicros * 1000L;
+        this.jitterNanos = jitterMicros * 1000L;
+        this.dropPerMille = dropPerMille;
+        this.corruptPerMille = corruptPerMille;
+        this.random = new Random(seed);
+        Arrays.fill(items, -1);
+    }
+
+    /** Replies from the dongle. Reads time out after MI301DongleProxy.SO_TIMEOUT with 0 bytes, like RXTX. */
+    public InputStream getInputStream() {
+        return in;
+    }
+
+    /** Requests to the dongle. */
+    public OutputStream getOutputStream() {
+        return out;
+    }
+
+    public synchronized boolean isRunning() {
+        return running;
+    }
+
+    public synchronized int getMode() {
+        return mode;
+    }
+
+    public synchronized long getRequests() {
+        return requests;
+    }
+
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    public synchronized long getCorrupted() {
+        return corrupted;
+    }
+
+    /** Stop answering anything until the port is closed. */
+    public synchronized void setHung(boolean hung) {
+        this.hung = hung;
+    }
+
+    public synchronized boolean isHung() {
+        return hung;
+    }
+
+    /** The host closed the port: whatever was on the line is lost and a hung dongle comes back, unaddressed. */
+    public synchronized void portClosed() {
+        hung = false;
+        address = -1;
+        replies.clear();
+        framer.clear();
+    }
+
+    private synchronized void received(byte[] b, int off, int len) {
+        long now = System.nanoTime();
+        long arrival = Math.max(now, requestLineFreeAt) + len * byteNanos;
+        requestLineFreeAt = arrival;
+        int fed = 0;
+        while (fed < len) {
+            int n = Math.min(len - fed, framer.getFree());
+            framer.feed(b, off + fed, n);
+            fed += n;
+            while (framer.next(request)) {
+                requests++;
+                if (!hung) {
+                    answer(arrival);
+                }
+            }
+        }
+    }
+
+    private void answer(long arrival) {
+        int dst = request.getByte(2) & 0xff;
+        int seqno = request.getByte(3) & 0xff;
+        int payload = request.getTop() - 6;
+        int cls = payload > 0 ? request.getByte(4) & 0xff : -1;
+        reply[0] = 0x24;
+        reply[2] = (byte)dst;
+        reply[3] = (byte)seqno;
+        replyTop = GeniApdu.FIRST;
+        if (dst == 0) {
+            int ack = ACK_ID_UNKNOWN;
+            if (cls == 3 && payload >= 2) {
+                int id = request.getByte(5) & 0xff;
+                if (id == 7) {
+                    ack = ACK_OK;
+                    address = -1;
+                    running = false;
+                } else if (id == 16 && payload >= 4) {
+                    ack = ACK_OK;
+                    address = request.getByte(7) & 0xff;
+                }
+            }
+            replyApdu(3, ack);
+        } else {
+            if (address != 255 && address != pumpAddress) {
+                return; // Not in contact with our pump - silence.
+            }
+            int end = request.getTop() - 2;
+            for (int i = GeniApdu.FIRST; i + 1 < end; i += 2 + GeniApdu.length(request.getByte(i + 1))) {
+                answerApdu(i, Math.min(end, i + 2 + GeniApdu.length(request.getByte(i + 1))));
+            }
+        }
+        if (dropPerMille > 0 && random.nextInt(1000) < dropPerMille) {
+            dropped++;
+            return;
+        }
+        byte[] bytes = new byte[replyTop + 2];
+        System.arraycopy(reply, 0, bytes, 0, replyTop);
+        bytes[1] = (byte)(bytes.length - 4);
+        GeniCRC.appendTransmitterCheckValue(bytes, 1, bytes.length - 2);
+        if (corruptPerMille > 0 && random.nextInt(1000) < corruptPerMille) {
+            corrupted++;
+            bytes[1 + random.nextInt(bytes.length - 1)] ^= (byte)(1 << random.nextInt(8));
+        }
+        long due = arrival + latencyNanos + (jitterNanos > 0 ? (long)(random.nextDouble() * jitterNanos) : 0);
+        long firstByteAt = Math.max(due, replyLineFreeAt);
+        replyLineFreeAt = firstByteAt + bytes.length * byteNanos;
+        replies.add(new Reply(bytes, firstByteAt));
+        notifyAll();
+    }
+
+    /** One reply APDU for the request APDU at request[at..end). */
+    private void answerApdu(int at, int end) {
+        int cls = request.getByte(at) & 0xff;
+        int op = GeniApdu.op(request.getByte(at + 1));
+        int data = at + 2;
+        if (cls >= GeniApdu.CLASSES) {
+            replyApdu(cls, GeniApdu.ACK_CLASS_UNKNOWN);
+        } else if (cls == GeniApdu.CLASS_COMMAND && op == GeniApdu.OP_SET) {
+            int ack = ACK_OK;
+            for (int i = data; i < end; i++) {
+                int command = request.getByte(i) & 0xff;
+                if (command == CMD_STOP) {
+                    running = false;
+                } else if (command == CMD_START) {
+                    running = true;
+                } else if (command == CMD_CONSTANT_CURVE || command == CMD_MINIMUM) {
+                    mode = command;
+                } else {
+                    ack = ACK_ID_UNKNOWN;
+                }
+            }
+            replyApdu(cls, ack);
+        } else if (op == GeniApdu.OP_GET || op == GeniApdu.OP_INFO) {
+            for (int i = data; i < end; i++) {
+                if (getItem(cls, request.getByte(i) & 0xff) < 0) {
+                    replyApdu(cls, ACK_ID_UNKNOWN);
+                    return;
+                }
+            }
+            int apdu = replyApdu(cls, ACK_OK);
+            for (int i = data; i < end; i++) {
+                // INFO: a head without scaling for every item.
+                reply[replyTop++] = (byte)(op == GeniApdu.OP_GET ? getItem(cls, request.getByte(i) & 0xff) : 0x80);
+            }
+            reply[apdu + 1] = (byte)GeniApdu.opAndLength(ACK_OK, end - data);
+        } else if (op == GeniApdu.OP_SET && cls != GeniApdu.CLASS_MEASURED) {
+            for (int i = data; i + 1 < end; i += 2) {
+                items[cls << 8 | (request.getByte(i) & 0xff)] = request.getByte(i + 1) & 0xff;
+            }
+            replyApdu(cls, ACK_OK);
+        } else {
+            replyApdu(cls, GeniApdu.ACK_OPERATION_ILLEGAL);
+        }
+    }
+
+    /** @return where the APDU starts, its data is added after. */
+    private int replyApdu(int cls, int ack) {
+        int at = replyTop;
+        reply[replyTop++] = (byte)cls;
+        reply[replyTop++] = (byte)GeniApdu.opAndLength(ack, 0);
+        return at;
+    }
+
+    /** The GENI unit address the pump answers to. */
+    public synchronized void setPumpAddress(int pumpAddress) {
+        this.pumpAddress = pumpAddress;
+    }
+
+    public synchronized int getPumpAddress() {
+        return pumpAddress;
+    }
+
+    /** Give a data item a value, so GET and INFO of it are answered. -1 for unknown. */
+    public synchronized void setItem(int cls, int id, int value) {
+        items[cls << 8 | id] = value;
+    }
+
+    /** @return the value of a data item, -1 if the pump does not know it. */
+    public synchronized int getItem(int cls, int id) {
+        return items[cls << 8 | id];
+    }
+
+    /** @return bytes readable at the given time, without waiting. */
+    private int readable(long now) {
+        int n = 0;
+        for (Reply r : replies) {
+            if (now < r.firstByteAt) {
+                break;
+            }
+            int passed = byteNanos == 0 ? r.bytes.length : (int)Math.min(r.bytes.length, (now - r.firstByteAt) / byteNanos + 1);
+            n += passed - r.read;
+            if (passed < r.bytes.length) {
+                break;
+            }
+        }
+        return n;
+    }
+
+    private synchronized int read(byte[] b, int off, int len) throws IOException {
+        long deadline = System.nanoTime() + MI301DongleProxy.SO_TIMEOUT * 1000000L;
+        while (true) {
+            long now = System.nanoTime();
+            int n = Math.min(len, readable(now));
+            if (n > 0) {
+                int done = 0;
+                while (done < n) {
+                    Reply r = replies.peek();
+                    int chunk = Math.min(n - done, r.bytes.length - r.read);
+                    System.arraycopy(r.bytes, r.read, b, off + done, chunk);
+                    r.read += chunk;
+                    done += chunk;
+                    if (r.read == r.bytes.length) {
+                        replies.poll();
+                    }
+                }
+                return n;
+            }
+            long wait = deadline - now;
+            Reply next = replies.peek();
+            if (next != null) {
+                wait = Math.min(wait, Math.max(next.firstByteAt + (next.read + 1) * byteNanos - now, 1));
+            }
+            if (wait <= 0) {
+                return 0;
+            }
+            try {
+                wait(wait / 1000000, (int)(wait % 1000000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted");
+            }
+        }
+    }
+
+    private class SimulatorInputStream extends InputStream {
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return MI301Simulator.this.read(one, 0, 1) == 1 ? one[0] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return MI301Simulator.this.read(b, off, len);
+        }
+
+        @Override
+        public int available() {
+            synchronized (MI301Simulator.this) {
+                return readable(System.nanoTime());
+            }
+        }
+    }
+
+    private class SimulatorOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+            received(new byte[] { (byte)b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            received(b, off, len);
+        }
+    }
+
+    /**
+     * Serve a simulator on a TCP port, one connection at a time, for proxies started with
+     * a tcp:host:port link. Usage: MI301Simulator port
+     */
+    public static void main(String[] args) throws IOException {
+        ServerSocket server = new ServerSocket(Integer.parseInt(args[0]));
+        System.out.println("Simulated MI301 on port " + server.getLocalPort());
+        while (true) {
+            final Socket socket = server.accept();
+            socket.setTcpNoDelay(true);
+            final MI301Simulator sim = new MI301Simulator();
+            Thread replies = new Thread("sim-replies") {
+                @Override
+                public void run() {
+                    byte[] buffer = new byte[512];
+                    try {
+                        OutputStream to = socket.getOutputStream();
+                        while (!socket.isClosed()) {
+                            int n = sim.getInputStream().read(buffer, 0, buffer.length);
+                            if (n > 0) {
+                                to.write(buffer, 0, n);
+                            }
+                        }
+                    } catch (IOException e) {
+                        // Connection gone.
+                    }
+                }
+            };
+            replies.setDaemon(true);
+            replies.start();
+            try {
+                InputStream from = socket.getInputStream();
+                byte[] buffer = new byte[512];
+                int n;
+                while ((n = from.read(buffer)) >= 0) {
+                    sim.getOutputStream().write(buffer, 0, n);
+                }
+            } catch (IOException e) {
+                // Connection gone.
+            } finally {
+                socket.close();
+                System.out.println("Simulated MI301: " + sim.getRequests() + " requests, dropped " + sim.getDropped()
+                        + ", corrupted " + sim.getCorrupted());
+            }
+        }
+    }
+}
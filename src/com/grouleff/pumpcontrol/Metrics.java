@@ -0,0 +1,262 @@
+package com.grouleff.pumpcontrol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Numbers on how the link, the proxy and the control loop behave, served as Prometheus
+ * text on a local HTTP port.
+ *
+ * Counters are LongAdders - striped, so the serial threads never contend on a cache
+ * line - and histograms have fixed buckets, a LongAdder each. Recording allocates
+ * nothing and costs nanoseconds; only scraping walks the registry. Gauges read values
+ * their owners already keep, e.g. TelegramFramer's counters, at scrape time.
+ *
+ * Metrics are registered once, typically in a static or final field, and found again
+ * by name and labels, so registering twice gives the same metric.
+ *
+ * Configured by system properties:
+ *  pumpcontrol.metrics.port - serve /metrics on this port (not served without it)
+ *  pumpcontrol.metrics.host - address to bind (default 127.0.0.1, local only)
+ */
+public final class Metrics {
+    /** Upper bounds for round trips and ticks: 100 us to 2.5 s. */
+    public static final long[] LATENCY_NANOS = {
+        100000L, 250000L, 500000L,
+        1000000L, 2500000L, 5000000L,
+        10000000L, 25000000L, 50000000L,
+        100000000L, 250000000L, 500000000L,
+        1000000000L, 2500000000L,
+    };
+
+    private static final Map<String, Family> FAMILIES = new LinkedHashMap<String, Family>(); // Under itself.
+    private static HttpServer server;
+
+    private Metrics() {
+    }
+
+    public static final class Counter {
+        private final LongAdder adder = new LongAdder();
+
+        public void inc() {
+            adder.increment();
+        }
+
+        public void add(long n) {
+            adder.add(n);
+        }
+
+        public long get() {
+            return adder.sum();
+        }
+    }
+
+    public static final class Histogram {
+        private final long[] bounds;
+        private final LongAdder[] buckets; // One past the bounds, for +Inf.
+        private final LongAdder sumNanos = new LongAdder();
+
+        Histogram(long[] boundsNanos) {
+            bounds = boundsNanos.clone();
+            buckets = new LongAdder[bounds.length + 1];
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public void record(long nanos) {
+            int i = 0;
+            while (i < bounds.length && nanos > bounds[i]) {
+                i++;
+            }
+            buckets[i].increment();
+            sumNanos.add(nanos);
+        }
+
+        /** Record the time since startNanos, from System.nanoTime(). */
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        public long getCount() {
+            long n = 0;
+            for (LongAdder b : buckets) {
+                n += b.sum();
+            }
+            return n;
+        }
+    }
+
+    private static final class Family {
+        final String name;
+        final String help;
+        final String type;
+        final Map<String, Object> series = new LinkedHashMap<String, Object>(); // By labels.
+
+        Family(String name, String help, String type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    /** @return labels for a metric, e.g. label("port", "/dev/ttyUSB0"). */
+    public static String label(String name, String value) {
+        return name + "=\"" + value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + "\"";
+    }
+
+    public static Counter counter(String name, String help) {
+        return counter(name, "", help);
+    }
+
+    public static Counter counter(String name, String labels, String help) {
+        return (Counter)register(name, labels, help, "counter", null);
+    }
+
+    public static Histogram histogram(String name, String help) {
+        return histogram(name, "", help, LATENCY_NANOS);
+    }
+
+    /** @param name - should end in _seconds; recorded in nanos, served in seconds. */
+    public static Histogram histogram(String name, String labels, String help, long... boundsNanos) {
+        return (Histogram)register(name, labels, help, "histogram", boundsNanos);
+    }
+
+    /** A value read when scraped. Registering again replaces the supplier, e.g. for a new instance. */
+    public static void gauge(String name, String labels, String help, LongSupplier value) {
+        synchronized (FAMILIES) {
+            family(name, help, "gauge").series.put(labels, value);
+        }
+    }
+
+    /** Like gauge(), for a count that only grows. */
+    public static void counterOf(String name, String labels, String help, LongSupplier value) {
+        synchronized (FAMILIES) {
+            family(name, help, "counter").series.put(labels, value);
+        }
+    }
+
+    private static Object register(String name, String labels, String help, String type, long[] bounds) {
+        synchronized (FAMILIES) {
+            Family f = family(name, help, type);
+            Object metric = f.series.get(labels);
+            if (metric == null) {
+                metric = bounds == null ? new Counter() : new Histogram(bounds);
+                f.series.put(labels, metric);
+            }
+            return metric;
+        }
+    }
+
+    private static Family family(String name, String help, String type) {
+        Family f = FAMILIES.get(name);
+        if (f == null) {
+            f = new Family(name, help, type);
+            FAMILIES.put(name, f);
+        } else if (!f.type.equals(type)) {
+            throw new IllegalArgumentException(name + " is a " + f.type);
+        }
+        return f;
+    }
+
+    /** Everything, in the Prometheus text format. */
+    public static void writeText(StringBuilder out) {
+        List<Family> families;
+        synchronized (FAMILIES) {
+            families = new ArrayList<Family>(FAMILIES.values());
+        }
+        for (Family f : families) {
+            List<Map.Entry<String, Object>> series;
+            synchronized (FAMILIES) {
+                series = new ArrayList<Map.Entry<String, Object>>(f.series.entrySet());
+            }
+            out.append("# HELP ").append(f.name).append(' ').append(f.help).append('\n');
+            out.append("# TYPE ").append(f.name).append(' ').append(f.type).append('\n');
+            for (Map.Entry<String, Object> s : series) {
+                String labels = s.getKey();
+                Object metric = s.getValue();
+                if (metric instanceof Histogram) {
+                    writeHistogram(out, f.name, labels, (Histogram)metric);
+                } else {
+                    long value = metric instanceof Counter ? ((Counter)metric).get() : ((LongSupplier)metric).getAsLong();
+                    sample(out, f.name, labels, null, Long.toString(value));
+                }
+            }
+        }
+    }
+
+    private static void writeHistogram(StringBuilder out, String name, String labels, Histogram h) {
+        long cumulative = 0;
+        for (int i = 0; i < h.buckets.length; i++) {
+            cumulative += h.buckets[i].sum();
+            String le = i < h.bounds.length ? Double.toString(h.bounds[i] / 1e9) : "+Inf";
+            sample(out, name + "_bucket", labels, "le=\"" + le + "\"", Long.toString(cumulative));
+        }
+        sample(out, name + "_sum", labels, null, Double.toString(h.sumNanos.sum() / 1e9));
+        sample(out, name + "_count", labels, null, Long.toString(cumulative));
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, String extra, String value) {
+        out.append(name);
+        if (!labels.isEmpty() || extra != null) {
+            out.append('{').append(labels);
+            if (extra != null) {
+                out.append(labels.isEmpty() ? "" : ",").append(extra);
+            }
+            out.append('}');
+        }
+        out.append(' ').append(value).append('\n');
+    }
+
+    /** Serve /metrics if pumpcontrol.metrics.port is set. */
+    public static void serveFromProperties() {
+        Integer port = Integer.getInteger("pumpcontrol.metrics.port");
+        if (port != null) {
+            try {
+                serve(System.getProperty("pumpcontrol.metrics.host", "127.0.0.1"), port);
+            } catch (IOException e) {
+                System.err.println("Metrics not served on port " + port + ": " + e);
+            }
+        }
+    }
+
+    public static synchronized void serve(String host, int port) throws IOException {
+        if (server != null) {
+            return;
+        }
+        server = HttpServer.create(new InetSocketAddress(host, port), 4);
+        server.createContext("/metrics", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                StringBuilder sb = new StringBuilder(8192);
+                writeText(sb);
+                byte[] body = sb.toString().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        server.start(); // One dispatcher thread - scrapes are rare and quick.
+    }
+
+    public static synchronized void stopServing() {
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+    }
+}
@@ -0,0 +1,326 @@
+package com.grouleff.pumpcontrol;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Non-blocking alternative to Listener/Client: one event loop thread accepts, reads,
+ * frames and writes for every TCP client, and one dongle thread does the serial
+ * exchanges. Idle sockets cost nothing but a selection key.
+ *
+ * Each connection may have MAX_PENDING telegrams waiting for the dongle; beyond that
+ * (or when its replies are not being read) the loop stops reading from that socket,
+ * so a client pushing too fast is held back by TCP flow control. Connections with
+ * work are served round robin, one telegram at a time.
+ */
+public class NioListener {
+    private static final int BACKLOG = 50;
+    private static final int MAX_CONNECTIONS = 64;
+    private static final int MAX_PENDING = 4;
+    private static final int MAX_TELEGRAM = 255 + 4;
+    private static final int OUT_CAPACITY = 4 * 1024;
+    private static final int REVC_PKG_TIMEOUT = 2000;
+    private static final long IDLE_TIME_OUT = 60 * 1000;
+
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(4096);
+    private int connectionCount;
+
+    /** Connections with requests for the dongle thread, each queued at most once. */
+    private final BlockingQueue<Connection> ready = new ArrayBlockingQueue<Connection>(MAX_CONNECTIONS);
+    /** Connections the dongle thread has replied to, for the event loop. */
+    private final BlockingQueue<Connection> replied = new ArrayBlockingQueue<Connection>(MAX_CONNECTIONS * (MAX_PENDING + 1));
+
+    public NioListener(int port) throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.socket().bind(new InetSocketAddress(port), BACKLOG);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        Thread worker = new Thread(new DongleWorker(), "dongle-worker");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    private final class Connection {
+        final SocketChannel channel;
+        final SelectionKey key;
+        final String name;
+        final String upstream, downstream; // Log prefixes. The link logs what is forwarded.
+        final TelegramFramer framer = new TelegramFramer();
+        final ByteBuffer out = ByteBuffer.allocate(OUT_CAPACITY); // kept in fill mode.
+        // Guarded by this:
+        final ArrayDeque<Packet> requests = new ArrayDeque<Packet>(MAX_PENDING);
+        final ArrayDeque<Packet> replies = new ArrayDeque<Packet>(MAX_PENDING);
+        boolean queued;
+        boolean closed;
+        // Event loop only:
+        long lastUse = System.currentTimeMillis();
+
+        Connection(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            this.name = "" + channel.socket().getRemoteSocketAddress();
+            this.upstream = name + " >>>";
+            this.downstream = name + " <<<";
+            this.key = channel.register(selector, SelectionKey.OP_READ, this);
+            framer.countInto(Client.SKIPPED, Client.CRC_REJECTS);
+            Client.CONNECTIONS.inc();
+        }
+    }
+
+    public void listenForever() {
+        long lastSweep = System.currentTimeMillis();
+        while (true) {
+            try {
+                selector.select(1000);
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection c = (Connection)key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            read(c);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            write(c);
+                        }
+                    } catch (IOException e) {
+                        close(c);
+                    }
+                }
+                Connection c;
+                while ((c = replied.poll()) != null) {
+                    try {
+                        write(c);
+                    } catch (IOException e) {
+                        close(c);
+                    }
+                }
+                long now = System.currentTimeMillis();
+                if (now - lastSweep > 1000) {
+                    lastSweep = now;
+                    closeIdle(now);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        if (connectionCount >= MAX_CONNECTIONS) {
+            System.err.println("Client refused, too many connections: " + channel.socket().getRemoteSocketAddress());
+            channel.close();
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        Connection c = new Connection(channel);
+        connectionCount++;
+        System.err.println("Client connected: " + c.name);
+    }
+
+    private void read(Connection c) throws IOException {
+        ((Buffer)readBuffer).clear();
+        ((Buffer)readBuffer).limit(Math.min(readBuffer.capacity(), c.framer.getFree()));
+        int n = c.channel.read(readBuffer);
+        if (n < 0) {
+            close(c);
+            return;
+        }
+        c.framer.feed(readBuffer.array(), 0, n);
+        c.lastUse = System.currentTimeMillis();
+        takeRequests(c);
+    }
+
+    /** Move framed telegrams to the request queue while there is room, and adjust read interest. */
+    private void takeRequests(Connection c) {
+        boolean full;
+        synchronized (c) {
+            while (c.requests.size() < MAX_PENDING) {
+                Packet p = PacketPool.SHARED.acquire();
+                if (!c.framer.next(p)) {
+                    PacketPool.SHARED.release(p);
+                    break;
+                }
+                c.requests.add(p);
+            }
+            if (!c.requests.isEmpty() && !c.queued) {
+                c.queued = ready.offer(c);
+            }
+            full = c.requests.size() >= MAX_PENDING
+                || !c.replies.isEmpty()
+                || c.out.remaining() < MAX_PENDING * MAX_TELEGRAM;
+        }
+        if (c.key.isValid()) {
+            int ops = c.key.interestOps();
+            c.key.interestOps(full ? (ops & ~SelectionKey.OP_READ) : (ops | SelectionKey.OP_READ));
+        }
+    }
+
+    private void write(Connection c) throws IOException {
+        if (!c.key.isValid()) {
+            return;
+        }
+        synchronized (c) {
+            while (!c.replies.isEmpty() && c.replies.peek().getTop() <= c.out.remaining()) {
+                Packet reply = c.replies.poll();
+                reply.view().copyTo(c.out);
+                PacketPool.SHARED.release(reply);
+            }
+        }
+        ((Buffer)c.out).flip();
+        c.channel.write(c.out);
+        c.out.compact();
+        int ops = c.key.interestOps();
+        c.key.interestOps(c.out.position() > 0 ? (ops | SelectionKey.OP_WRITE) : (ops & ~SelectionKey.OP_WRITE));
+        takeRequests(c); // Telegrams left in the framer while we were holding back.
+    }
+
+    private void closeIdle(long now) {
+        for (SelectionKey key : selector.keys()) {
+            Object attachment = key.attachment();
+            if (attachment instanceof Connection) {
+                Connection c = (Connection)attachment;
+                boolean busy;
+                synchronized (c) {
+                    busy = !c.requests.isEmpty() || !c.replies.isEmpty();
+                }
+                if (!busy && now - c.lastUse > IDLE_TIME_OUT) {
+                    close(c);
+                }
+            }
+        }
+    }
+
+    private void close(Connection c) {
+        if (c.key.isValid()) {
+            connectionCount--;
+            System.err.println("Client " + c.name + " closed, framing: " + c.framer);
+        }
+        c.key.cancel();
+        try {
+            c.channel.close();
+        } catch (IOException e) {
+        }
+        synchronized (c) {
+            c.closed = true;
+            while (!c.replies.isEmpty()) {
+                PacketPool.SHARED.release(c.replies.poll());
+            }
+            // requests still queued are released by the dongle thread.
+        }
+    }
+
+    /** Does the serial exchanges, one telegram per ready connection in turn. */
+    private final class DongleWorker implements Runnable {
+        private RXTXLink dongle;
+        private LinkArbiter.Lease lease;
+
+        @Override
+        public void run() {
+            while (true) {
+                Connection c;
+                try {
+                    c = ready.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                Packet request;
+                synchronized (c) {
+                    request = c.requests.poll();
+                    if (c.closed) {
+                        while (request != null) {
+                            PacketPool.SHARED.release(request);
+                            request = c.requests.poll();
+                        }
+                        c.queued = false;
+                        continue;
+                    }
+                }
+                Packet reply = exchange(c, request);
+                synchronized (c) {
+                    if (reply != null) {
+                        if (c.closed) {
+                            PacketPool.SHARED.release(reply);
+                        } else {
+                            c.replies.add(reply);
+                        }
+                    }
+                    // Back of the line, so other connections get their turn.
+                    c.queued = !c.requests.isEmpty() && ready.offer(c);
+                }
+                replied.offer(c);
+                selector.wakeup();
+            }
+        }
+
+        /** One telegram per lease, so the scheduler gets in between any two. */
+        private Packet exchange(Connection c, Packet request) {
+            Packet reply = PacketPool.SHARED.acquire();
+            try {
+                if (dongle == null) {
+                    dongle = MI301DongleProxy.getLink();
+                    lease = dongle.getArbiter().newLease("proxy", LinkArbiter.PRIORITY_CLIENT);
+                    if (lease.acquire(REVC_PKG_TIMEOUT)) {
+                        try {
+                            Client.resetDongle(dongle);
+                        } finally {
+                            lease.release();
+                        }
+                    }
+                }
+                if (!lease.acquire(REVC_PKG_TIMEOUT)) {
+                    request.log(PacketLog.Tag.DROPPED, c.upstream);
+                    return null;
+                }
+                try {
+                    int original = request.getSeqnoAndSrcField();
+                    Client.REQUESTS.inc();
+                    // One attempt, timed by the link's round trips. Not sent again - the client does that, as in Client.
+                    if (dongle.exchange(request, reply, dongle.getRtt().getTimeoutMillis())) {
+                        reply.setSeqnoAndSrcField((byte)original);
+                        reply.updateLengthAndCheckSum();
+                        return reply;
+                    }
+                    Client.LOST_REPLIES.inc();
+                    Client.INCOMPLETE.inc();
+                    request.log(PacketLog.Tag.INCOMPLETE, c.downstream); // No reply to it.
+                } finally {
+                    lease.release();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                PacketPool.SHARED.release(request);
+            }
+            PacketPool.SHARED.release(reply);
+            return null;
+        }
+    }
+}
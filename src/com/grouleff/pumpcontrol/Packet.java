@@ -17,10 +17,17 @@ public class Packet implements Cloneable {
 	private byte[] buffer = new byte[300];
 	private int top = 0;
 	private boolean complete;
+	// CRC-Accumulator over buffer[1..crcTop), fed while the telegram arrives.
+	private GeniCRC.Accumulator crc = new GeniCRC.Accumulator();
+	private int crcTop = 1;
+	private TelegramView view;
+	private static final Metrics.Counter RESYNC_SKIPPED = Metrics.counter("pumpcontrol_packet_resync_skipped_bytes_total",
+			"Bytes dropped by Packet.readFrom looking for a start delimiter.");
 	
 	public void reset() {
 		top = 0;
 		complete = false;
+		invalidateChecksum();
 	}
 	
 	public Packet() {
@@ -28,8 +35,32 @@ public class Packet implements Cloneable {
 	
 	public Packet(byte[] completeTelegram) {
 		// wrap a complete telegram as a packet...
-		top = completeTelegram.length;
-		System.arraycopy(completeTelegram, 0, buffer, 0, top);
+		copyFrom(completeTelegram, 0, completeTelegram.length);
+	}
+
+	/** Replace content with a telegram from raw[offset..offset+length), without allocating. */
+	public void copyFrom(byte[] raw, int offset, int length) {
+		System.arraycopy(raw, offset, buffer, 0, length);
+		top = length;
+		complete = false;
+		invalidateChecksum();
+	}
+
+	/** Allocation free alternative to clone(), e.g. into a pooled packet. */
+	public void copyFrom(Packet other) {
+		copyFrom(other.buffer, 0, other.top);
+		complete = other.complete;
+	}
+
+	/**
+	 * @return a read-only view of the current content. The same view instance is
+	 * returned every time, and it follows later changes to this packet.
+	 */
+	public TelegramView view() {
+		if (view == null) {
+			view = new TelegramView();
+		}
+		return view.wrap(buffer, 0, top);
 	}
 
     @Override
@@ -37,6 +68,9 @@ public class Packet implements Cloneable {
 		Packet clone = (Packet)super.clone();
 		clone.buffer = new byte[buffer.length];
 		System.arraycopy(buffer, 0, clone.buffer, 0, top);
+		clone.crc = new GeniCRC.Accumulator();
+		clone.crcTop = 1;
+		clone.view = null;
 		return clone;
 	}
 	
@@ -59,7 +93,9 @@ public class Packet implements Cloneable {
 					if (isValidStartDelimiter(buffer[1])) {
 						buffer[0] = buffer[1];
 						top = 1;
+						RESYNC_SKIPPED.inc();
 					} else {
+						RESYNC_SKIPPED.add(top);
 						top = 0;
 					}
 				}
@@ -75,6 +111,7 @@ public class Packet implements Cloneable {
 				}
 				if (readLen >= 0) {
 					top += readLen;
+					feedChecksum(Math.min(top, len - 2));
 					if (top == len) {
 						complete = true;
 					}
@@ -96,6 +133,16 @@ public class Packet implements Cloneable {
 		top++;
 	}
 	
+	public void addBytes(byte[] raw, int offset, int length) {
+		System.arraycopy(raw, offset, buffer, top, length);
+		top += length;
+	}
+
+	/** For framers that have already seen the whole telegram. */
+	void markComplete() {
+		complete = true;
+	}
+	
 	public void addInt32Bit(int intVal32bits) {
 		byte msb = (byte)((intVal32bits >>> 24) & 0xff);
 		byte b2 = (byte)((intVal32bits >>> 16) & 0xff);
@@ -135,6 +182,7 @@ public class Packet implements Cloneable {
 
 	public void setGeniDstAndDeviceHandle(byte d) {
 		buffer[2] = d;
+		invalidateChecksum();
 	}
 	
 	public byte getSeqnoAndSrcField() {
@@ -143,36 +191,28 @@ public class Packet implements Cloneable {
 
 	public void setSeqnoAndSrcField(byte s) {
 		buffer[3] = s;
+		invalidateChecksum();
 	}
 
-    public void writeTo(OutputStream outputStream) throws IOException {
-        writeTo(outputStream, false);
-    }
-	public void writeTo(OutputStream outputStream, boolean chunked) throws IOException {
-        System.err.println("send: " + this.toString());
-	    int written = 0;
-	    while (written < top) {
-	        int todo = 1 + (117 * written + 7 * top) % 23;
-	        if (todo > (top - written)) {
-	            todo = top - written;
-	        }
-	        if (!chunked) {
-	            todo = top;
-	        }
-	        outputStream.write(buffer, written, todo);
-	        outputStream.flush();
-            written += todo;
-            if (written < top) {
-                try {
-                    Thread.sleep(10);
-                } catch (InterruptedException e) {
-                }
-            }
-	    }
+	public void writeTo(OutputStream outputStream) throws IOException {
+		log(PacketLog.Tag.SEND, null);
+		outputStream.write(buffer, 0, top);
+		outputStream.flush();
+	}
+
+	/** Queue for the link's writer thread. Pacing, if the dongle needs it, is the writer's ThrottlePolicy. */
+	void writeTo(SerialWriter writer, boolean urgent) throws IOException {
+		log(PacketLog.Tag.SEND, null);
+		writer.write(buffer, 0, top, urgent);
 	}
 
 	public static Packet readFrom(InputStream inputStream, int timeout) throws IOException {
-        Packet p = new Packet();
+		return readFrom(inputStream, timeout, new Packet());
+	}
+
+	/** Like readFrom(InputStream, int), but reading into a caller supplied (reusable) packet. */
+	public static Packet readFrom(InputStream inputStream, int timeout, Packet p) throws IOException {
+        p.reset();
         long startedAt = System.currentTimeMillis();
         while (!p.isComplete()) {
             p.readFrom(inputStream);
@@ -181,7 +221,7 @@ public class Packet implements Cloneable {
                 break;
             }
         }
-        System.err.println("Recv: " + p);
+        p.log(PacketLog.Tag.RECV, null);
         return p;
 	}
 	
@@ -189,6 +229,12 @@ public class Packet implements Cloneable {
 		return buffer[i];
 	}
 
+	/** Overwrite a byte already added, e.g. a length filled in once known. */
+	public void setByte(int i, int b) {
+		buffer[i] = (byte)b;
+		invalidateChecksum();
+	}
+
 	public byte getPayloadByte(int i) {
 		return buffer[i + 4];
 	}
@@ -211,33 +257,41 @@ public class Packet implements Cloneable {
 
     public void updateLengthAndCheckSum() {
         buffer[1] = (byte)(top - 4);
-        GeniCRC.appendTransmitterCheckValue(buffer, 1, top - 2);
+        invalidateChecksum();
+        int checkValue = calculatebufferChecksum();
+        buffer[top - 2] = (byte)((checkValue >>> 8) & 0xff);
+        buffer[top - 1] = (byte)(checkValue & 0xff);
     }
 
+	/** Only bytes not already seen by the accumulator are processed. */
 	public int calculatebufferChecksum() {
-		return GeniCRC.calculateTransmitterCheckValue(buffer, 1, top - 2);
+		feedChecksum(top - 2);
+		return crc.getCheckValue();
 	}
 
-	private void hex(byte b, StringBuilder sb) {
-		String hexString = Integer.toHexString(((int)b) & 0xff);
-		if (hexString.length() < 2) {
-			sb.append('0');
+	private void feedChecksum(int end) {
+		if (end < crcTop) {
+			invalidateChecksum();
+		}
+		if (end > crcTop) {
+			crc.update(buffer, crcTop, end);
+			crcTop = end;
 		}
-		sb.append(hexString.toUpperCase());
+	}
+
+	private void invalidateChecksum() {
+		crc.reset();
+		crcTop = 1;
+	}
+
+	/** Hand the current content to the background logger - cheap, no formatting here. */
+	public void log(PacketLog.Tag tag, String source) {
+		PacketLog.log(tag, source, buffer, 0, top);
 	}
 	
 	@Override
 	public String toString() {
-		StringBuilder sb = new StringBuilder();
-		for (int i = 0; i < top; i++) {
-			hex(buffer[i], sb);
-			if (((i+1) % 16) == 0) {
-				sb.append("\n     ");
-			} else {
-				sb.append(' ');
-			}
-		}
-		return sb.toString();
+		return Hex.toString(buffer, 0, top);
 	}
 
     public Packet close() {
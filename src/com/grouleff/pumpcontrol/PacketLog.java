@@ -0,0 +1,301 @@
+package com.grouleff.pumpcontrol;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Telegram logging off the I/O path. log() copies the raw bytes and a timestamp into a
+ * preallocated ring and returns; a background thread formats and prints them. When the
+ * ring is full - the console cannot keep up - the entry is counted as dropped instead of
+ * blocking the serial link.
+ *
+ * Configured by system properties:
+ *  pumpcontrol.log=off|errors|telegrams (default telegrams - everything, as always)
+ *  pumpcontrol.log.sample=N - log only every Nth normal telegram (errors are never sampled)
+ *  pumpcontrol.log.ring=N - slots in the ring, rounded up to a power of two (default 1024)
+ *  pumpcontrol.capture=DIR - also record every telegram on the serial link into a
+ *      CaptureWriter in DIR. Capture entries go through a ring and thread of their own,
+ *      independent of the log level and the console, and are never dropped.
+ *  pumpcontrol.capture.ring=N - slots in the capture ring (default 1024)
+ */
+public final class PacketLog {
+
+    public enum Level { OFF, ERRORS, TELEGRAMS }
+
+    public enum Tag {
+        SEND("send: ", true, false),
+        RECV("Recv: ", true, false),
+        FORWARD("", false, false),
+        INCOMPLETE("INCOMPLETE  ", false, true),
+        UNMATCHED("UNMATCHED ", false, true),
+        DROPPED("BUSY, dropped ", false, true),
+        CAPTURE_TX(CaptureWriter.DIRECTION_TX),
+        CAPTURE_RX(CaptureWriter.DIRECTION_RX);
+
+        final String label;
+        final boolean toErr;
+        final boolean error;
+        final int direction; // Capture direction, -1 for printed tags.
+
+        Tag(String label, boolean toErr, boolean error) {
+            this.label = label;
+            this.toErr = toErr;
+            this.error = error;
+            this.direction = -1;
+        }
+
+        Tag(int direction) {
+            this.label = "";
+            this.toErr = false;
+            this.error = false;
+            this.direction = direction;
+        }
+
+        PrintStream stream() {
+            return toErr ? System.err : System.out;
+        }
+    }
+
+    private static final int MAX_TELEGRAM = 300;
+
+    private static final Level level = Level.valueOf(System.getProperty("pumpcontrol.log", "telegrams").toUpperCase());
+    private static final int sampleEvery = Math.max(1, Integer.getInteger("pumpcontrol.log.sample", 1));
+    private static final String captureDir = System.getProperty("pumpcontrol.capture");
+
+    /**
+     * Preallocated entries, handed from any number of loggers to one consumer thread.
+     * Slot i holds the entry with sequence number s when published[i] == s.
+     */
+    private static final class Ring {
+        final int capacity;
+        final int mask;
+        final byte[][] data;
+        final int[] lengths;
+        final long[] nanos;
+        final Tag[] tags;
+        final String[] sources;
+        final AtomicLongArray published;
+        final AtomicLong claimed = new AtomicLong();
+        volatile long consumed;
+        volatile boolean consumerIdle;
+        Thread consumer;
+
+        Ring(int slots) {
+            capacity = Integer.highestOneBit(Math.max(2, slots - 1)) << 1;
+            mask = capacity - 1;
+            data = new byte[capacity][MAX_TELEGRAM];
+            lengths = new int[capacity];
+            nanos = new long[capacity];
+            tags = new Tag[capacity];
+            sources = new String[capacity];
+            published = new AtomicLongArray(capacity);
+            for (int i = 0; i < capacity; i++) {
+                published.set(i, -1);
+            }
+        }
+
+        /** @return the sequence number of a free slot, or -1 if the ring is full. */
+        long claim() {
+            long seq;
+            do {
+                seq = claimed.get();
+                if (seq - consumed >= capacity) {
+                    return -1;
+                }
+            } while (!claimed.compareAndSet(seq, seq + 1));
+            return seq;
+        }
+
+        void publish(long seq, Tag tag, String source, byte[] raw, int offset, int length) {
+            int slot = (int)(seq & mask);
+            int len = Math.min(length, MAX_TELEGRAM);
+            System.arraycopy(raw, offset, data[slot], 0, len);
+            lengths[slot] = len;
+            nanos[slot] = System.nanoTime();
+            tags[slot] = tag;
+            sources[slot] = source;
+            published.set(slot, seq);
+            if (consumerIdle) {
+                LockSupport.unpark(consumer);
+            }
+        }
+
+        /** Consumer only. @return the slot of entry next, once published. */
+        int await(long next) {
+            int slot = (int)(next & mask);
+            while (published.get(slot) != next) {
+                consumerIdle = true;
+                if (published.get(slot) != next) {
+                    LockSupport.parkNanos(1000L * 1000 * 1000);
+                }
+                consumerIdle = false;
+            }
+            return slot;
+        }
+
+        void start(Thread consumer) {
+            this.consumer = consumer;
+            consumer.setDaemon(true);
+            consumer.start();
+        }
+    }
+
+    // Printed lines and capture records have a ring each, so a slow console costs no capture records.
+    private static final Ring lines = new Ring(Integer.getInteger("pumpcontrol.log.ring", 1024));
+    private static final Ring records = new Ring(captureDir == null ? 2 : Integer.getInteger("pumpcontrol.capture.ring", 1024));
+    private static final AtomicLong dropped = new AtomicLong();
+    private static final AtomicLong captureWaits = new AtomicLong();
+    private static int sampleCounter; // Racy on purpose, sampling need not be exact.
+
+    private static CaptureWriter capture; // Written by the capture thread, closed by the shutdown hook.
+    // nanoTime is monotonic but has no epoch; captures want wall clock time.
+    private static final long epochNanosBase = System.currentTimeMillis() * 1000000 - System.nanoTime();
+
+    static {
+        if (captureDir != null) {
+            capture = new CaptureWriter(new File(captureDir));
+            Runtime.getRuntime().addShutdownHook(new Thread("capture-close") {
+                @Override
+                public void run() {
+                    closeCapture();
+                }
+            });
+            records.start(new Thread("packet-capture") {
+                @Override
+                public void run() {
+                    consumeRecords();
+                }
+            });
+        }
+        if (level != Level.OFF) {
+            lines.start(new Thread("packet-log") {
+                @Override
+                public void run() {
+                    consumeLines();
+                }
+            });
+        }
+    }
+
+    private PacketLog() {
+        // static stuff only.
+    }
+
+    /** @return true if anything with this tag would be logged - lets callers skip work. */
+    public static boolean isEnabled(Tag tag) {
+        if (tag.direction >= 0) {
+            return captureDir != null;
+        }
+        return level == Level.TELEGRAMS || (level == Level.ERRORS && tag.error);
+    }
+
+    /**
+     * Queue a telegram for logging. Never allocates. A line to print never blocks - it is
+     * dropped if the console is behind; a capture record waits for room instead, as a
+     * capture with telegrams missing would replay wrong.
+     *
+     * @param source - prefix such as ">>>" or the client name, may be null. Should be a constant.
+     */
+    public static void log(Tag tag, String source, byte[] raw, int offset, int length) {
+        if (!isEnabled(tag)) {
+            return;
+        }
+        if (tag.direction >= 0) {
+            long seq = records.claim();
+            if (seq < 0) {
+                captureWaits.incrementAndGet();
+                do {
+                    LockSupport.parkNanos(100 * 1000);
+                } while ((seq = records.claim()) < 0);
+            }
+            records.publish(seq, tag, source, raw, offset, length);
+            return;
+        }
+        if (!tag.error && sampleEvery > 1 && (sampleCounter++ % sampleEvery) != 0) {
+            return;
+        }
+        long seq = lines.claim();
+        if (seq < 0) {
+            dropped.incrementAndGet();
+            return;
+        }
+        lines.publish(seq, tag, source, raw, offset, length);
+    }
+
+    /** @return true if serial traffic is being recorded to a capture. */
+    public static boolean isCapturing() {
+        return captureDir != null;
+    }
+
+    /** @return lines not printed because the console was behind. */
+    public static long getDropped() {
+        return dropped.get();
+    }
+
+    /** @return capture records that had to wait for the capture file to catch up. */
+    public static long getCaptureWaits() {
+        return captureWaits.get();
+    }
+
+    private static void consumeLines() {
+        StringBuilder sb = new StringBuilder(1024);
+        long reportedDropped = 0;
+        for (long next = 0; ; next++) {
+            int slot = lines.await(next);
+            Tag tag = lines.tags[slot];
+            sb.setLength(0);
+            if (lines.sources[slot] != null) {
+                sb.append(lines.sources[slot]).append(' ');
+            }
+            sb.append(tag.label);
+            Hex.append(sb, lines.data[slot], 0, lines.lengths[slot]);
+            lines.consumed = next + 1; // Slot may be reused from here on.
+            tag.stream().println(sb);
+            long d = dropped.get();
+            if (d != reportedDropped) {
+                System.err.println("Packet log dropped " + (d - reportedDropped) + " entries");
+                reportedDropped = d;
+            }
+        }
+    }
+
+    private static void consumeRecords() {
+        for (long next = 0; ; next++) {
+            int slot = records.await(next);
+            appendCapture(records.tags[slot].direction, epochNanosBase + records.nanos[slot], records.data[slot], records.lengths[slot]);
+            records.consumed = next + 1;
+        }
+    }
+
+    private static void appendCapture(int direction, long epochNanos, byte[] raw, int length) {
+        synchronized (PacketLog.class) {
+            if (capture == null) {
+                return;
+            }
+            try {
+                capture.append(direction, epochNanos, raw, 0, length);
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.err.println("Capture stopped");
+                closeCapture();
+            }
+        }
+    }
+
+    private static void closeCapture() {
+        synchronized (PacketLog.class) {
+            if (capture != null) {
+                try {
+                    capture.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                capture = null;
+            }
+        }
+    }
+}
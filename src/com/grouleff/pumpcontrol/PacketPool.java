@@ -0,0 +1,56 @@
+package com.grouleff.pumpcontrol;
+
+/**
+ * Bounded free list of Packets, so the proxy and scheduler loops can reuse
+ * their 300 byte buffers instead of allocating one per telegram.
+ *
+ * acquire() hands out a reset packet, allocating only when the pool is empty.
+ * release() must be called exactly once per acquired packet, and the packet
+ * must not be touched afterwards. Packets beyond capacity are left to the GC.
+ */
+public class PacketPool {
+
+    /** Shared by the proxy and scheduler. Enough for a few clients with a window of telegrams each. */
+    public static final PacketPool SHARED = new PacketPool(64);
+
+    private final Packet[] free;
+    private int size;
+    private long misses;
+
+    public PacketPool(int capacity) {
+        free = new Packet[capacity];
+    }
+
+    public Packet acquire() {
+        synchronized (this) {
+            if (size > 0) {
+                Packet p = free[--size];
+                free[size] = null;
+                return p;
+            }
+            misses++;
+        }
+        return new Packet();
+    }
+
+    public void release(Packet p) {
+        if (p == null) {
+            return;
+        }
+        p.reset();
+        synchronized (this) {
+            if (size < free.length) {
+                free[size++] = p;
+            }
+        }
+    }
+
+    /** @return number of acquires that had to allocate. Flat in steady state. */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized int getAvailable() {
+        return size;
+    }
+}
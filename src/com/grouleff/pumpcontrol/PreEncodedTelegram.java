@@ -0,0 +1,105 @@
+package com.grouleff.pumpcontrol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A fixed request - start, stop, dongle reset - encoded once. The seqno is covered by
+ * the CRC, so the telegram is kept ready for each of the 255 seqnos, CRC and all;
+ * sending it is one write of bytes that already exist.
+ */
+public final class PreEncodedTelegram {
+    private static final PreEncodedTelegram[] SET_ADDRESS = new PreEncodedTelegram[256];
+    /** Reset the dongle - acked by the dongle once done; it has to be given an address again after. */
+    public static final PreEncodedTelegram RESET_DONGLE = dongleCommand("reset", 3, 7);
+
+    private final String name;
+    private final byte[][] bySeqno = new byte[256][];
+
+    /** @param template - a closed request, any seqno. */
+    public PreEncodedTelegram(String name, Packet template) {
+        this.name = name;
+        Packet p = new Packet();
+        p.copyFrom(template);
+        for (int seq = 1; seq < 256; seq++) {
+            p.setSeqnoAndSrcField((byte)seq);
+            p.updateLengthAndCheckSum();
+            byte[] telegram = new byte[p.getTop()];
+            for (int i = 0; i < telegram.length; i++) {
+                telegram[i] = p.getByte(i);
+            }
+            bySeqno[seq] = telegram;
+        }
+    }
+
+    /** A class 3 command to the pump, e.g. stop or start. */
+    public static PreEncodedTelegram pumpCommand(String name, int command) {
+        Packet p = new GeniRequest(new Packet()).begin(GeniRequest.PUMP)
+            .apdu(GeniApdu.CLASS_COMMAND, GeniApdu.OP_SET).id(command)
+            .close();
+        return new PreEncodedTelegram(name, p);
+    }
+
+    /** A request to the dongle itself - not GENI, the dongle's own class 3 with raw bytes. */
+    public static PreEncodedTelegram dongleCommand(String name, int... bytes) {
+        Packet p = new Packet();
+        p.addByte(0x27);
+        p.addByte(0);
+        p.addByte(GeniRequest.DONGLE);
+        p.addByte(0);
+        for (int b : bytes) {
+            p.addByte(b);
+        }
+        return new PreEncodedTelegram(name, p.close());
+    }
+
+    /** Point the dongle at a pump: IR, GENI unit address or 255 for broadcast. Encoded on first use. */
+    public static PreEncodedTelegram setAddress(int address) {
+        synchronized (SET_ADDRESS) {
+            if (SET_ADDRESS[address] == null) {
+                SET_ADDRESS[address] = dongleCommand("set address " + address, 3, 16, 1, address);
+            }
+            return SET_ADDRESS[address];
+        }
+    }
+
+    /** @return true for a telegram to the dongle itself, see dongleCommand(). */
+    public boolean isToDongle() {
+        return bySeqno[1][2] == GeniRequest.DONGLE;
+    }
+
+    /** @return bytes on the wire - the same for every seqno. */
+    public int getLength() {
+        return bySeqno[1].length;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /** @param seq - 1..255, see RXTXLink.nextSeqno(). */
+    public void writeTo(OutputStream out, int seq) throws IOException {
+        byte[] telegram = bySeqno[seq];
+        PacketLog.log(PacketLog.Tag.SEND, null, telegram, 0, telegram.length);
+        out.write(telegram, 0, telegram.length);
+        out.flush();
+    }
+
+    /** Like writeTo(OutputStream, int), queued for the link's writer thread. */
+    void writeTo(SerialWriter writer, int seq, boolean urgent) throws IOException {
+        byte[] telegram = bySeqno[seq];
+        PacketLog.log(PacketLog.Tag.SEND, null, telegram, 0, telegram.length);
+        writer.write(telegram, 0, telegram.length, urgent);
+    }
+
+    /** The request as sent with this seqno, e.g. to decode its reply. */
+    public void copyTo(Packet p, int seq) {
+        byte[] telegram = bySeqno[seq];
+        p.copyFrom(telegram, 0, telegram.length);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
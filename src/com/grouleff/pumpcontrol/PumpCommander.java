@@ -0,0 +1,189 @@
+package com.grouleff.pumpcontrol;
+
+import java.io.IOException;
+
+/**
+ * Keeps the pump in the state the control loop wants, with as few telegrams as possible.
+ *
+ * The control loop states what it wants on every tick with setDesired(); a command is
+ * only sent when that differs from what the pump last acked, or when the acked state is
+ * older than the re-assert interval - in case someone else talked to the pump meanwhile.
+ * Only the latest desired command is ever sent; a change while one is in flight just
+ * replaces what comes next. Commands without an ack are retried with exponential backoff.
+ *
+ * Sending happens on a thread of its own, so the control loop never waits for an ack.
+ *
+ * Configured by system properties:
+ *  pumpcontrol.reassert - seconds between re-sending an acked command (default 300, 0 for never)
+ *  pumpcontrol.retry.min, pumpcontrol.retry.max - backoff in milliseconds (default 500, 30000)
+ */
+public class PumpCommander {
+    public static final int NONE = -1;
+
+    /** Sends one command and waits for its ack. */
+    public interface Sender {
+        /** @return true if the pump acked. */
+        boolean send(int command) throws IOException;
+    }
+
+    private final Sender sender;
+    private final long reassertMillis;
+    private final long retryMinMillis;
+    private final long retryMaxMillis;
+
+    private int desired = NONE;
+    private int confirmed = NONE;
+    private long confirmedAt;
+    private long retryAt;
+    private long backoff;
+    private boolean stopped;
+
+    private long sent;
+    private long failed;
+    private long coalesced;
+
+    private Thread thread;
+
+    public PumpCommander(Sender sender) {
+        this(sender, Integer.getInteger("pumpcontrol.reassert", 300) * 1000L,
+             Integer.getInteger("pumpcontrol.retry.min", 500), Integer.getInteger("pumpcontrol.retry.max", 30000));
+    }
+
+    public PumpCommander(Sender sender, long reassertMillis, long retryMinMillis, long retryMaxMillis) {
+        this.sender = sender;
+        this.reassertMillis = reassertMillis;
+        this.retryMinMillis = retryMinMillis;
+        this.retryMaxMillis = retryMaxMillis;
+        this.backoff = retryMinMillis;
+    }
+
+    public synchronized void start() {
+        thread = new Thread("pump-commander") {
+            @Override
+            public void run() {
+                try {
+                    dispatchForever();
+                } catch (InterruptedException e) {
+                    // Stopped.
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        synchronized (this) {
+            stopped = true;
+            notifyAll();
+        }
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /** What the pump should be doing. Cheap, call it every tick. */
+    public synchronized void setDesired(int command) {
+        if (command != desired) {
+            if (desired != confirmed) {
+                coalesced++; // The previous wish was never acked, and now never will be.
+            }
+            desired = command;
+            retryAt = 0;
+            backoff = retryMinMillis;
+            notifyAll();
+        }
+    }
+
+    /** Forget what the pump has acked, e.g. after the link was reset, so the next tick resends. */
+    public synchronized void invalidate() {
+        confirmed = NONE;
+        retryAt = 0;
+        notifyAll();
+    }
+
+    /** @return the last command the pump acked, or NONE. */
+    public synchronized int getConfirmed() {
+        return confirmed;
+    }
+
+    /** @return true once the desired command is acked, false on timeout. */
+    public synchronized boolean awaitConfirmed(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (confirmed != desired) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                return false;
+            }
+            wait(left);
+        }
+        return true;
+    }
+
+    public synchronized long getSent() {
+        return sent;
+    }
+
+    public synchronized long getFailed() {
+        return failed;
+    }
+
+    public synchronized long getCoalesced() {
+        return coalesced;
+    }
+
+    /** @return the command to send now, or NONE after waiting until something may be due. */
+    private synchronized int nextDue() throws InterruptedException {
+        long now = System.currentTimeMillis();
+        long wakeAt;
+        if (desired == NONE) {
+            wakeAt = Long.MAX_VALUE;
+        } else if (desired != confirmed) {
+            if (now >= retryAt) {
+                return desired;
+            }
+            wakeAt = retryAt;
+        } else if (reassertMillis > 0) {
+            if (now - confirmedAt >= reassertMillis) {
+                return desired;
+            }
+            wakeAt = confirmedAt + reassertMillis;
+        } else {
+            wakeAt = Long.MAX_VALUE;
+        }
+        long wait = wakeAt == Long.MAX_VALUE ? 0 : wakeAt - now;
+        wait(wait);
+        return NONE;
+    }
+
+    private void dispatchForever() throws InterruptedException {
+        while (!stopped) {
+            int command = nextDue();
+            if (command == NONE) {
+                continue;
+            }
+            boolean acked = false;
+            try {
+                acked = sender.send(command);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            synchronized (this) {
+                sent++;
+                if (acked) {
+                    confirmed = command;
+                    confirmedAt = System.currentTimeMillis();
+                    backoff = retryMinMillis;
+                    notifyAll();
+                } else {
+                    failed++;
+                    if (command == desired) {
+                        retryAt = System.currentTimeMillis() + backoff;
+                        backoff = Math.min(backoff * 2, retryMaxMillis);
+                    }
+                    // else a newer command is due right away.
+                }
+            }
+        }
+    }
+}
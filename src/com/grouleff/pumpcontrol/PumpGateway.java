@@ -0,0 +1,444 @@
+package com.grouleff.pumpcontrol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Pump data items for local consumers - dashboards, scripts - as JSON over HTTP, next to
+ * the raw proxy. A proxy client has the dongle to itself for each exchange; here a value
+ * read from the pump is kept for a while and served to everybody asking, so consumers
+ * do not add up on the link.
+ *
+ *  GET /pump/2/32 - item ID 32 of class 2
+ *  GET /pump?items=2/32,2/33,5/1 - several
+ *  ?maxAge=millis - oldest value acceptable, instead of the default TTL
+ *
+ * answered with e.g. {"class":2,"id":32,"value":120,"ageMillis":310}, the raw 8 bit value.
+ *
+ * A value younger than its TTL comes from memory, no locking - each read is kept as one
+ * Reading, replaced whole, so an answer never mixes two reads. An older one is read from
+ * the pump once, however many ask meanwhile (single-flight): the first asking queues
+ * the item, everybody waits for the same future. Items queued meanwhile go in the same
+ * request, a GET APDU per class, so a burst of different items costs one round trip too.
+ * Requests go under a lease at PRIORITY_CLIENT - the scheduler goes first.
+ *
+ * Items the pump does not know are answered 404, and remembered for the TTL; no answer
+ * from the pump, 504.
+ *
+ * Configured by system properties:
+ *  pumpcontrol.gateway.port - serve on this port (no gateway without it)
+ *  pumpcontrol.gateway.host - address to bind (default 127.0.0.1, local only)
+ *  pumpcontrol.gateway.ttl - milliseconds a value is served from memory (default 1000)
+ *  pumpcontrol.gateway.threads - requests served at once (default 8)
+ */
+public class PumpGateway {
+    private static final long LEASE_WAIT = 2000;
+    private static final int MAX_ITEMS = 32; // Per request, within GeniValues' APDUs.
+
+    /** One read of a data item. Never changed - a newer read replaces it as a whole. */
+    public static final class Reading {
+        public final int cls;
+        public final int id;
+        public final int value; // -1 unless ack is GeniApdu.ACK_OK.
+        public final int ack; // GeniApdu.ACK_OK, an error, or -1 if the reply had no ack for it.
+        public final long at; // Millis when read.
+
+        Reading(int cls, int id, int value, int ack, long at) {
+            this.cls = cls;
+            this.id = id;
+            this.value = value;
+            this.ack = ack;
+            this.at = at;
+        }
+    }
+
+    /** What is known of a data item: its last reading, and the read in progress if any. */
+    static final class Entry {
+        final int cls;
+        final int id;
+        volatile Reading last; // Null if never read.
+        private CompletableFuture<Reading> pending; // Under this.
+        int apdu; // While in a request, fetcher only.
+        boolean alone; // Its APDU was refused - ask in an APDU of its own. Fetcher only.
+
+        Entry(int cls, int id) {
+            this.cls = cls;
+            this.id = id;
+        }
+    }
+
+    private final RXTXLink link;
+    private final int pumpAddress;
+    private final long ttl;
+    private final LinkArbiter.Lease lease;
+    private final AtomicReferenceArray<Entry> entries = new AtomicReferenceArray<Entry>(GeniApdu.CLASSES << 8); // By class << 8 | ID.
+    private final ConcurrentLinkedQueue<Entry> queued = new ConcurrentLinkedQueue<Entry>();
+    // Fetcher only, under itself.
+    private final Object fetcher = new Object();
+    private final Packet request = new Packet();
+    private final GeniRequest encoder = new GeniRequest(request);
+    private final Packet reply = new Packet();
+    private final GeniValues decoded = new GeniValues();
+    private final Entry[] batch = new Entry[MAX_ITEMS];
+    private final int[] apduSize = new int[MAX_ITEMS];
+
+    private final Metrics.Counter hits = Metrics.counter("pumpcontrol_gateway_lookups_total", Metrics.label("result", "hit"), "Items asked for.");
+    private final Metrics.Counter misses = Metrics.counter("pumpcontrol_gateway_lookups_total", Metrics.label("result", "miss"), "Items asked for.");
+    private final Metrics.Counter shared = Metrics.counter("pumpcontrol_gateway_lookups_total", Metrics.label("result", "shared"), "Items asked for.");
+    private final Metrics.Counter fetches = Metrics.counter("pumpcontrol_gateway_fetches_total", "Requests sent to the pump for the gateway.");
+    private final Metrics.Histogram fetchTime = Metrics.histogram("pumpcontrol_gateway_fetch_seconds", "From lease asked for to the pump's reply.");
+    private final Metrics.Histogram serveTime = Metrics.histogram("pumpcontrol_gateway_serve_seconds", "From an HTTP request read to its answer written.");
+
+    private HttpServer server;
+    private ExecutorService executor;
+
+    /** @param pumpAddress - GENI unit address of the pump, 255 for whichever is in range. */
+    public PumpGateway(RXTXLink link, int pumpAddress, long ttlMillis) {
+        this.link = link;
+        this.pumpAddress = pumpAddress;
+        this.ttl = ttlMillis;
+        this.lease = link.getArbiter().newLease("gateway", LinkArbiter.PRIORITY_CLIENT);
+    }
+
+    /** Serve the pump on pumpcontrol.gateway.port, if set. @return the gateway, or null. */
+    public static PumpGateway serveFromProperties(RXTXLink link, int pumpAddress) {
+        Integer port = Integer.getInteger("pumpcontrol.gateway.port");
+        if (port == null) {
+            return null;
+        }
+        PumpGateway gateway = new PumpGateway(link, pumpAddress, Integer.getInteger("pumpcontrol.gateway.ttl", 1000));
+        try {
+            gateway.serve(System.getProperty("pumpcontrol.gateway.host", "127.0.0.1"), port,
+                          Integer.getInteger("pumpcontrol.gateway.threads", 8));
+        } catch (IOException e) {
+            System.err.println("Gateway not served on port " + port + ": " + e);
+            return null;
+        }
+        return gateway;
+    }
+
+    /**
+     * The item, read from the pump if what is known is older than maxAge.
+     *
+     * @return the reading - see its ack for whether the pump knows the item.
+     * @throws TimeoutException if the pump did not answer.
+     */
+    public Reading get(int cls, int id, long maxAge) throws TimeoutException, InterruptedException {
+        CompletableFuture<Reading> future = lookup(cls, id, maxAge);
+        if (!future.isDone()) {
+            fetchQueued(); // Not for a hit - it would wait for somebody else's fetch.
+        }
+        return await(future);
+    }
+
+    /** Like get(), for several items - class, ID pairs - read in as few requests as possible. */
+    public List<Reading> getAll(List<int[]> items, long maxAge) throws TimeoutException, InterruptedException {
+        List<CompletableFuture<Reading>> futures = new ArrayList<CompletableFuture<Reading>>(items.size());
+        boolean missed = false;
+        for (int[] item : items) {
+            CompletableFuture<Reading> future = lookup(item[0], item[1], maxAge); // All queued before any is fetched.
+            futures.add(future);
+            missed |= !future.isDone();
+        }
+        if (missed) {
+            fetchQueued();
+        }
+        List<Reading> got = new ArrayList<Reading>(items.size());
+        for (CompletableFuture<Reading> future : futures) {
+            got.add(await(future));
+        }
+        return got;
+    }
+
+    /** @return the last reading if fresh, else the future of the read it joins, or queues. */
+    private CompletableFuture<Reading> lookup(int cls, int id, long maxAge) {
+        if (cls < 0 || cls >= GeniApdu.CLASSES || id < 0 || id > 255) {
+            throw new IllegalArgumentException(cls + "/" + id);
+        }
+        int key = cls << 8 | id;
+        Entry e = entries.get(key);
+        if (e == null) {
+            entries.compareAndSet(key, null, new Entry(cls, id));
+            e = entries.get(key);
+        }
+        Reading last = e.last;
+        if (last != null && System.currentTimeMillis() - last.at <= maxAge) {
+            hits.inc();
+            return CompletableFuture.completedFuture(last);
+        }
+        synchronized (e) {
+            if (e.pending == null) {
+                e.pending = new CompletableFuture<Reading>();
+                queued.add(e);
+                misses.inc();
+            } else {
+                shared.inc();
+            }
+            return e.pending;
+        }
+    }
+
+    private Reading await(CompletableFuture<Reading> future) throws TimeoutException, InterruptedException {
+        try {
+            // Only ever waits out a fetch on another thread; it is bounded by the lease wait and the retries.
+            return future.get(LEASE_WAIT + link.getRtt().getTimeoutMillis(RXTXLink.RETRIES + 1) * 2, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            throw new TimeoutException(e.getCause().getMessage());
+        }
+    }
+
+    /** Everything queued, in as few requests as it takes. Whoever gets here first fetches for all. */
+    private void fetchQueued() {
+        synchronized (fetcher) {
+            while (!queued.isEmpty()) {
+                int n = 0;
+                Entry e;
+                while (n < MAX_ITEMS && (e = queued.poll()) != null) {
+                    batch[n++] = e;
+                }
+                fetch(n);
+            }
+        }
+    }
+
+    private static final Comparator<Entry> BY_CLASS = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            return a.cls != b.cls ? a.cls - b.cls : a.id - b.id;
+        }
+    };
+
+    private void fetch(int n) {
+        Arrays.sort(batch, 0, n, BY_CLASS);
+        encoder.begin(GeniRequest.PUMP);
+        int apdus = 0;
+        int cls = -1;
+        int fitted = 0;
+        boolean shareable = false;
+        for (; fitted < n; fitted++) {
+            Entry e = batch[fitted];
+            if (e.cls != cls || e.alone || !shareable || encoder.roomInApdu() < 1) {
+                if (encoder.room() < 3) {
+                    break;
+                }
+                encoder.apdu(e.cls, GeniApdu.OP_GET);
+                apdus++;
+                cls = e.cls;
+                apduSize[apdus - 1] = 0;
+            }
+            encoder.id(e.id);
+            e.apdu = apdus - 1;
+            apduSize[e.apdu]++;
+            shareable = !e.alone;
+        }
+        for (int k = fitted; k < n; k++) {
+            queued.add(batch[k]); // Next request.
+        }
+        encoder.close();
+        String failure = exchange();
+        long now = System.currentTimeMillis();
+        int stored = failure == null ? decoded.decode(request, reply, now) : -1;
+        if (failure == null && stored < 0) {
+            failure = "reply does not answer the request";
+        }
+        for (int k = 0; k < fitted; k++) {
+            Entry e = batch[k];
+            batch[k] = null;
+            CompletableFuture<Reading> future;
+            Reading read = null;
+            synchronized (e) {
+                if (failure == null) {
+                    int ack = e.apdu < decoded.getApdus() ? decoded.getAck(e.apdu) : -1;
+                    if (ack > GeniApdu.ACK_OK && apduSize[e.apdu] > 1) {
+                        e.alone = true; // Which of the APDU's items is it? Ask each alone.
+                        queued.add(e);
+                        continue;
+                    }
+                    e.alone = false;
+                    read = new Reading(e.cls, e.id, ack == GeniApdu.ACK_OK ? decoded.get(e.cls, e.id) : -1, ack, now);
+                    e.last = read;
+                }
+                future = e.pending;
+                e.pending = null;
+            }
+            if (failure == null) {
+                future.complete(read);
+            } else {
+                future.completeExceptionally(new IOException(failure));
+            }
+        }
+    }
+
+    /** @return null if answered, or what went wrong. */
+    private String exchange() {
+        long began = System.nanoTime();
+        try {
+            if (!lease.acquire(LEASE_WAIT)) {
+                return "link busy";
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt(); // Those waiting must hear of it all the same.
+            return "interrupted";
+        }
+        try {
+            fetches.inc();
+            if (!link.addressPump(pumpAddress, reply) || !link.exchange(request, reply)) {
+                return "no answer from the pump";
+            }
+            fetchTime.recordSince(began);
+            return null;
+        } catch (IOException e) {
+            return e.toString();
+        } finally {
+            lease.release();
+        }
+    }
+
+    public synchronized void serve(String host, int port, int threads) throws IOException {
+        if (server != null) {
+            return;
+        }
+        server = HttpServer.create(new InetSocketAddress(host, port), 16);
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private int count;
+
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "gateway-" + ++count);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        server.setExecutor(executor); // Waiting for the pump must not hold up answers from memory.
+        server.createContext("/pump", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                long began = System.nanoTime();
+                int status = 200;
+                StringBuilder body = new StringBuilder(128);
+                try {
+                    status = answer(exchange.getRequestURI(), body);
+                } catch (IllegalArgumentException e) {
+                    status = 400;
+                    error(body, "expected /pump/class/id or /pump?items=class/id,..., got " + exchange.getRequestURI());
+                } catch (TimeoutException e) {
+                    status = 504;
+                    error(body, e.getMessage());
+                } catch (InterruptedException e) {
+                    status = 503;
+                    error(body, "shutting down");
+                }
+                byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.sendResponseHeaders(status, bytes.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(bytes);
+                out.close();
+                serveTime.recordSince(began);
+            }
+        });
+        server.start();
+    }
+
+    public synchronized void stopServing() {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdownNow();
+            server = null;
+        }
+    }
+
+    /**
+     * @return the HTTP status - 404 for a single item the pump does not know.
+     * @throws IllegalArgumentException on a malformed request.
+     */
+    private int answer(URI uri, StringBuilder out) throws TimeoutException, InterruptedException {
+        String path = uri.getPath();
+        String items = null;
+        long maxAge = ttl;
+        String query = uri.getQuery();
+        if (query != null) {
+            for (String param : query.split("&")) {
+                if (param.startsWith("items=")) {
+                    items = param.substring(6);
+                } else if (param.startsWith("maxAge=")) {
+                    maxAge = Long.parseLong(param.substring(7));
+                }
+            }
+        }
+        if (path.startsWith("/pump/")) {
+            int[] item = parseItem(path.substring(6));
+            Reading r = get(item[0], item[1], maxAge);
+            write(out, r, System.currentTimeMillis());
+            return r.ack == GeniApdu.ACK_OK ? 200 : 404;
+        }
+        if (items == null || !path.equals("/pump")) {
+            throw new IllegalArgumentException(path);
+        }
+        List<int[]> asked = new ArrayList<int[]>();
+        for (String item : items.split(",")) {
+            asked.add(parseItem(item));
+        }
+        List<Reading> got = getAll(asked, maxAge);
+        long now = System.currentTimeMillis();
+        out.append("{\"items\":[");
+        for (int i = 0; i < got.size(); i++) {
+            if (i > 0) {
+                out.append(',');
+            }
+            write(out, got.get(i), now);
+        }
+        out.append("]}");
+        return 200;
+    }
+
+    private static int[] parseItem(String item) {
+        int slash = item.indexOf('/');
+        try {
+            int cls = Integer.parseInt(item.substring(0, slash));
+            int id = Integer.parseInt(item.substring(slash + 1));
+            if (cls < 0 || cls >= GeniApdu.CLASSES || id < 0 || id > 255) {
+                throw new IllegalArgumentException(item);
+            }
+            return new int[] {cls, id};
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException(item);
+        }
+    }
+
+    private static void write(StringBuilder out, Reading r, long now) {
+        if (r.ack != GeniApdu.ACK_OK) {
+            error(out, "pump does not know " + r.cls + "/" + r.id + ", ack " + r.ack);
+            return;
+        }
+        out.append("{\"class\":").append(r.cls)
+           .append(",\"id\":").append(r.id)
+           .append(",\"value\":").append(r.value)
+           .append(",\"ageMillis\":").append(now - r.at)
+           .append('}');
+    }
+
+    private static void error(StringBuilder out, String message) {
+        out.append("{\"error\":\"").append(message.replace("\\", "\\\\").replace("\"", "\\\"")).append("\"}");
+    }
+}
@@ -5,24 +5,203 @@ import gnu.io.CommPortIdentifier;
 import gnu.io.SerialPort;
 import gnu.io.UnsupportedCommOperationException;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
 
 public class RXTXLink  {
 
     public static int BPS = 115200;
     protected SerialPort serialPort;
     protected final String portName;
+    private final TelegramFramer framer = new TelegramFramer();
+    private final AtomicInteger seqno = new AtomicInteger();
+    private final LinkArbiter arbiter;
+    private LinkReceiver receiver;
+    private SerialWriter writer;
+    private volatile int generation; // Written under this.
+    private volatile IOException failure;
+    private volatile int pumpAddress = -1; // The pump the dongle talks to, -1 when not known.
+    // Metrics, labelled with the port.
+    final Metrics.Counter sentBytes;
+    final Metrics.Counter receivedBytes;
+    final Metrics.Histogram roundTrip;
+    final Metrics.Counter timedOut;
+    final Metrics.Counter unmatched;
+    final Metrics.Counter retransmits;
+    private final RttEstimator rtt = RttEstimator.fromProperties();
+    /** Retransmissions after a timeout, by exchange() without a timeout. */
+    static final int RETRIES = Integer.getInteger("pumpcontrol.retries", 2);
 
     public RXTXLink(String portName) {
         this.portName = portName;
+        this.arbiter = new LinkArbiter(portName);
+        String port = Metrics.label("port", portName);
+        sentBytes = Metrics.counter("pumpcontrol_link_sent_bytes_total", port, "Bytes written to the dongle.");
+        receivedBytes = Metrics.counter("pumpcontrol_link_received_bytes_total", port, "Bytes read from the dongle.");
+        roundTrip = Metrics.histogram("pumpcontrol_link_round_trip_seconds", port,
+                "From a request sent to its reply framed.", Metrics.LATENCY_NANOS);
+        timedOut = Metrics.counter("pumpcontrol_link_timeouts_total", port, "Requests not answered in time.");
+        unmatched = Metrics.counter("pumpcontrol_link_unmatched_total", port, "Replies nobody was waiting for.");
+        retransmits = Metrics.counter("pumpcontrol_link_retransmits_total", port, "Requests sent again after a timeout.");
+        Metrics.gauge("pumpcontrol_link_timeout_milliseconds", port, "Current wait for a reply, from the round trip estimate.",
+                new LongSupplier() {
+                    @Override
+                    public long getAsLong() {
+                        return rtt.getTimeoutMillis();
+                    }
+                });
+        String dongle = port + "," + Metrics.label("side", "dongle");
+        framer.countInto(Metrics.counter("pumpcontrol_framer_skipped_bytes_total", dongle, "Bytes skipped looking for a sound telegram."),
+                         Metrics.counter("pumpcontrol_framer_crc_rejects_total", dongle, "Candidate telegrams with a bad CRC."));
+        if (PacketLog.isCapturing()) {
+            framer.setTap(PacketLog.Tag.CAPTURE_RX);
+        }
+    }
+
+    /** Everybody using the link takes turns through this. */
+    public LinkArbiter getArbiter() {
+        return arbiter;
     }
 
-    public void ensureConnected() {
+    /** Round trips of this link, sampled by the receiver. Waits for replies come from here. */
+    public RttEstimator getRtt() {
+        return rtt;
+    }
+
+    /**
+     * Send a request and wait for its reply, sending it again (fresh seqno) when no reply
+     * came within the estimated timeout, up to RETRIES times, each waiting twice as
+     * long. For requests that may be repeated - everything to the dongle and pump is.
+     * Caller must hold a lease.
+     *
+     * @return true if the reply is in the reply packet.
+     */
+    public boolean exchange(Packet request, Packet reply) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            if (exchange(request, reply, rtt.getTimeoutMillis(attempt))) {
+                return true;
+            }
+            if (attempt == RETRIES || Thread.currentThread().isInterrupted()) {
+                return false;
+            }
+            retransmits.inc();
+        }
+    }
+
+    /** Like exchange(Packet, Packet), for a telegram encoded in advance. */
+    public boolean exchange(PreEncodedTelegram request, Packet reply) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            if (exchange(request, reply, rtt.getTimeoutMillis(attempt))) {
+                return true;
+            }
+            if (attempt == RETRIES || Thread.currentThread().isInterrupted()) {
+                return false;
+            }
+            retransmits.inc();
+        }
+    }
+
+    /**
+     * Send a request with a fresh seqno and wait for the reply carrying that seqno,
+     * dropping late replies to earlier requests. Caller must hold a lease.
+     *
+     * @return true if the reply is in the reply packet, false on timeout.
+     */
+    public boolean exchange(Packet request, Packet reply, long timeoutMillis) throws IOException {
+        return await(send(request, timeoutMillis), reply);
+    }
+
+    /** Like exchange(Packet, Packet, long), for a telegram encoded in advance. */
+    public boolean exchange(PreEncodedTelegram request, Packet reply, long timeoutMillis) throws IOException {
+        return await(send(request, nextSeqno(), timeoutMillis), reply);
+    }
+
+    private boolean await(CompletableFuture<Packet> future, Packet reply) {
+        Packet received;
+        try {
+            received = future.get(); // The receiver's timer bounds the wait.
+        } catch (ExecutionException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        reply.copyFrom(received);
+        PacketPool.SHARED.release(received);
+        reply.log(PacketLog.Tag.RECV, null);
+        return true;
+    }
+
+    /**
+     * Send a request with a fresh seqno without waiting. Caller must hold a lease.
+     *
+     * @return completes with the reply - a pooled packet, release it when done - or
+     * exceptionally with a TimeoutException.
+     */
+    public CompletableFuture<Packet> send(Packet request, long timeoutMillis) throws IOException {
+        return send(request, nextSeqno(), timeoutMillis);
+    }
+
+    /** Like send(Packet, long), with a seqno the caller took from nextSeqno(). */
+    public CompletableFuture<Packet> send(Packet request, int seq, long timeoutMillis) throws IOException {
+        if (request.getByte(2) == GeniRequest.DONGLE) {
+            forgetPumpAddress(); // Could be a set address, or a reset.
+        }
+        request.setSeqnoAndSrcField((byte)seq);
+        request.updateLengthAndCheckSum();
+        CompletableFuture<Packet> future = getReceiver().expect(seq, timeoutMillis);
+        sentBytes.add(request.getTop());
+        request.writeTo(getWriter(), isUrgent());
+        return future;
+    }
+
+    /** Like send(Packet, int, long), for a telegram encoded in advance - nothing to encode. */
+    public CompletableFuture<Packet> send(PreEncodedTelegram request, int seq, long timeoutMillis) throws IOException {
+        if (request.isToDongle()) {
+            forgetPumpAddress();
+        }
+        CompletableFuture<Packet> future = getReceiver().expect(seq, timeoutMillis);
+        sentBytes.add(request.getLength());
+        request.writeTo(getWriter(), seq, isUrgent());
+        return future;
+    }
+
+    /** @return true if whoever holds the link goes ahead of everything else queued. */
+    private boolean isUrgent() {
+        return arbiter.getHolderPriority() <= LinkArbiter.PRIORITY_CONTROL;
+    }
+
+    /** The one reader of this link, started on first use. */
+    public synchronized LinkReceiver getReceiver() {
+        if (receiver == null) {
+            receiver = new LinkReceiver(this);
+            receiver.start();
+        }
+        return receiver;
+    }
+
+    /** The one writer of this link, started on first use. Failed writes are reported, see reportFailure(). */
+    public synchronized SerialWriter getWriter() {
+        if (writer == null) {
+            writer = new SerialWriter(this, ThrottlePolicy.fromProperties());
+            writer.start();
+        }
+        return writer;
+    }
+
+    public synchronized void ensureConnected() {
         if (serialPort == null) {
             try {
                 connect(portName);
+                if (serialPort != null) {
+                    connected();
+                }
             } catch (Exception e) {
                 ensureSocketClosed();
                 e.printStackTrace();
@@ -30,14 +209,154 @@ public class RXTXLink  {
         }
     }
 
-    public OutputStream getOutputStream() throws IOException {
+    /** @return true if the port is open - not that anybody answers on it. */
+    public synchronized boolean isConnected() {
+        return serialPort != null;
+    }
+
+    /** Close the port, e.g. when it has stopped working. The next use opens it again. */
+    public synchronized void disconnect() {
+        dropQueued();
+        ensureSocketClosed();
+    }
+
+    /** Telegrams queued for the old connection would reach a dongle that was reset; links overriding disconnect call this. */
+    protected synchronized void dropQueued() {
+        if (writer != null) {
+            writer.clear();
+        }
+    }
+
+    /**
+     * Close and open the port again. The dongle has to be set up again after, see
+     * LinkSupervisor.
+     *
+     * @return true if open again.
+     */
+    public synchronized boolean reconnect() {
+        disconnect();
         ensureConnected();
-        return serialPort.getOutputStream();
+        return isConnected();
+    }
+
+    /**
+     * Point the dongle at the pump with this GENI address, unless it already is, so
+     * telegrams to GeniRequest.PUMP reach that pump. Caller must hold a lease, and keep it
+     * until the pump telegram is sent - others may address another pump meanwhile.
+     *
+     * @param address - a unit address, or 255 for broadcast.
+     * @return false if the dongle did not ack.
+     */
+    public boolean addressPump(int address, Packet reply) throws IOException {
+        if (pumpAddress == address) {
+            return true;
+        }
+        return setPumpAddress(address, reply);
+    }
+
+    /** Like addressPump(), but always sent - as set up, or to check the dongle answers. */
+    public boolean setPumpAddress(int address, Packet reply) throws IOException {
+        if (!exchange(PreEncodedTelegram.setAddress(address), reply)) {
+            return false;
+        }
+        pumpAddress = address;
+        return true;
+    }
+
+    /** @return the pump the dongle was last pointed at, -1 if not known. */
+    public int getPumpAddress() {
+        return pumpAddress;
+    }
+
+    /** Somebody else talked to the dongle: address it again before the next pump telegram. */
+    public void forgetPumpAddress() {
+        pumpAddress = -1;
+    }
+
+    /** Note that a new connection is open; links that override ensureConnected call this. */
+    protected synchronized void connected() {
+        Startup.mark("connected");
+        pumpAddress = -1;
+        generation++;
+        notifyAll();
+    }
+
+    /** @return a number that changes each time the port is opened, 0 before the first. */
+    public int getGeneration() {
+        return generation;
+    }
+
+    /** Wait until the port has been opened again after generation seen, or the timeout. */
+    public synchronized void awaitGeneration(int seen, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        long left;
+        while (generation == seen && (left = deadline - System.currentTimeMillis()) > 0) {
+            wait(left);
+        }
+    }
+
+    /** @return false if the device has gone, e.g. a USB dongle pulled out. */
+    public boolean isPresent() {
+        return !portName.startsWith("/dev/") || new File(portName).exists();
+    }
+
+    /** Note an error using the link, for the LinkSupervisor to act on. */
+    public void reportFailure(IOException e) {
+        failure = e;
+    }
+
+    /** @return the last error reported since the previous call, or null. */
+    public IOException takeFailure() {
+        IOException e = failure;
+        failure = null;
+        return e;
+    }
+
+    /**
+     * @param portName - a serial device such as /dev/ttyUSB0, or sim: for an in-process
+     * MI301Simulator, or tcp:host:port for one served over a socket.
+     */
+    public static RXTXLink forName(String portName) {
+        if (portName.startsWith(SimulatedLink.IN_PROCESS) || portName.startsWith(SimulatedLink.TCP)) {
+            return new SimulatedLink(portName);
+        }
+        return new RXTXLink(portName);
     }
 
     public InputStream getInputStream() throws IOException {
+        return openInputStream();
+    }
+
+    /** The stream to the dongle, before any capturing. Links not on a serial port override this. */
+    protected OutputStream openOutputStream() throws IOException {
+        ensureConnected();
+        SerialPort port = serialPort;
+        if (port == null) {
+            throw new IOException("Not connected to " + portName);
+        }
+        return port.getOutputStream();
+    }
+
+    protected InputStream openInputStream() throws IOException {
         ensureConnected();
-        return  serialPort.getInputStream();
+        SerialPort port = serialPort;
+        if (port == null) {
+            throw new IOException("Not connected to " + portName);
+        }
+        return port.getInputStream();
+    }
+
+    /**
+     * @return the RSLP seqno (1..255) for the next telegram sent on this link. Replies
+     * carry the seqno of their request, so all users of the link number from here.
+     */
+    public int nextSeqno() {
+        return (seqno.getAndIncrement() & 0x7fffffff) % 255 + 1;
+    }
+
+    /** Framer for the receive direction, owned by the receiver thread. */
+    public TelegramFramer getFramer() {
+        return framer;
     }
 
     private void ensureSocketClosed() {
@@ -0,0 +1,84 @@
+package com.grouleff.pumpcontrol;
+
+/**
+ * Round trip time of a link, smoothed as TCP does (Jacobson/Karels, RFC 6298):
+ *
+ *  srtt   += (rtt - srtt) / 8
+ *  rttvar += (|rtt - srtt| - rttvar) / 4
+ *  timeout = srtt + 4 * rttvar, within [min, max]
+ *
+ * so waits for a reply follow the link - short on a healthy cable, longer on a noisy IR
+ * path - instead of fixed guesses. Until the first sample the timeout is the initial one.
+ * A retransmission waits twice as long as the attempt before it.
+ *
+ * Every retransmission has a seqno of its own, so a reply always tells which attempt it
+ * answers and every reply is a sound sample (no need for Karn's rule).
+ *
+ * Sampled on the receiver thread; the timeout is read without locking.
+ *
+ * Configured by system properties, used by fromProperties():
+ *  pumpcontrol.rto.initial, pumpcontrol.rto.min, pumpcontrol.rto.max - milliseconds (default 500, 50, 2000)
+ */
+public final class RttEstimator {
+    private final long minNanos;
+    private final long maxNanos;
+    private long srtt = -1; // Nanos, -1 before the first sample.
+    private long rttvar;
+    private volatile long timeoutNanos;
+    private volatile long samples;
+
+    public RttEstimator(long initialMillis, long minMillis, long maxMillis) {
+        this.minNanos = minMillis * 1000000L;
+        this.maxNanos = maxMillis * 1000000L;
+        this.timeoutNanos = initialMillis * 1000000L;
+    }
+
+    public static RttEstimator fromProperties() {
+        return new RttEstimator(Integer.getInteger("pumpcontrol.rto.initial", 500),
+                                Integer.getInteger("pumpcontrol.rto.min", 50),
+                                Integer.getInteger("pumpcontrol.rto.max", 2000));
+    }
+
+    /** @param rttNanos - from a request sent to its reply. */
+    public synchronized void sample(long rttNanos) {
+        if (srtt < 0) {
+            srtt = rttNanos;
+            rttvar = rttNanos / 2;
+        } else {
+            long error = rttNanos - srtt;
+            srtt += error >> 3;
+            rttvar += (Math.abs(error) - rttvar) >> 2;
+        }
+        timeoutNanos = Math.max(minNanos, Math.min(maxNanos, srtt + 4 * rttvar));
+        samples++;
+    }
+
+    /** @return how long to wait for a reply. */
+    public long getTimeoutMillis() {
+        return (timeoutNanos + 999999) / 1000000;
+    }
+
+    /** @return how long to wait for the reply to a retransmission, attempt 0 being the first send. */
+    public long getTimeoutMillis(int attempt) {
+        long nanos = Math.min(maxNanos, timeoutNanos << Math.min(attempt, 16));
+        return (nanos + 999999) / 1000000;
+    }
+
+    /** @return smoothed round trip, in millis, or -1 before the first sample. */
+    public synchronized double getSmoothedMillis() {
+        return srtt < 0 ? -1 : srtt / 1e6;
+    }
+
+    public synchronized double getVarianceMillis() {
+        return rttvar / 1e6;
+    }
+
+    public long getSamples() {
+        return samples;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "srtt=" + getSmoothedMillis() + "ms rttvar=" + getVarianceMillis() + "ms timeout=" + getTimeoutMillis() + "ms";
+    }
+}
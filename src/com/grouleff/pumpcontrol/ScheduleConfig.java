@@ -0,0 +1,328 @@
+package com.grouleff.pumpcontrol;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.TimeZone;
+
+/**
+ * Pause windows and temperature rules for CustomScheduler, compiled from a properties
+ * file into a bitmap with a bit per minute of the week and a small rule table. Lookups
+ * are O(1) and allocate nothing. Instances are immutable; ScheduleWatcher swaps in a new
+ * one when the file changes.
+ *
+ * The file (see pi/etc/pumpcontrol/schedule.properties):
+ *  pause.mon .. pause.sun - windows without circulation, HH:MM-HH:MM, end exclusive,
+ *      24:00 for midnight, comma separated.
+ *  valve.return, valve.delta, valve.stopped - start the pump to reset the heater valve when
+ *      the return is above valve.return and valve.delta warmer than the circulation, and
+ *      the pump has been stopped for valve.stopped seconds.
+ *  cold.circ - start below this, pause or no pause.
+ *  hot.circ - stop above this.
+ *  start.circ - start below this outside pauses.
+ *  pause.run - seconds a pump started before a pause may keep running into it.
+ *  max.run - seconds after which a running pump is stopped.
+ *
+ * Missing keys keep the values the scheduler has always used.
+ */
+public final class ScheduleConfig {
+    public static final int KEEP = 0;
+    public static final int RUN = 1;
+    public static final int STOP = 2;
+
+    static final String[] DAYS = { "mon", "tue", "wed", "thu", "fri", "sat", "sun" };
+    private static final int MINUTES_PER_DAY = 24 * 60;
+    private static final int MINUTES_PER_WEEK = 7 * MINUTES_PER_DAY;
+    private static final long MILLIS_PER_MINUTE = 60 * 1000L;
+
+    private static final String[] DEFAULTS = {
+        "pause.mon", "00:00-06:00,22:00-24:00",
+        "pause.tue", "00:00-06:00,22:00-24:00",
+        "pause.wed", "00:00-06:00,22:00-24:00",
+        "pause.thu", "00:00-06:00,22:00-24:00",
+        "pause.fri", "00:00-06:00,23:00-24:00",
+        "pause.sat", "00:00-09:00,23:00-24:00",
+        "pause.sun", "00:00-09:00,22:00-24:00",
+        "valve.return", "40",
+        "valve.delta", "5",
+        "valve.stopped", "60",
+        "cold.circ", "22",
+        "hot.circ", "44",
+        "start.circ", "39",
+        "pause.run", "30",
+        "max.run", "180",
+    };
+
+    private final long[] pauseBits = new long[(MINUTES_PER_WEEK + 63) / 64];
+    private final TimeZone zone = TimeZone.getDefault(); // getDefault() copies, keep ours.
+    private final String source;
+    private final List<String> warnings = new ArrayList<String>();
+
+    // The rule table.
+    private final double valveReturn, valveDelta, coldCirc, hotCirc, startCirc;
+    private final long valveStopped, pauseRun, maxRun;
+
+    private ScheduleConfig(Properties p, String source) {
+        this.source = source;
+        for (Object key : p.keySet()) {
+            if (!isKnown((String)key)) {
+                warnings.add("Unknown key " + key);
+            }
+        }
+        for (int day = 0; day < DAYS.length; day++) {
+            compilePauses(day, p.getProperty("pause." + DAYS[day]));
+        }
+        valveReturn = number(p, "valve.return");
+        valveDelta = number(p, "valve.delta");
+        valveStopped = (long)number(p, "valve.stopped");
+        coldCirc = number(p, "cold.circ");
+        hotCirc = number(p, "hot.circ");
+        startCirc = number(p, "start.circ");
+        pauseRun = (long)number(p, "pause.run");
+        maxRun = (long)number(p, "max.run");
+        checkRules();
+    }
+
+    /** The built in schedule. */
+    public static ScheduleConfig defaults() {
+        return new ScheduleConfig(withDefaults(new Properties()), "defaults");
+    }
+
+    /** @throws IllegalArgumentException if the file does not make sense. */
+    public static ScheduleConfig load(File file) throws IOException {
+        Properties p = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            p.load(in);
+        } finally {
+            in.close();
+        }
+        return new ScheduleConfig(withDefaults(p), file.getPath());
+    }
+
+    private static Properties withDefaults(Properties p) {
+        for (int i = 0; i < DEFAULTS.length; i += 2) {
+            if (p.getProperty(DEFAULTS[i]) == null) {
+                p.setProperty(DEFAULTS[i], DEFAULTS[i + 1]);
+            }
+        }
+        return p;
+    }
+
+    private static boolean isKnown(String key) {
+        for (int i = 0; i < DEFAULTS.length; i += 2) {
+            if (DEFAULTS[i].equals(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static double number(Properties p, String key) {
+        String v = p.getProperty(key).trim();
+        try {
+            return Double.parseDouble(v);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(key + "=" + v + " is not a number");
+        }
+    }
+
+    private void compilePauses(int day, String windows) {
+        if (windows.trim().isEmpty()) {
+            return;
+        }
+        for (String window : windows.split(",")) {
+            String w = window.trim();
+            int dash = w.indexOf('-');
+            if (dash < 0) {
+                throw new IllegalArgumentException("pause." + DAYS[day] + ": " + w + " is not HH:MM-HH:MM");
+            }
+            int from = minuteOfDay(w.substring(0, dash), DAYS[day]);
+            int to = minuteOfDay(w.substring(dash + 1), DAYS[day]);
+            if (to <= from) {
+                throw new IllegalArgumentException("pause." + DAYS[day] + ": " + w + " ends before it starts");
+            }
+            for (int m = day * MINUTES_PER_DAY + from, end = day * MINUTES_PER_DAY + to; m < end; m++) {
+                if ((pauseBits[m >>> 6] & (1L << m)) != 0) {
+                    warnings.add("pause." + DAYS[day] + ": " + w + " overlaps another window");
+                    break;
+                }
+            }
+            for (int m = day * MINUTES_PER_DAY + from, end = day * MINUTES_PER_DAY + to; m < end; m++) {
+                pauseBits[m >>> 6] |= 1L << m;
+            }
+        }
+    }
+
+    private static int minuteOfDay(String hhmm, String day) {
+        String s = hhmm.trim();
+        int colon = s.indexOf(':');
+        try {
+            int h = Integer.parseInt(s.substring(0, colon));
+            int m = Integer.parseInt(s.substring(colon + 1));
+            if (h < 0 || m < 0 || m > 59 || h * 60 + m > MINUTES_PER_DAY) {
+                throw new IllegalArgumentException("pause." + day + ": " + s + " is not a time of day");
+            }
+            return h * 60 + m;
+        } catch (RuntimeException e) {
+            if (e instanceof IllegalArgumentException && !(e instanceof NumberFormatException)) {
+                throw e;
+            }
+            throw new IllegalArgumentException("pause." + day + ": " + s + " is not HH:MM");
+        }
+    }
+
+    /** Rules that contradict each other - the pump would be switched back and forth. */
+    private void checkRules() {
+        if (coldCirc >= hotCirc) {
+            warnings.add("cold.circ " + coldCirc + " >= hot.circ " + hotCirc + ": started and stopped at once, start wins");
+        }
+        if (startCirc >= hotCirc) {
+            warnings.add("start.circ " + startCirc + " >= hot.circ " + hotCirc + ": no band between start and stop");
+        }
+        if (coldCirc > startCirc) {
+            warnings.add("cold.circ " + coldCirc + " > start.circ " + startCirc + ": pauses are ignored below cold.circ");
+        }
+        if (valveReturn <= coldCirc) {
+            warnings.add("valve.return " + valveReturn + " <= cold.circ " + coldCirc);
+        }
+        if (pauseRun > maxRun) {
+            warnings.add("pause.run " + pauseRun + " > max.run " + maxRun + ": max.run ends runs first");
+        }
+        int paused = 0;
+        for (long bits : pauseBits) {
+            paused += Long.bitCount(bits);
+        }
+        if (paused == MINUTES_PER_WEEK) {
+            warnings.add("The whole week is a pause");
+        }
+    }
+
+    /** @return problems found while compiling, empty if none. */
+    public List<String> getWarnings() {
+        return warnings;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    /** @param minuteOfWeek - 0 is Monday 00:00 */
+    public boolean isPause(int minuteOfWeek) {
+        return (pauseBits[minuteOfWeek >>> 6] & (1L << minuteOfWeek)) != 0;
+    }
+
+    /** @return true if the wall clock time is in a pause window. */
+    public boolean isPauseAt(long millis) {
+        return isPause(minuteOfWeek(millis));
+    }
+
+    int minuteOfWeek(long millis) {
+        long localMinutes = Math.floorDiv(millis + zone.getOffset(millis), MILLIS_PER_MINUTE);
+        // Day 0 of the epoch was a Thursday, day 3 of a week starting Monday.
+        return (int)Math.floorMod(localMinutes + 3 * MINUTES_PER_DAY, (long)MINUTES_PER_WEEK); // Java 8 has no (long, int).
+    }
+
+    /**
+     * The decisions of the control loop, first match wins.
+     *
+     * @param hasRunFor - seconds since the pump was last started or stopped.
+     * @return RUN, STOP or KEEP.
+     */
+    public int decide(double circTemp, double returnTemp, boolean inPause, boolean isRunning, long hasRunFor) {
+        if (returnTemp > valveReturn && returnTemp > circTemp + valveDelta && !isRunning && hasRunFor > valveStopped) {
+            return RUN; // Valve failure in heater. Start pump to trigger valve reset...
+        } else if (circTemp < coldCirc) {
+            return RUN; // Cold water backwards through pump, start pump, pause or no pause.
+        } else if ((inPause && hasRunFor > pauseRun)
+                   || circTemp > hotCirc
+                   || (isRunning && hasRunFor > maxRun)) {
+            return STOP;
+        } else if (!inPause && circTemp < startCirc) {
+            return RUN;
+        }
+        return KEEP;
+    }
+
+    /**
+     * @return degrees between the temperatures and the nearest threshold of decide() that
+     * could change what it does to a pump in this state, NaN without the temperatures used.
+     * A running pump is only stopped, so start.circ and the valve rule do not count; a
+     * stopped one is only started, so hot.circ does not.
+     */
+    public double marginCelsius(double circTemp, double returnTemp, boolean isRunning) {
+        double margin = Math.abs(circTemp - coldCirc);
+        if (isRunning) {
+            return Math.min(margin, Math.abs(circTemp - hotCirc));
+        }
+        margin = Math.min(margin, Math.abs(circTemp - startCirc));
+        // The valve rule needs both: while one holds, the other is what is left to cross.
+        double toReturn = valveReturn - returnTemp;
+        double toDelta = circTemp + valveDelta - returnTemp;
+        double toValve = toReturn < 0 && toDelta < 0 ? Math.min(-toReturn, -toDelta) : Math.max(toReturn, toDelta);
+        return Math.min(margin, toValve);
+    }
+
+    /**
+     * @param ranForMillis - since the pump was last started or stopped, see decide().
+     * @return millis until a rule of decide() on time may apply - a run or stop time limit
+     * passed, or a pause window starting or ending - or Long.MAX_VALUE if none does
+     * within horizonMillis.
+     */
+    public long millisToTimedRule(long now, boolean isRunning, long ranForMillis, long horizonMillis) {
+        long next = isRunning ? Math.min(untilPassed(pauseRun, ranForMillis), untilPassed(maxRun, ranForMillis))
+                              : untilPassed(valveStopped, ranForMillis);
+        boolean paused = isPauseAt(now);
+        long minuteStart = now - Math.floorMod(now, MILLIS_PER_MINUTE);
+        for (long at = minuteStart + MILLIS_PER_MINUTE; at - now <= horizonMillis && at - now < next; at += MILLIS_PER_MINUTE) {
+            if (isPauseAt(at) != paused) {
+                next = at - now;
+                break;
+            }
+        }
+        return next;
+    }
+
+    /** decide() sees whole seconds: hasRunFor > limit from (limit + 1) * 1000 millis on. */
+    private static long untilPassed(long limitSeconds, long ranForMillis) {
+        long left = (limitSeconds + 1) * 1000 - ranForMillis;
+        return left > 0 ? left : Long.MAX_VALUE;
+    }
+
+    /**
+     * Validation mode: compile a schedule file and report what is wrong with it.
+     * Usage: ScheduleConfig file
+     */
+    public static void main(String[] args) throws IOException {
+        ScheduleConfig c;
+        try {
+            c = args.length > 0 ? load(new File(args[0])) : defaults();
+        } catch (IllegalArgumentException e) {
+            System.out.println("Invalid: " + e.getMessage());
+            System.exit(2);
+            return;
+        }
+        for (String w : c.getWarnings()) {
+            System.out.println("Conflict: " + w);
+        }
+        for (int day = 0; day < DAYS.length; day++) {
+            StringBuilder sb = new StringBuilder(DAYS[day]).append(" pause:");
+            int start = -1;
+            for (int m = 0; m <= MINUTES_PER_DAY; m++) {
+                boolean on = m < MINUTES_PER_DAY && c.isPause(day * MINUTES_PER_DAY + m);
+                if (on && start < 0) {
+                    start = m;
+                } else if (!on && start >= 0) {
+                    sb.append(String.format(" %02d:%02d-%02d:%02d", start / 60, start % 60, m / 60, m % 60));
+                    start = -1;
+                }
+            }
+            System.out.println(sb);
+        }
+        System.exit(c.getWarnings().isEmpty() ? 0 : 1);
+    }
+}
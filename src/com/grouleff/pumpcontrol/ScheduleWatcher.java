@@ -0,0 +1,153 @@
+package com.grouleff.pumpcontrol;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds the current ScheduleConfig and reloads it when its file changes. The control loop
+ * reads get() once per tick and sees either the old rules or the new, never a mix.
+ *
+ * A file that does not compile is reported and ignored - the rules in force stay. Editors
+ * write in several steps, so a change is only loaded once the directory has been quiet
+ * for a moment.
+ *
+ * Configured by system property pumpcontrol.schedule=file - without it the built in
+ * schedule is used and nothing is watched.
+ */
+public class ScheduleWatcher {
+    private static final long QUIET_MILLIS = 500;
+
+    private final File file;
+    private volatile ScheduleConfig config;
+    private volatile long reloads;
+    private volatile long rejected;
+    private volatile WatchService watcher;
+
+    public ScheduleWatcher(File file) {
+        this.file = file;
+        this.config = ScheduleConfig.defaults();
+    }
+
+    /** @return a watcher for pumpcontrol.schedule, or one serving the defaults if unset. */
+    public static ScheduleWatcher fromProperties() {
+        return fromProperties("");
+    }
+
+    /** @return a watcher of pumpcontrol.schedule.circuit, or pumpcontrol.schedule if that is not set. */
+    public static ScheduleWatcher fromProperties(String circuit) {
+        String path = circuit.isEmpty() ? null : System.getProperty("pumpcontrol.schedule." + circuit);
+        if (path == null) {
+            path = System.getProperty("pumpcontrol.schedule");
+        }
+        return new ScheduleWatcher(path == null ? null : new File(path));
+    }
+
+    public ScheduleConfig get() {
+        return config;
+    }
+
+    public long getReloads() {
+        return reloads;
+    }
+
+    public long getRejected() {
+        return rejected;
+    }
+
+    /** Load the file, if any, and watch it from now on - in fast startup mode once the pump is under control. */
+    public void start() {
+        if (file == null) {
+            return;
+        }
+        reload();
+        Startup.afterFirstAck(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    watch();
+                } catch (IOException e) {
+                    System.err.println("Schedule " + file + " not watched: " + e);
+                }
+            }
+        });
+    }
+
+    private void watch() throws IOException {
+        Path dir = file.getAbsoluteFile().getParentFile().toPath();
+        watcher = FileSystems.getDefault().newWatchService();
+        dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+                     StandardWatchEventKinds.OVERFLOW);
+        Thread t = new Thread("schedule-watch") {
+            @Override
+            public void run() {
+                try {
+                    watchForever();
+                } catch (InterruptedException e) {
+                    // Stopped.
+                } catch (java.nio.file.ClosedWatchServiceException e) {
+                    // Stopped.
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+    }
+
+    public void close() {
+        if (watcher != null) {
+            try {
+                watcher.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void watchForever() throws InterruptedException {
+        String name = file.getName();
+        while (true) {
+            WatchKey key = watcher.take();
+            boolean ours = false;
+            do {
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    Object context = event.context();
+                    ours |= event.kind() == StandardWatchEventKinds.OVERFLOW
+                            || (context != null && name.equals(context.toString()));
+                }
+                key.reset();
+                key = watcher.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS);
+            } while (key != null);
+            if (ours) {
+                reload();
+            }
+        }
+    }
+
+    /** @return true if the file compiled and is now in force. */
+    public boolean reload() {
+        try {
+            ScheduleConfig next = ScheduleConfig.load(file);
+            for (String w : next.getWarnings()) {
+                System.out.println("Schedule " + file + ": " + w);
+            }
+            config = next;
+            reloads++;
+            System.out.println("Schedule loaded from " + file);
+            return true;
+        } catch (IOException e) {
+            rejected++;
+            System.err.println("Schedule " + file + " not loaded, keeping " + config.getSource() + ": " + e);
+        } catch (IllegalArgumentException e) {
+            rejected++;
+            System.err.println("Schedule " + file + " not loaded, keeping " + config.getSource() + ": " + e.getMessage());
+        }
+        return false;
+    }
+}
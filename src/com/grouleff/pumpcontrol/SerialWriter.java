@@ -0,0 +1,241 @@
+package com.grouleff.pumpcontrol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * The only writer of a link. Senders - scheduler, supervisor, telemetry, proxy clients -
+ * copy their telegram into a bounded queue and return; a thread of its own takes
+ * everything queued and writes it to the dongle in one write and one flush per wake-up.
+ * Nobody blocks on the serial port, and a burst of pipelined telegrams costs one
+ * system call instead of one each.
+ *
+ * Two lanes: telegrams of a lease holder at LinkArbiter.PRIORITY_CONTROL or better go
+ * ahead of everything else queued, e.g. a pump command ahead of proxy clients' bursts.
+ * Within a lane, first in first out.
+ *
+ * When the dongle does not keep up and a lane is full, senders wait for room - that
+ * slows the proxy clients down instead of growing a queue - and give up with an
+ * IOException after pumpcontrol.writer.block milliseconds.
+ *
+ * Writes are paced by a ThrottlePolicy, for dongles that want telegrams in pieces.
+ *
+ * Configured by system properties:
+ *  pumpcontrol.writer.queue - telegrams per lane (default 16)
+ *  pumpcontrol.writer.block - milliseconds a sender waits for room (default 1000)
+ * and the pumpcontrol.writer.* of ThrottlePolicy.
+ */
+public class SerialWriter {
+    private static final int MAX_TELEGRAM = 300; // As Packet.
+    private static final int GATHER = 512;
+
+    /** A ring of preallocated slots - queueing allocates nothing. */
+    private static final class Lane {
+        final byte[][] slots;
+        final int[] lengths;
+        final long[] queuedAt;
+        final Metrics.Histogram wait;
+        int head;
+        int count;
+
+        Lane(int capacity, Metrics.Histogram wait) {
+            slots = new byte[capacity][MAX_TELEGRAM];
+            lengths = new int[capacity];
+            queuedAt = new long[capacity];
+            this.wait = wait;
+        }
+
+        boolean isFull() {
+            return count == slots.length;
+        }
+
+        void add(byte[] b, int off, int len) {
+            int i = (head + count) % slots.length;
+            System.arraycopy(b, off, slots[i], 0, len);
+            lengths[i] = len;
+            queuedAt[i] = System.nanoTime();
+            count++;
+        }
+
+        /** @return bytes moved to the gather buffer, 0 if the next telegram does not fit. */
+        int takeInto(byte[] gather, int at) {
+            int len = lengths[head];
+            if (at + len > gather.length) {
+                return 0;
+            }
+            System.arraycopy(slots[head], 0, gather, at, len);
+            PacketLog.log(PacketLog.Tag.CAPTURE_TX, null, slots[head], 0, len); // A record per telegram, not per write.
+            wait.recordSince(queuedAt[head]);
+            head = (head + 1) % slots.length;
+            count--;
+            return len;
+        }
+    }
+
+    private final RXTXLink link;
+    private final ThrottlePolicy policy;
+    private final long blockNanos = Integer.getInteger("pumpcontrol.writer.block", 1000) * 1000000L;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition queued = lock.newCondition();
+    private final Condition room = lock.newCondition();
+    private final Lane high;
+    private final Lane low;
+    // Writer thread only: bytes taken from the lanes, not yet written.
+    private final byte[] gather = new byte[GATHER];
+    private int gatherFrom;
+    private int gatherTo;
+
+    private final Metrics.Counter writes;
+    private final Metrics.Counter telegrams;
+    private final Metrics.Counter refused;
+
+    SerialWriter(RXTXLink link, ThrottlePolicy policy) {
+        this.link = link;
+        this.policy = policy;
+        int capacity = Math.max(1, Integer.getInteger("pumpcontrol.writer.queue", 16));
+        String port = Metrics.label("port", link.portName);
+        high = new Lane(capacity, Metrics.histogram("pumpcontrol_writer_queued_seconds", port + "," + Metrics.label("lane", "high"),
+                "From a telegram queued to it taken for writing.", Metrics.LATENCY_NANOS));
+        low = new Lane(capacity, Metrics.histogram("pumpcontrol_writer_queued_seconds", port + "," + Metrics.label("lane", "low"),
+                "From a telegram queued to it taken for writing.", Metrics.LATENCY_NANOS));
+        writes = Metrics.counter("pumpcontrol_writer_writes_total", port, "Writes to the dongle, each one or more telegrams.");
+        telegrams = Metrics.counter("pumpcontrol_writer_telegrams_total", port, "Telegrams written to the dongle.");
+        refused = Metrics.counter("pumpcontrol_writer_refused_total", port, "Telegrams not queued, the queue stayed full.");
+        Metrics.counterOf("pumpcontrol_writer_throttled_seconds_total", port, "Time writes were held back by the pace policy, in whole seconds.",
+                new LongSupplier() {
+                    @Override
+                    public long getAsLong() {
+                        return SerialWriter.this.policy.getThrottledNanos() / 1000000000L;
+                    }
+                });
+    }
+
+    void start() {
+        Thread t = new Thread(link.portName + "-tx") {
+            @Override
+            public void run() {
+                writeForever();
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Queue a telegram for writing, waiting for room while the lane is full.
+     *
+     * @param urgent - ahead of everything not urgent.
+     * @throws IOException if there was no room within pumpcontrol.writer.block.
+     */
+    public void write(byte[] b, int off, int len, boolean urgent) throws IOException {
+        if (len > MAX_TELEGRAM) {
+            throw new IOException("telegram of " + len + " bytes");
+        }
+        Lane lane = urgent ? high : low;
+        lock.lock();
+        try {
+            long left = blockNanos;
+            while (lane.isFull()) {
+                if (left <= 0) {
+                    refused.inc();
+                    throw new IOException(link.portName + ": dongle not keeping up, " + lane.count + " telegrams queued");
+                }
+                try {
+                    left = room.awaitNanos(left);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted waiting to send");
+                }
+            }
+            lane.add(b, off, len);
+            queued.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** @return telegrams queued and not yet taken for writing. */
+    public int getQueued() {
+        lock.lock();
+        try {
+            return high.count + low.count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Drop whatever is queued, e.g. as the port is closed - it would reach a reset dongle. */
+    void clear() {
+        lock.lock();
+        try {
+            high.count = 0;
+            low.count = 0;
+            room.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void writeForever() {
+        while (true) {
+            try {
+                if (gatherFrom == gatherTo && !gatherAll()) {
+                    continue;
+                }
+                long now = System.nanoTime();
+                long delay = policy.delayNanos(now);
+                if (delay > 0) {
+                    TimeUnit.NANOSECONDS.sleep(delay);
+                    policy.waited(delay);
+                    now = System.nanoTime();
+                }
+                int len = policy.allow(gatherTo - gatherFrom);
+                try {
+                    OutputStream out = link.openOutputStream();
+                    out.write(gather, gatherFrom, len);
+                    out.flush();
+                    gatherFrom += len;
+                    writes.inc();
+                } catch (IOException e) {
+                    System.err.println("Sending to " + link.portName + ": " + e);
+                    link.reportFailure(e);
+                    gatherFrom = gatherTo; // Their replies time out, and the senders try again.
+                }
+                policy.wrote(len, now);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /** Wait for telegrams, then take as many as fit, urgent ones first. @return false if none were taken. */
+    private boolean gatherAll() throws InterruptedException {
+        lock.lock();
+        try {
+            while (high.count == 0 && low.count == 0) {
+                queued.await();
+            }
+            gatherFrom = 0;
+            gatherTo = 0;
+            int n = 0;
+            int len;
+            while (high.count > 0 && (len = high.takeInto(gather, gatherTo)) > 0) {
+                gatherTo += len;
+                n++;
+            }
+            while (high.count == 0 && low.count > 0 && (len = low.takeInto(gather, gatherTo)) > 0) {
+                gatherTo += len;
+                n++;
+            }
+            telegrams.add(n);
+            room.signalAll();
+            return n > 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.grouleff.pumpcontrol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * A link to an MI301Simulator instead of a serial port. Everything above the streams -
+ * framer, seqnos, arbiter, capture - is the RXTXLink code, so the proxy and scheduler
+ * run unchanged.
+ *
+ *  sim: - simulator in this process, configured by the pumpcontrol.sim.* properties.
+ *  tcp:host:port - simulator started with MI301Simulator port, possibly on another machine.
+ */
+public class SimulatedLink extends RXTXLink {
+    static final String IN_PROCESS = "sim:";
+    static final String TCP = "tcp:";
+
+    private MI301Simulator simulator;
+    private Socket socket;
+    private boolean open; // In-process: between ensureConnected and disconnect.
+
+    public SimulatedLink(String portName) {
+        super(portName);
+        if (portName.startsWith(IN_PROCESS)) {
+            simulator = new MI301Simulator();
+        }
+    }
+
+    public SimulatedLink(MI301Simulator simulator) {
+        super(IN_PROCESS);
+        this.simulator = simulator;
+    }
+
+    /** @return the in-process simulator, or null when it is remote. */
+    public MI301Simulator getSimulator() {
+        return simulator;
+    }
+
+    @Override
+    public synchronized void ensureConnected() {
+        if (simulator != null) {
+            if (!open) {
+                open = true;
+                connected();
+            }
+            return;
+        }
+        if (socket != null && !socket.isClosed()) {
+            return;
+        }
+        int colon = portName.lastIndexOf(':');
+        try {
+            socket = new Socket(portName.substring(TCP.length(), colon), Integer.parseInt(portName.substring(colon + 1)));
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(MI301DongleProxy.SO_TIMEOUT);
+            connected();
+        } catch (IOException e) {
+            socket = null;
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public synchronized boolean isConnected() {
+        return simulator != null ? open : socket != null && !socket.isClosed();
+    }
+
+    /** In-process, the simulator sees the port close, as a dongle sees its USB port reset. */
+    @Override
+    public synchronized void disconnect() {
+        dropQueued();
+        if (simulator != null) {
+            open = false;
+            simulator.portClosed();
+        } else if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Gone anyway.
+            }
+            socket = null;
+        }
+    }
+
+    @Override
+    protected OutputStream openOutputStream() throws IOException {
+        ensureConnected();
+        if (simulator != null) {
+            return simulator.getOutputStream();
+        }
+        if (socket == null) {
+            throw new IOException("Not connected to " + portName);
+        }
+        return socket.getOutputStream();
+    }
+
+    @Override
+    protected InputStream openInputStream() throws IOException {
+        ensureConnected();
+        if (simulator != null) {
+            return simulator.getInputStream();
+        }
+        if (socket == null) {
+            throw new IOException("Not connected to " + portName);
+        }
+        return socket.getInputStream();
+    }
+}
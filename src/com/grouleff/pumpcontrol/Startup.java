@@ -0,0 +1,146 @@
+package com.grouleff.pumpcontrol;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Time to control: timestamps from JVM start to the first pump command acked, and the
+ * fast startup mode that gets there sooner.
+ *
+ * mark() notes a milestone, cheaply - a name and System.nanoTime(). When the first pump
+ * ack arrives, one line with every milestone in milliseconds since JVM start is printed,
+ * so releases can be compared. Translating to JVM start needs java.lang.management, which
+ * is only loaded then, after control is established.
+ *
+ * In fast mode, work not needed for the first command - the proxy, watching the schedule
+ * file - is deferred until that ack, or 30 s if it never comes. Together with a class data
+ * sharing archive (ant cds) this is meant for the Pi.
+ *
+ * Configured by system properties:
+ *  pumpcontrol.startup.fast=true - defer what can wait
+ *  pumpcontrol.startup.log=file - also append the milestone line to this file
+ *  pumpcontrol.startup.exit=true - exit once the first ack is in, for training runs
+ */
+public final class Startup {
+    private static final long DEFER_LIMIT_MILLIS = 30000;
+    private static final boolean FAST = Boolean.getBoolean("pumpcontrol.startup.fast");
+    private static final boolean EXIT = Boolean.getBoolean("pumpcontrol.startup.exit");
+
+    private static final String[] names = new String[16];
+    private static final long[] nanos = new long[16];
+    private static int marks;
+    private static final CountDownLatch firstAck = new CountDownLatch(1);
+    private static final AtomicBoolean acked = new AtomicBoolean();
+    private static final List<Runnable> deferred = new ArrayList<Runnable>();
+    private static boolean deferring;
+
+    private Startup() {
+    }
+
+    /** Note a milestone on the way to control. Later marks with the same name are ignored. */
+    public static synchronized void mark(String name) {
+        if (marks == names.length) {
+            return;
+        }
+        for (int i = 0; i < marks; i++) {
+            if (names[i].equals(name)) {
+                return;
+            }
+        }
+        names[marks] = name;
+        nanos[marks] = System.nanoTime();
+        marks++;
+    }
+
+    /** Call on every pump ack, from any thread; the first one completes startup. */
+    public static void acked() {
+        if (acked.get() || !acked.compareAndSet(false, true)) {
+            return;
+        }
+        mark("firstAck");
+        firstAck.countDown();
+        report();
+        if (EXIT) {
+            System.exit(0);
+        }
+    }
+
+    /** Run the task now, or in fast mode once the first ack is in. */
+    public static void afterFirstAck(Runnable task) {
+        if (!FAST || firstAck.getCount() == 0) {
+            task.run();
+            return;
+        }
+        synchronized (Startup.class) {
+            deferred.add(task);
+            if (deferring) {
+                return;
+            }
+            deferring = true;
+        }
+        Thread t = new Thread("startup-deferred") {
+            @Override
+            public void run() {
+                try {
+                    if (!firstAck.await(DEFER_LIMIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                        System.err.println("Startup: no ack yet, starting the rest anyway");
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                while (true) {
+                    Runnable next;
+                    synchronized (Startup.class) {
+                        if (deferred.isEmpty()) {
+                            deferring = false;
+                            return;
+                        }
+                        next = deferred.remove(0);
+                    }
+                    try {
+                        next.run();
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private static void report() {
+        long nowNanos = System.nanoTime();
+        long sinceJvmStart = System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+        StringBuilder sb = new StringBuilder("startup ms since JVM start:");
+        synchronized (Startup.class) {
+            for (int i = 0; i < marks; i++) {
+                sb.append(' ').append(names[i]).append('=')
+                  .append(sinceJvmStart - (nowNanos - nanos[i]) / 1000000);
+            }
+        }
+        sb.append(FAST ? " mode=fast" : " mode=normal");
+        String line = sb.toString();
+        System.out.println(line);
+        String log = System.getProperty("pumpcontrol.startup.log");
+        if (log != null) {
+            try {
+                Writer w = new FileWriter(log, true);
+                try {
+                    w.write(System.currentTimeMillis() + " " + line + "\n");
+                } finally {
+                    w.close();
+                }
+            } catch (IOException e) {
+                System.err.println("Startup log " + log + ": " + e);
+            }
+        }
+    }
+}
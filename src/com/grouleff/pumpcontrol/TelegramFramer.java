@@ -0,0 +1,271 @@
+package com.grouleff.pumpcontrol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+
+/**
+ * Streaming telegram framer. Bytes are bulk-read into a ring buffer and scanned
+ * for Start Delimiters (0x24, 0x26, 0x27, 0x30). A candidate is accepted when its
+ * length byte is sane and the CRC matches; otherwise the framer skips a single byte
+ * and scans on, so sync is regained inside the same buffer without further reads.
+ *
+ * Every byte is skipped at most once, and a candidate costs at most one CRC pass
+ * over 259 bytes, so resync is linear in the number of bytes received.
+ *
+ * One thread feeds and drains a framer. The statistics may be read from anywhere.
+ */
+public class TelegramFramer {
+
+    private static final int MAX_TELEGRAM = 255 + 4;
+
+    private final byte[] ring;
+    private final int mask;
+    private int head; // first unconsumed byte, increases forever - mask when indexing.
+    private int tail; // next byte to write.
+    private final GeniCRC.Accumulator crc = new GeniCRC.Accumulator();
+    private PacketLog.Tag tap;
+    private Metrics.Counter skippedCount, crcRejectCount; // Null if not counted, see countInto().
+
+    private volatile long telegrams;
+    private volatile long bytesSkipped;
+    private volatile long crcRejects;
+    private volatile long reads;
+
+    public TelegramFramer() {
+        this(1024);
+    }
+
+    /** @param capacity - power of two, at least two max telegrams. */
+    public TelegramFramer(int capacity) {
+        if (Integer.bitCount(capacity) != 1 || capacity < 2 * MAX_TELEGRAM) {
+            throw new IllegalArgumentException("capacity " + capacity);
+        }
+        ring = new byte[capacity];
+        mask = capacity - 1;
+    }
+
+    /** Log every framed telegram with this tag, e.g. to capture it. Null for none. */
+    public void setTap(PacketLog.Tag tap) {
+        this.tap = tap;
+    }
+
+    /** Also add skipped bytes and CRC rejects to these, e.g. shared by all framers of a kind. */
+    public void countInto(Metrics.Counter skipped, Metrics.Counter crcRejects) {
+        this.skippedCount = skipped;
+        this.crcRejectCount = crcRejects;
+    }
+
+    /** @return bytes received but not yet framed. */
+    public int getBuffered() {
+        return tail - head;
+    }
+
+    /** @return room left in the ring. */
+    public int getFree() {
+        return ring.length - (tail - head);
+    }
+
+    public void clear() {
+        head = tail;
+    }
+
+    /**
+     * Read whatever the stream has, in one blocking read and then as many
+     * non-blocking reads as available() promises, until the ring is full.
+     *
+     * @return number of bytes read, 0 on timeout, -1 at end of stream.
+     */
+    public int fill(InputStream in) throws IOException {
+        int total = 0;
+        do {
+            int free = ring.length - (tail - head);
+            int at = tail & mask;
+            int len = Math.min(free, ring.length - at);
+            if (len == 0) {
+                break;
+            }
+            int readLen;
+            try {
+                readLen = in.read(ring, at, len);
+            } catch (SocketTimeoutException e) {
+                readLen = e.bytesTransferred;
+            }
+            reads++;
+            if (readLen < 0) {
+                return total > 0 ? total : -1;
+            }
+            tail += readLen;
+            total += readLen;
+            if (readLen == 0) {
+                break;
+            }
+        } while (in.available() > 0);
+        return total;
+    }
+
+    /**
+     * Hand bytes over from somewhere else, e.g. a channel.
+     *
+     * @return number of bytes accepted, less than len when the ring is full.
+     */
+    public int feed(byte[] src, int offset, int len) {
+        int accepted = Math.min(len, ring.length - (tail - head));
+        int at = tail & mask;
+        int first = Math.min(accepted, ring.length - at);
+        System.arraycopy(src, offset, ring, at, first);
+        System.arraycopy(src, offset + first, ring, 0, accepted - first);
+        tail += accepted;
+        return accepted;
+    }
+
+    /**
+     * Extract the next sound telegram into the packet, skipping junk in front of it.
+     *
+     * @return true if a complete telegram was copied into the packet.
+     */
+    public boolean next(Packet into) {
+        int skipped = 0; // Published once per call, the counters are volatile.
+        try {
+            while (true) {
+                int avail = tail - head;
+                if (avail < 2) {
+                    if (avail == 1 && !isValidStartDelimiter(ring[head & mask])) {
+                        head++;
+                        skipped++;
+                    }
+                    return false;
+                }
+                if (!isValidStartDelimiter(ring[head & mask])) {
+                    head++;
+                    skipped++;
+                    continue;
+                }
+                int len = ring[(head + 1) & mask] & 0xff;
+                if (len < 2) {
+                    head++; // No room for dst and seqno.
+                    skipped++;
+                    continue;
+                }
+                int total = len + 4;
+                if (avail < total) {
+                    return false;
+                }
+                crc.reset();
+                updateCrc(head + 1, head + total);
+                if (!crc.isReceivedTelegramValid()) {
+                    crcRejects++;
+                    if (crcRejectCount != null) {
+                        crcRejectCount.inc();
+                    }
+                    head++;
+                    skipped++;
+                    continue;
+                }
+                copyOut(into, head, total);
+                head += total;
+                telegrams++;
+                return true;
+            }
+        } finally {
+            if (skipped > 0) {
+                bytesSkipped += skipped;
+                if (skippedCount != null) {
+                    skippedCount.add(skipped);
+                }
+            }
+        }
+    }
+
+    /**
+     * Block until a telegram arrives or the timeout expires, for request/reply exchanges.
+     * A candidate still incomplete when the line goes quiet is given up on.
+     *
+     * @return true if a complete telegram was copied into the packet.
+     */
+    public boolean receive(InputStream in, Packet into, long timeoutMillis) throws IOException {
+        long startedAt = System.currentTimeMillis();
+        while (!next(into)) {
+            if (System.currentTimeMillis() - startedAt > timeoutMillis) {
+                return false;
+            }
+            int readLen = fill(in);
+            if (readLen < 0) {
+                throw new IOException("end of stream inside telegram");
+            }
+            if (readLen == 0) {
+                resync();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Give up on the candidate at the head, e.g. when the rest of it did not arrive
+     * within the receive timeout. The scan resumes at the next byte. Without this, a
+     * junk delimiter with a large length byte holds back telegrams behind it until
+     * enough further bytes have arrived to reject it.
+     */
+    public void resync() {
+        if (tail - head > 0) {
+            head++;
+            bytesSkipped++;
+            if (skippedCount != null) {
+                skippedCount.inc();
+            }
+        }
+    }
+
+
+    private void updateCrc(int from, int to) {
+        int a = from & mask;
+        int b = to & mask;
+        if (a < b || b == 0) {
+            crc.update(ring, a, b == 0 ? ring.length : b);
+        } else {
+            crc.update(ring, a, ring.length);
+            crc.update(ring, 0, b);
+        }
+    }
+
+    private void copyOut(Packet into, int from, int len) {
+        int a = from & mask;
+        int first = Math.min(len, ring.length - a);
+        into.reset();
+        into.addBytes(ring, a, first);
+        into.addBytes(ring, 0, len - first);
+        into.markComplete();
+        if (tap != null) {
+            into.log(tap, null);
+        }
+    }
+
+    static boolean isValidStartDelimiter(byte sd) {
+        return (sd == 0x24 || sd == 0x26 || sd == 0x27 || sd == 0x30);
+    }
+
+    /** @return telegrams framed with a sound CRC. */
+    public long getTelegrams() {
+        return telegrams;
+    }
+
+    /** @return bytes thrown away while looking for a Start Delimiter. */
+    public long getBytesSkipped() {
+        return bytesSkipped;
+    }
+
+    /** @return candidates with a Start Delimiter and length, but a bad CRC. */
+    public long getCrcRejects() {
+        return crcRejects;
+    }
+
+    /** @return read calls made on the stream. */
+    public long getReads() {
+        return reads;
+    }
+
+    @Override
+    public String toString() {
+        return "telegrams=" + telegrams + " skipped=" + bytesSkipped + " crcRejects=" + crcRejects + " reads=" + reads;
+    }
+}
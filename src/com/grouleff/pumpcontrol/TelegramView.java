@@ -0,0 +1,94 @@
+package com.grouleff.pumpcontrol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Read-only flyweight over a telegram somewhere in a shared buffer. Same layout
+ * and accessors as Packet, but nothing is copied: wrap() just points the view at
+ * a region, so one instance can be reused for every telegram inspected or forwarded.
+ *
+ * The view is only valid until the owner of the buffer reuses that region.
+ */
+public final class TelegramView {
+    private byte[] buffer;
+    private int offset;
+    private int length;
+
+    public TelegramView() {
+    }
+
+    public TelegramView(byte[] buffer, int offset, int length) {
+        wrap(buffer, offset, length);
+    }
+
+    public TelegramView wrap(byte[] buffer, int offset, int length) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+        return this;
+    }
+
+    /** @return number of bytes in the telegram, including delimiter and CRC. */
+    public int getTop() {
+        return length;
+    }
+
+    public byte getByte(int i) {
+        return buffer[offset + i];
+    }
+
+    public byte getStartDelimiter() {
+        return buffer[offset];
+    }
+
+    public int getLength() {
+        return buffer[offset + 1];
+    }
+
+    public int getLengthOfPayload() {
+        return buffer[offset + 1] - 2;
+    }
+
+    public byte getGeniDstAndDeviceHandle() {
+        return buffer[offset + 2];
+    }
+
+    public byte getSeqnoAndSrcField() {
+        return buffer[offset + 3];
+    }
+
+    public byte getPayloadByte(int i) {
+        return buffer[offset + i + 4];
+    }
+
+    public int getCheckValue() {
+        int hi = ((int)buffer[offset + length - 2]) & 0xff;
+        int lo = ((int)buffer[offset + length - 1]) & 0xff;
+        return (hi << 8) | lo;
+    }
+
+    public boolean isCheckSumValid() {
+        if (length < 4) {
+            return false;
+        }
+        return GeniCRC.isReceivedCheckValueValid(buffer, offset + 1, offset + length - 2, getCheckValue());
+    }
+
+    /** Write the telegram as is - no logging, no chunking. */
+    public void writeTo(OutputStream outputStream) throws IOException {
+        outputStream.write(buffer, offset, length);
+        outputStream.flush();
+    }
+
+    /** Append the telegram to a buffer in fill mode, in one bulk put - no logging. */
+    public void copyTo(ByteBuffer out) {
+        out.put(buffer, offset, length);
+    }
+
+    /** Copy the telegram into a (typically pooled) packet, replacing its content. */
+    public void copyTo(Packet packet) {
+        packet.copyFrom(buffer, offset, length);
+    }
+}
@@ -0,0 +1,404 @@
+package com.grouleff.pumpcontrol;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Reads data items back from the pump - speed, flow, head, power, alarms, whatever is
+ * configured - with as few telegrams as possible and at a bounded share of the link.
+ *
+ * Each item has its own period. When something is due, everything due is packed into
+ * one request, a GET APDU per class, and the room left is filled with items that would be
+ * due soon anyway, so slow items ride along with fast ones. Polls are limited to a rate
+ * of telegrams per second, and are sent under a background lease - the scheduler and
+ * proxy clients go first. When the link was busy, all periods are stretched (up to 8
+ * times), and shrink back once it is quiet.
+ *
+ * Items the pump does not know are found by asking for them one by one, and dropped.
+ *
+ * Results are published as an immutable Snapshot through a volatile field - readers
+ * never lock or wait.
+ *
+ * Configured by system properties:
+ *  pumpcontrol.telemetry=name=class/id@millis,... - e.g. speed=2/32@1000 (no poller without it)
+ *  pumpcontrol.telemetry.rate - poll telegrams per second at most (default 2)
+ */
+public class TelemetryPoller {
+    private static final long LEASE_WAIT = 200;
+    private static final long BUSY_WAIT = 5; // Waited longer than this for the lease: the link is busy.
+    private static final int MAX_STRETCH = 8;
+    private static final int MAX_APDUS = 16;
+
+    /** An immutable set of the latest values. */
+    public static final class Snapshot {
+        private final String[] names;
+        private final int[] keys;
+        private final int[] values;
+        private final long[] at;
+        private final long polls;
+        private final int stretch;
+
+        Snapshot(String[] names, int[] keys, int[] values, long[] at, long polls, int stretch) {
+            this.names = names;
+            this.keys = keys;
+            this.values = values;
+            this.at = at;
+            this.polls = polls;
+            this.stretch = stretch;
+        }
+
+        private int index(int cls, int id) {
+            int key = cls << 8 | id;
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == key) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private int index(String name) {
+            for (int i = 0; i < names.length; i++) {
+                if (names[i].equals(name)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /** @return the raw 8 bit value, or -1 if not (yet) read. */
+        public int get(int cls, int id) {
+            int i = index(cls, id);
+            return i < 0 ? -1 : values[i];
+        }
+
+        public int get(String name) {
+            int i = index(name);
+            return i < 0 ? -1 : values[i];
+        }
+
+        /** @return when the item was read, in millis, 0 if never. */
+        public long getAt(String name) {
+            int i = index(name);
+            return i < 0 ? 0 : at[i];
+        }
+
+        public int size() {
+            return names.length;
+        }
+
+        public String getName(int i) {
+            return names[i];
+        }
+
+        public int getValue(int i) {
+            return values[i];
+        }
+
+        public long getAt(int i) {
+            return at[i];
+        }
+
+        /** @return poll telegrams answered so far. */
+        public long getPolls() {
+            return polls;
+        }
+
+        /** @return how much the periods are stretched because the link is busy, 1 when not. */
+        public int getStretch() {
+            return stretch;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < names.length; i++) {
+                if (i > 0) {
+                    sb.append(' ');
+                }
+                sb.append(names[i]).append('=').append(values[i]);
+            }
+            return sb.toString();
+        }
+    }
+
+    private static final class Item {
+        final String name;
+        final int cls;
+        final int id;
+        final long period;
+        int index; // In the snapshot.
+        long due;
+        boolean suspect; // In an APDU the pump did not know - ask alone.
+        boolean dropped;
+        boolean inRequest;
+
+        Item(String name, int cls, int id, long period) {
+            this.name = name;
+            this.cls = cls;
+            this.id = id;
+            this.period = period;
+        }
+    }
+
+    private final RXTXLink link;
+    private final int pumpAddress;
+    private final LinkArbiter.Lease lease;
+    private final Item[] items; // Sorted by class, then ID.
+    private final long minGapMillis;
+    private final Packet request = new Packet();
+    private final GeniRequest encoder = new GeniRequest(request);
+    private final Packet reply = new Packet();
+    private final GeniValues decoded = new GeniValues();
+    private final Item[] apduItems; // Items of each APDU in the request, flattened.
+    private final int[] apduStart = new int[MAX_APDUS + 1];
+    private int apdus;
+
+    private volatile Snapshot snapshot;
+    private long polls;
+    private int stretch = 1;
+    private long lastPollAt;
+    private volatile boolean stopped;
+    private Thread thread;
+
+    /** @param pumpAddress - GENI unit address of the pump, 255 for whichever is in range. */
+    public TelemetryPoller(RXTXLink link, int pumpAddress, String items, double telegramsPerSecond) {
+        this.link = link;
+        this.pumpAddress = pumpAddress;
+        this.lease = link.getArbiter().newLease("telemetry", LinkArbiter.PRIORITY_BACKGROUND);
+        this.items = parse(items);
+        this.apduItems = new Item[this.items.length];
+        this.minGapMillis = (long)(1000 / telegramsPerSecond);
+        String[] names = new String[this.items.length];
+        int[] keys = new int[this.items.length];
+        for (int i = 0; i < names.length; i++) {
+            this.items[i].index = i;
+            names[i] = this.items[i].name;
+            keys[i] = this.items[i].cls << 8 | this.items[i].id;
+        }
+        int[] values = new int[names.length];
+        Arrays.fill(values, -1);
+        snapshot = new Snapshot(names, keys, values, new long[names.length], 0, 1);
+    }
+
+    /** @return a poller for pumpcontrol.telemetry, or null if not configured. */
+    public static TelemetryPoller fromProperties(RXTXLink link, int pumpAddress) {
+        String items = System.getProperty("pumpcontrol.telemetry");
+        if (items == null || items.trim().isEmpty()) {
+            return null;
+        }
+        double rate = Double.parseDouble(System.getProperty("pumpcontrol.telemetry.rate", "2"));
+        return new TelemetryPoller(link, pumpAddress, items, rate);
+    }
+
+    /** @throws IllegalArgumentException on a malformed item. */
+    static Item[] parse(String spec) {
+        List<Item> list = new ArrayList<Item>();
+        for (String s : spec.split(",")) {
+            String item = s.trim();
+            int eq = item.indexOf('=');
+            int slash = item.indexOf('/', eq + 1);
+            int at = item.indexOf('@', slash + 1);
+            try {
+                int cls = Integer.parseInt(item.substring(eq + 1, slash));
+                int id = Integer.parseInt(item.substring(slash + 1, at));
+                long period = Long.parseLong(item.substring(at + 1));
+                if (eq <= 0 || cls < 0 || cls >= GeniApdu.CLASSES || id < 0 || id > 255 || period <= 0) {
+                    throw new IllegalArgumentException("telemetry item " + item);
+                }
+                list.add(new Item(item.substring(0, eq), cls, id, period));
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("telemetry item " + item + " is not name=class/id@millis");
+            }
+        }
+        Item[] items = list.toArray(new Item[list.size()]);
+        Arrays.sort(items, new Comparator<Item>() {
+            @Override
+            public int compare(Item a, Item b) {
+                return a.cls != b.cls ? a.cls - b.cls : a.id - b.id;
+            }
+        });
+        return items;
+    }
+
+    /** @return the latest values - never null, never changing. */
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    public void start() {
+        thread = new Thread("telemetry") {
+            @Override
+            public void run() {
+                try {
+                    pollForever();
+                } catch (InterruptedException e) {
+                    // Stopped.
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        stopped = true;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    private void pollForever() throws InterruptedException {
+        while (!stopped) {
+            long now = System.currentTimeMillis();
+            long wakeAt = Math.max(nextDue(), lastPollAt + minGapMillis);
+            if (wakeAt > now) {
+                Thread.sleep(wakeAt - now);
+                continue;
+            }
+            lastPollAt = now;
+            if (!buildRequest(now)) {
+                continue;
+            }
+            long askedAt = System.currentTimeMillis();
+            if (!lease.acquire(LEASE_WAIT)) {
+                busy(now);
+                continue;
+            }
+            // Somebody else had the link while we waited: stretch. Free right away: relax.
+            boolean waited = System.currentTimeMillis() - askedAt > BUSY_WAIT;
+            stretch = waited ? Math.min(stretch * 2, MAX_STRETCH) : Math.max(stretch / 2, 1);
+            boolean answered;
+            try {
+                // Not sent again when lost - the items are simply due again soon.
+                answered = link.addressPump(pumpAddress, reply)
+                    && link.exchange(request, reply, link.getRtt().getTimeoutMillis());
+            } catch (IOException e) {
+                answered = false;
+            } finally {
+                lease.release();
+            }
+            if (!answered) {
+                busy(now);
+                continue;
+            }
+            received(System.currentTimeMillis());
+        }
+    }
+
+    private long nextDue() {
+        long next = Long.MAX_VALUE;
+        for (Item item : items) {
+            if (!item.dropped && item.due < next) {
+                next = item.due;
+            }
+        }
+        return next;
+    }
+
+    /** Nobody got to poll: try the same items a little later. */
+    private void busy(long now) {
+        stretch = Math.min(stretch * 2, MAX_STRETCH);
+        for (Item item : items) {
+            if (item.inRequest) {
+                item.due = now + item.period * stretch / 2;
+                item.inRequest = false;
+            }
+        }
+    }
+
+    /**
+     * Everything due, and then what will be due within its period anyway, a GET APDU per
+     * class. A suspect item goes alone, in an APDU of its own.
+     *
+     * @return false if nothing is due.
+     */
+    private boolean buildRequest(long now) {
+        encoder.begin(GeniRequest.PUMP);
+        apdus = 0;
+        int n = 0;
+        for (Item item : items) {
+            item.inRequest = false;
+        }
+        for (Item item : items) {
+            if (!item.dropped && item.suspect && item.due <= now) {
+                apduStart[apdus++] = n;
+                encoder.apdu(item.cls, GeniApdu.OP_GET).id(item.id);
+                item.inRequest = true;
+                apduItems[n++] = item;
+                return finish(n);
+            }
+        }
+        n = add(now, 0, n);
+        if (n == 0) {
+            return false;
+        }
+        // Room left: what would be due within a period anyway.
+        return finish(add(now, 1, n));
+    }
+
+    /** Add the items due within the horizon, in a GET APDU per class, as far as there is room. */
+    private int add(long now, long horizonPeriods, int n) {
+        int cls = -1;
+        for (Item item : items) {
+            if (item.dropped || item.suspect || item.inRequest
+                || item.due - now > item.period * stretch * horizonPeriods) {
+                continue;
+            }
+            if (item.cls != cls || encoder.roomInApdu() < 1) {
+                if (encoder.room() < 3 || apdus == MAX_APDUS) {
+                    break; // Full.
+                }
+                encoder.apdu(item.cls, GeniApdu.OP_GET);
+                apduStart[apdus++] = n;
+                cls = item.cls;
+            }
+            encoder.id(item.id);
+            item.inRequest = true;
+            apduItems[n++] = item;
+        }
+        return n;
+    }
+
+    private boolean finish(int n) {
+        encoder.close();
+        apduStart[apdus] = n;
+        return n > 0;
+    }
+
+    private void received(long now) {
+        int stored = decoded.decode(request, reply, now);
+        Snapshot old = snapshot;
+        int[] values = old.values.clone();
+        long[] at = old.at.clone();
+        for (int a = 0; a < apdus; a++) {
+            int ack = stored >= 0 && a < decoded.getApdus() ? decoded.getAck(a) : -1;
+            for (int k = apduStart[a]; k < apduStart[a + 1]; k++) {
+                Item item = apduItems[k];
+                item.inRequest = false;
+                if (ack == GeniApdu.ACK_OK) {
+                    item.suspect = false;
+                    item.due = now + item.period * stretch;
+                    values[item.index] = decoded.get(item.cls, item.id);
+                    at[item.index] = now;
+                } else if (ack > 0) {
+                    if (apduStart[a + 1] - apduStart[a] == 1 && item.suspect) {
+                        item.dropped = true;
+                        System.err.println("Telemetry: pump does not know " + item.name + " "
+                                           + item.cls + "/" + item.id + ", ack " + ack);
+                    } else {
+                        item.suspect = true;
+                        item.due = now;
+                    }
+                } else {
+                    item.due = now + item.period; // Garbled - try again.
+                }
+            }
+        }
+        polls++;
+        snapshot = new Snapshot(old.names, old.keys, values, at, polls, stretch);
+    }
+}
@@ -0,0 +1,64 @@
+package com.grouleff.pumpcontrol;
+
+/**
+ * How fast the SerialWriter may push bytes at the dongle. Some USB-serial dongles drop
+ * bytes when a long telegram arrives in one go; they want it in small pieces, or at a
+ * pace they can forward. This replaces the sleeps between chunks that used to be in
+ * Packet - the pace is explicit, measured, and costs nothing when not configured.
+ *
+ *  - rate: the line is busy for len / rate after each write; the next write waits for it.
+ *  - chunk: at most this many bytes per write.
+ *  - gap: at least this long between writes.
+ *
+ * Used by the writer thread only, so nothing is locked.
+ *
+ * Configured by system properties, used by fromProperties():
+ *  pumpcontrol.writer.rate - bytes per second at most (default 0, no limit)
+ *  pumpcontrol.writer.chunk - bytes per write at most (default 0, no limit)
+ *  pumpcontrol.writer.gap - milliseconds between writes at least (default 0)
+ */
+public final class ThrottlePolicy {
+    private final long nanosPerByte;
+    private final int chunk;
+    private final long gapNanos;
+    private long freeAt; // System.nanoTime() when the next write may go.
+    private volatile long throttledNanos; // Written by the writer thread only.
+
+    public ThrottlePolicy(int bytesPerSecond, int chunk, long gapMillis) {
+        this.nanosPerByte = bytesPerSecond > 0 ? 1000000000L / bytesPerSecond : 0;
+        this.chunk = chunk > 0 ? chunk : Integer.MAX_VALUE;
+        this.gapNanos = gapMillis * 1000000L;
+        this.freeAt = System.nanoTime();
+    }
+
+    public static ThrottlePolicy fromProperties() {
+        return new ThrottlePolicy(Integer.getInteger("pumpcontrol.writer.rate", 0),
+                                  Integer.getInteger("pumpcontrol.writer.chunk", 0),
+                                  Integer.getInteger("pumpcontrol.writer.gap", 0));
+    }
+
+    /** @return nanos to wait before the next write, 0 if it may go now. */
+    public long delayNanos(long now) {
+        return Math.max(0, freeAt - now);
+    }
+
+    /** @return how many of the want bytes the next write may carry. */
+    public int allow(int want) {
+        return Math.min(want, chunk);
+    }
+
+    /** Note a write of bytes, done at now. */
+    public void wrote(int bytes, long now) {
+        freeAt = Math.max(freeAt, now) + bytes * nanosPerByte + gapNanos;
+    }
+
+    /** Note time spent waiting for delayNanos(). */
+    public void waited(long nanos) {
+        throttledNanos += nanos;
+    }
+
+    /** @return time writes were held back, in total. */
+    public long getThrottledNanos() {
+        return throttledNanos;
+    }
+}
@@ -0,0 +1,142 @@
+package com.grouleff.pumpcontrol;
+
+/**
+ * How long CustomScheduler sleeps between ticks. A fixed 10 s is too slow next to a
+ * threshold - 38.9 degrees with the start at 39 - and wasted far from every threshold.
+ * Instead each tick looks at:
+ *
+ *  - the margin: degrees to the nearest threshold, see ScheduleConfig.marginCelsius(),
+ *  - the slope: how fast the temperatures move, smoothed over new sensor samples,
+ *  - when a rule on time applies next: a run limit, a pause window starting or ending,
+ *  - whether the pump was just switched, as temperatures move fast after that,
+ *
+ * and sleeps half the predicted time to the threshold (margin / slope), within
+ * [min, max] - so ticks come closer and closer as a threshold comes nearer, and far
+ * apart while nothing moves - but never longer than the margin takes at the fastest
+ * rate the water is expected to change, whatever the slope says. Within the near band
+ * the prediction is not trusted to be more than near.max, in case the slope changes;
+ * after a switch, the minimum. A rule on time is met exactly, if it applies sooner.
+ * Without temperatures - stale sensors - the old 10 s.
+ *
+ * Used by the scheduler thread only.
+ *
+ * Configured by system properties:
+ *  pumpcontrol.tick.min, pumpcontrol.tick.max - milliseconds (default 1000, 60000)
+ *  pumpcontrol.tick.near - degrees from a threshold that count as near (default 0.5)
+ *  pumpcontrol.tick.rate - fastest expected change, degrees per minute (default 3)
+ *  pumpcontrol.tick.near.max - milliseconds between ticks when near, at most (default 5000)
+ *  pumpcontrol.tick.transition - milliseconds of fast ticks after the pump is switched (default 15000)
+ */
+public final class TickPlanner {
+    static final long DEFAULT_MILLIS = 10 * 1000;
+    private static final double SMOOTHING = 0.3; // Weight of a new slope sample.
+
+    private final long minMillis;
+    private final long maxMillis;
+    private final double nearCelsius;
+    private final long nearMaxMillis;
+    private final double maxRate; // Degrees per second.
+    private final long transitionMillis;
+
+    private long sampledAt; // Of the sensor samples the slopes were last updated from.
+    private double lastCirc = Double.NaN;
+    private double lastReturn = Double.NaN;
+    private double circSlope; // Degrees per second.
+    private double returnSlope;
+    private long transitionUntil;
+    private String reason = "start";
+
+    /** @param maxRate - fastest expected change, degrees per second. */
+    public TickPlanner(long minMillis, long maxMillis, double maxRate, double nearCelsius, long nearMaxMillis, long transitionMillis) {
+        this.minMillis = minMillis;
+        this.maxMillis = Math.max(minMillis, maxMillis);
+        this.nearCelsius = nearCelsius;
+        this.nearMaxMillis = nearMaxMillis;
+        this.maxRate = maxRate;
+        this.transitionMillis = transitionMillis;
+    }
+
+    public static TickPlanner fromProperties() {
+        return new TickPlanner(Integer.getInteger("pumpcontrol.tick.min", 1000),
+                               Integer.getInteger("pumpcontrol.tick.max", 60000),
+                               Double.parseDouble(System.getProperty("pumpcontrol.tick.rate", "3")) / 60,
+                               Double.parseDouble(System.getProperty("pumpcontrol.tick.near", "0.5")),
+                               Integer.getInteger("pumpcontrol.tick.near.max", 5000),
+                               Integer.getInteger("pumpcontrol.tick.transition", 15000));
+    }
+
+    public long getMinMillis() {
+        return minMillis;
+    }
+
+    public long getMaxMillis() {
+        return maxMillis;
+    }
+
+    /** Note the latest sensor samples; the slopes move only when sampledAt is newer. */
+    public void sampled(long sampledAt, double circTemp, double returnTemp) {
+        if (sampledAt <= this.sampledAt) {
+            return;
+        }
+        if (this.sampledAt > 0 && !Double.isNaN(lastCirc) && !Double.isNaN(circTemp)
+            && !Double.isNaN(lastReturn) && !Double.isNaN(returnTemp)) {
+            double seconds = (sampledAt - this.sampledAt) / 1000.0;
+            circSlope += SMOOTHING * ((circTemp - lastCirc) / seconds - circSlope);
+            returnSlope += SMOOTHING * ((returnTemp - lastReturn) / seconds - returnSlope);
+        }
+        this.sampledAt = sampledAt;
+        lastCirc = circTemp;
+        lastReturn = returnTemp;
+    }
+
+    /** The pump was started or stopped. */
+    public void switched(long now) {
+        transitionUntil = now + transitionMillis;
+    }
+
+    /**
+     * @param marginCelsius - see ScheduleConfig.marginCelsius(), NaN without temperatures.
+     * @param timedRuleMillis - see ScheduleConfig.millisToTimedRule().
+     * @return millis to sleep until the next tick.
+     */
+    public long next(long now, double marginCelsius, long timedRuleMillis) {
+        long period;
+        if (Double.isNaN(marginCelsius)) {
+            period = DEFAULT_MILLIS;
+            reason = "no temperatures";
+        } else if (now < transitionUntil) {
+            period = minMillis;
+            reason = "switched";
+        } else {
+            // The valve rule compares the difference of the two, which moves at most this fast.
+            double rate = Math.abs(circSlope) + Math.abs(returnSlope);
+            double predicted = rate > 0 ? marginCelsius / rate * 1000 : Double.MAX_VALUE;
+            double unseen = marginCelsius / maxRate * 1000; // Crossed by then at the fastest.
+            period = (long)Math.max(minMillis, Math.min(maxMillis, Math.min(predicted / 2, unseen)));
+            reason = period == maxMillis ? "steady" : "approaching";
+            if (marginCelsius < nearCelsius && period > nearMaxMillis) {
+                period = nearMaxMillis;
+                reason = "near";
+            }
+        }
+        if (timedRuleMillis < period) {
+            period = Math.max(timedRuleMillis, 10); // Right when it applies, even if sooner than min.
+            reason = "timed rule";
+        }
+        return period;
+    }
+
+    /** @return why next() chose its last period, e.g. near, steady - for the log. */
+    public String getReason() {
+        return reason;
+    }
+
+    /** @return degrees per second, smoothed. */
+    public double getCircSlope() {
+        return circSlope;
+    }
+
+    public double getReturnSlope() {
+        return returnSlope;
+    }
+}
@@ -0,0 +1,462 @@
+package com.grouleff.pumpcontrol;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * History of temperatures, pump state and ack latencies, small enough to keep for years
+ * on the SD card.
+ *
+ * Every series is kept in three tiers, each a set of memory mapped files in one directory:
+ *
+ *  name.[epoch day].raw - every sample, in GorillaChunk slots of 1 KB. One file per day,
+ *      kept pumpcontrol.tsdb.raw.days (default 30).
+ *  name.[epoch day / 30].min - min/max/avg/count per minute. One file per 30 days,
+ *      kept pumpcontrol.tsdb.minute.days (default 60).
+ *  name.hour - min/max/avg/count per hour, kept forever. About 200 KB a year.
+ *
+ * The rollups are built as samples arrive; the bucket being filled is written in place,
+ * so a restart carries on with it. Writes only touch the page cache, and the kernel writes
+ * back dirty pages in batches.
+ *
+ * A file starts with a 16 byte header: magic, version, number of slots or buckets used.
+ * A raw slot is: first time, last time (millis), sample count, bits used, then the words
+ * of the chunk. A bucket is: start (millis), min, max, avg (floats), sample count.
+ *
+ * Thread safe - recording and queries of a series are serialized.
+ */
+public class TimeSeriesStore implements Closeable {
+    public enum Resolution { RAW, MINUTE, HOUR }
+
+    /** Receives query results. For RAW every sample is a bucket of one. */
+    public interface Visitor {
+        void bucket(long start, double min, double max, double avg, int count);
+    }
+
+    static final int MAGIC = 0x47545331; // "GTS1"
+    static final int VERSION = 1;
+    static final int FILE_HEADER = 16;
+    static final int CHUNK_WORDS = 128;
+    static final int SLOT_HEADER = 24;
+    static final int SLOT = SLOT_HEADER + CHUNK_WORDS * 8;
+    static final int BUCKET = 24;
+    private static final int USED_AT = 8;
+
+    private static final long MINUTE = 60 * 1000L;
+    private static final long HOUR = 60 * MINUTE;
+    private static final long DAY = 24 * HOUR;
+    private static final int MINUTE_FILE_DAYS = 30;
+
+    private static final String RAW_SUFFIX = ".raw";
+    private static final String MINUTE_SUFFIX = ".min";
+    private static final String HOUR_SUFFIX = ".hour";
+
+    private final File dir;
+    private final int rawDays;
+    private final int minuteDays;
+    private final Map<String, Series> series = new ConcurrentHashMap<String, Series>();
+
+    public TimeSeriesStore(File dir, int rawDays, int minuteDays) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        this.dir = dir;
+        this.rawDays = rawDays;
+        this.minuteDays = minuteDays;
+    }
+
+    /** @return the store in the directory given by -Dpumpcontrol.tsdb, or null if not configured. */
+    public static TimeSeriesStore fromProperties() {
+        String path = System.getProperty("pumpcontrol.tsdb");
+        if (path == null) {
+            return null;
+        }
+        try {
+            return new TimeSeriesStore(new File(path),
+                    Integer.getInteger("pumpcontrol.tsdb.raw.days", 30),
+                    Integer.getInteger("pumpcontrol.tsdb.minute.days", 60));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private Series series(String name) {
+        Series s = series.get(name);
+        if (s == null) {
+            if (!name.matches("[A-Za-z0-9_-]+")) {
+                throw new IllegalArgumentException("series name " + name);
+            }
+            s = new Series(name);
+            Series existing = series.putIfAbsent(name, s);
+            if (existing != null) {
+                s = existing;
+            }
+        }
+        return s;
+    }
+
+    /** Record one sample. Problems are reported, not thrown - history must not stop the control loop. */
+    public void record(String name, long millis, double value) {
+        Series s = series(name);
+        synchronized (s) {
+            try {
+                s.append(millis, value);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /** Visit the samples or buckets of a series starting in [from..to], oldest first. */
+    public void query(String name, Resolution resolution, long from, long to, Visitor visitor) throws IOException {
+        Series s = series(name);
+        synchronized (s) {
+            if (resolution == Resolution.RAW) {
+                s.queryRaw(from, to, visitor);
+            } else {
+                s.queryBuckets(resolution == Resolution.MINUTE ? MINUTE_SUFFIX : HOUR_SUFFIX, from, to, visitor);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        for (Series s : series.values()) {
+            synchronized (s) {
+                s.close();
+            }
+        }
+    }
+
+    /** A growable, memory mapped file with the common header. */
+    private static final class MappedFile {
+        private final RandomAccessFile file;
+        private MappedByteBuffer map;
+
+        MappedFile(File f, int initialSize) throws IOException {
+            file = new RandomAccessFile(f, "rw");
+            map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, Math.max(initialSize, file.length()));
+            if (map.getInt(0) == 0) {
+                map.putInt(0, MAGIC);
+                map.putInt(4, VERSION);
+            } else if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION) {
+                file.close();
+                throw new IOException("Not a time series file: " + f);
+            }
+        }
+
+        MappedByteBuffer ensure(int size) throws IOException {
+            if (size > map.capacity()) {
+                map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, 2L * map.capacity()));
+            }
+            return map;
+        }
+
+        int getUsed() {
+            return map.getInt(USED_AT);
+        }
+
+        void setUsed(int used) {
+            map.putInt(USED_AT, used);
+        }
+
+        void close() {
+            try {
+                map.force();
+                file.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /** Read only view of a file for queries. */
+    private static MappedByteBuffer mapForReading(File f) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(f, "r");
+        try {
+            MappedByteBuffer map = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            if (map.capacity() < FILE_HEADER || map.getInt(0) != MAGIC) {
+                throw new IOException("Not a time series file: " + f);
+            }
+            return map;
+        } finally {
+            file.close();
+        }
+    }
+
+    /** A rollup tier: buckets of a fixed period, aggregated as samples arrive. */
+    private final class Tier {
+        private final String name;
+        private final long period;
+        private final String suffix;
+        private final long daysPerFile; // 0 for one file.
+        private final int keepDays;
+
+        private MappedFile file;
+        private long fileKey = Long.MIN_VALUE;
+        private int slot = -1;
+        private long start = Long.MIN_VALUE;
+        private double min, max, sum;
+        private int count;
+
+        Tier(String name, long period, String suffix, long daysPerFile, int keepDays) {
+            this.name = name;
+            this.period = period;
+            this.suffix = suffix;
+            this.daysPerFile = daysPerFile;
+            this.keepDays = keepDays;
+        }
+
+        private long keyOf(long millis) {
+            return daysPerFile == 0 ? 0 : Math.floorDiv(Math.floorDiv(millis, DAY), daysPerFile);
+        }
+
+        private File fileOf(long key) {
+            return new File(dir, daysPerFile == 0 ? name + suffix : name + "." + key + suffix);
+        }
+
+        void add(long millis, double value) throws IOException {
+            long key = keyOf(millis);
+            if (key != fileKey) {
+                open(key);
+                if (daysPerFile != 0) {
+                    deleteOlder(name, suffix, key - (keepDays + daysPerFile - 1) / daysPerFile);
+                }
+            }
+            long bucket = millis - Math.floorMod(millis, period);
+            if (bucket != start) {
+                slot = file.getUsed();
+                file.setUsed(slot + 1);
+                start = bucket;
+                min = value;
+                max = value;
+                sum = 0;
+                count = 0;
+            }
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            sum += value;
+            count++;
+            MappedByteBuffer map = file.ensure(FILE_HEADER + (slot + 1) * BUCKET);
+            int at = FILE_HEADER + slot * BUCKET;
+            map.putLong(at, start);
+            map.putFloat(at + 8, (float)min);
+            map.putFloat(at + 12, (float)max);
+            map.putFloat(at + 16, (float)(sum / count));
+            map.putInt(at + 20, count);
+        }
+
+        /** Open the file for a key, and carry on with its last bucket. */
+        private void open(long key) throws IOException {
+            close();
+            file = new MappedFile(fileOf(key), FILE_HEADER + 1024 * BUCKET);
+            fileKey = key;
+            int used = file.getUsed();
+            start = Long.MIN_VALUE;
+            if (used > 0) {
+                MappedByteBuffer map = file.ensure(FILE_HEADER + used * BUCKET);
+                int at = FILE_HEADER + (used - 1) * BUCKET;
+                slot = used - 1;
+                start = map.getLong(at);
+                min = map.getFloat(at + 8);
+                max = map.getFloat(at + 12);
+                count = map.getInt(at + 20);
+                sum = map.getFloat(at + 16) * (double)count;
+            }
+        }
+
+        void close() {
+            if (file != null) {
+                file.close();
+                file = null;
+                fileKey = Long.MIN_VALUE;
+            }
+        }
+    }
+
+    private final class Series {
+        private final String name;
+        private final GorillaChunk chunk = new GorillaChunk(CHUNK_WORDS);
+        private final long[] scratch = new long[CHUNK_WORDS];
+        private MappedFile raw;
+        private long rawDay = Long.MIN_VALUE;
+        private int slot;
+        private final Tier minutes;
+        private final Tier hours;
+
+        Series(String name) {
+            this.name = name;
+            minutes = new Tier(name, MINUTE, MINUTE_SUFFIX, MINUTE_FILE_DAYS, minuteDays);
+            hours = new Tier(name, HOUR, HOUR_SUFFIX, 0, 0);
+        }
+
+        void append(long millis, double value) throws IOException {
+            long day = Math.floorDiv(millis, DAY);
+            if (day != rawDay) {
+                if (raw != null) {
+                    raw.close();
+                }
+                raw = new MappedFile(new File(dir, name + "." + day + RAW_SUFFIX), FILE_HEADER + 16 * SLOT);
+                rawDay = day;
+                newSlot();
+                deleteOlder(name, RAW_SUFFIX, day - rawDays);
+            }
+            int bitsBefore = chunk.getBits();
+            if (!chunk.append(millis, value)) {
+                newSlot();
+                bitsBefore = 0;
+                chunk.append(millis, value);
+            }
+            // Copy the header and the words touched by this sample to the file.
+            MappedByteBuffer map = raw.ensure(FILE_HEADER + (slot + 1) * SLOT);
+            int at = FILE_HEADER + slot * SLOT;
+            long[] words = chunk.getWords();
+            for (int w = bitsBefore >>> 6, last = (chunk.getBits() - 1) >>> 6; w <= last; w++) {
+                map.putLong(at + SLOT_HEADER + w * 8, words[w]);
+            }
+            map.putLong(at, chunk.getFirstTime());
+            map.putLong(at + 8, chunk.getLastTime());
+            map.putInt(at + 16, chunk.getCount());
+            map.putInt(at + 20, chunk.getBits());
+
+            minutes.add(millis, value);
+            hours.add(millis, value);
+        }
+
+        private void newSlot() throws IOException {
+            chunk.reset();
+            slot = raw.getUsed();
+            raw.ensure(FILE_HEADER + (slot + 1) * SLOT);
+            raw.setUsed(slot + 1);
+        }
+
+        void queryRaw(long from, long to, final Visitor visitor) throws IOException {
+            GorillaChunk.Visitor each = new GorillaChunk.Visitor() {
+                @Override
+                public void sample(long time, double value) {
+                    visitor.bucket(time, value, value, value, 1);
+                }
+            };
+            for (File f : files(name, RAW_SUFFIX)) {
+                long day = keyOf(f, RAW_SUFFIX);
+                if (day < Math.floorDiv(from, DAY) || day > Math.floorDiv(to, DAY)) {
+                    continue;
+                }
+                MappedByteBuffer map = mapForReading(f);
+                int used = map.getInt(USED_AT);
+                for (int i = 0; i < used && FILE_HEADER + (i + 1) * SLOT <= map.capacity(); i++) {
+                    int at = FILE_HEADER + i * SLOT;
+                    int count = map.getInt(at + 16);
+                    if (count == 0 || map.getLong(at + 8) < from || map.getLong(at) > to) {
+                        continue;
+                    }
+                    int words = (map.getInt(at + 20) + 63) >>> 6;
+                    for (int w = 0; w < words; w++) {
+                        scratch[w] = map.getLong(at + SLOT_HEADER + w * 8);
+                    }
+                    GorillaChunk.decode(scratch, count, from, to, each);
+                }
+            }
+        }
+
+        void queryBuckets(String suffix, long from, long to, Visitor visitor) throws IOException {
+            for (File f : files(name, suffix)) {
+                if (MINUTE_SUFFIX.equals(suffix)) {
+                    long key = keyOf(f, suffix);
+                    if ((key + 1) * MINUTE_FILE_DAYS * DAY <= from || key * MINUTE_FILE_DAYS * DAY > to) {
+                        continue;
+                    }
+                }
+                MappedByteBuffer map = mapForReading(f);
+                int used = map.getInt(USED_AT);
+                for (int i = 0; i < used && FILE_HEADER + (i + 1) * BUCKET <= map.capacity(); i++) {
+                    int at = FILE_HEADER + i * BUCKET;
+                    long start = map.getLong(at);
+                    if (start >= from && start <= to) {
+                        visitor.bucket(start, map.getFloat(at + 8), map.getFloat(at + 12), map.getFloat(at + 16), map.getInt(at + 20));
+                    }
+                }
+            }
+        }
+
+        void close() {
+            if (raw != null) {
+                raw.close();
+                raw = null;
+                rawDay = Long.MIN_VALUE;
+            }
+            minutes.close();
+            hours.close();
+        }
+    }
+
+    /** Files of a series in a tier, oldest first. */
+    private File[] files(final String name, final String suffix) {
+        File[] files = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File d, String n) {
+                return n.startsWith(name + ".") && n.endsWith(suffix);
+            }
+        });
+        if (files == null) {
+            return new File[0];
+        }
+        if (!HOUR_SUFFIX.equals(suffix)) {
+            Arrays.sort(files, new Comparator<File>() {
+                @Override
+                public int compare(File a, File b) {
+                    return Long.compare(keyOf(a, suffix), keyOf(b, suffix));
+                }
+            });
+        }
+        return files;
+    }
+
+    private static long keyOf(File f, String suffix) {
+        String n = f.getName();
+        return Long.parseLong(n.substring(n.indexOf('.') + 1, n.length() - suffix.length()));
+    }
+
+    /** Retention: remove the files of a tier with a key before the given one. */
+    private void deleteOlder(String name, String suffix, long key) {
+        for (File f : files(name, suffix)) {
+            if (keyOf(f, suffix) < key && !f.delete()) {
+                System.err.println("Could not delete " + f);
+            }
+        }
+    }
+
+    /**
+     * Print a series as CSV, for a quick look or a dashboard.
+     * Usage: TimeSeriesStore dir series raw|minute|hour [fromMillis [toMillis]]
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("Usage: TimeSeriesStore dir series raw|minute|hour [fromMillis [toMillis]]");
+            System.exit(1);
+        }
+        TimeSeriesStore store = new TimeSeriesStore(new File(args[0]), Integer.MAX_VALUE, Integer.MAX_VALUE);
+        long from = args.length > 3 ? Long.parseLong(args[3]) : 0;
+        long to = args.length > 4 ? Long.parseLong(args[4]) : Long.MAX_VALUE;
+        final StringBuilder sb = new StringBuilder();
+        System.out.println("start,min,max,avg,count");
+        store.query(args[1], Resolution.valueOf(args[2].toUpperCase()), from, to, new Visitor() {
+            @Override
+            public void bucket(long start, double min, double max, double avg, int count) {
+                sb.setLength(0);
+                sb.append(start).append(',').append(min).append(',').append(max).append(',').append(avg).append(',').append(count);
+                System.out.println(sb);
+            }
+        });
+    }
+}
@@ -0,0 +1,137 @@
+package com.grouleff.pumpcontrol;
+
+import java.util.ArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hashed timer wheel for the many short timeouts of telegrams in flight. Scheduling and
+ * cancelling are O(1); one thread advances the wheel a tick at a time and runs what is
+ * due. Timeouts fire at most one tick late. The thread sleeps while nothing is scheduled.
+ *
+ * Tasks run on the wheel thread and must be quick - complete a future, no I/O.
+ */
+public class TimerWheel {
+    /** 5 ms ticks, 512 slots - a turn of the wheel is 2.56 s, longer timeouts go round. */
+    public static final TimerWheel SHARED = new TimerWheel("timer-wheel", 5, 512);
+
+    public final class Timeout {
+        private final Runnable task;
+        private final long dueTick;
+        private volatile boolean cancelled;
+
+        Timeout(Runnable task, long dueTick) {
+            this.task = task;
+            this.dueTick = dueTick;
+        }
+
+        /** Cheap; the entry stays in its slot until its tick comes round. */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    /** The timeouts hashed to one tick of the wheel. */
+    private final class Slot {
+        final ArrayList<Timeout> timeouts = new ArrayList<Timeout>();
+    }
+
+    private final long tickNanos;
+    private final int mask;
+    private final Slot[] slots;
+    private final long startNanos = System.nanoTime();
+    private final ArrayList<Timeout> due = new ArrayList<Timeout>(); // Wheel thread only.
+    // Guarded by this:
+    private long tick; // Last tick processed.
+    private int pending;
+
+    public TimerWheel(String name, long tickMillis, int wheelSize) {
+        if (Integer.bitCount(wheelSize) != 1) {
+            throw new IllegalArgumentException("wheel size " + wheelSize);
+        }
+        tickNanos = tickMillis * 1000000;
+        mask = wheelSize - 1;
+        slots = new Slot[wheelSize];
+        for (int i = 0; i < wheelSize; i++) {
+            slots[i] = new Slot();
+        }
+        Thread t = new Thread(name) {
+            @Override
+            public void run() {
+                turnForever();
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private long tickAt(long nanos) {
+        return (nanos - startNanos) / tickNanos;
+    }
+
+    /** Run the task once delayMillis have passed, unless cancelled before. */
+    public synchronized Timeout schedule(Runnable task, long delayMillis) {
+        long now = System.nanoTime();
+        if (pending == 0) {
+            tick = tickAt(now); // Nothing in the wheel - skip the idle ticks.
+            notifyAll();
+        }
+        long dueTick = Math.max(tickAt(now + delayMillis * 1000000 + tickNanos - 1), tick + 1);
+        Timeout t = new Timeout(task, dueTick);
+        slots[(int)(dueTick & mask)].timeouts.add(t);
+        pending++;
+        return t;
+    }
+
+    /** @return timeouts in the wheel, including cancelled ones not yet swept. */
+    public synchronized int getPending() {
+        return pending;
+    }
+
+    private void turnForever() {
+        while (true) {
+            long next;
+            synchronized (this) {
+                while (pending == 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                next = tick + 1;
+            }
+            long wakeAt = startNanos + next * tickNanos; // Tick next has begun.
+            long left;
+            while ((left = wakeAt - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(left);
+            }
+            synchronized (this) {
+                tick = next;
+                ArrayList<Timeout> slot = slots[(int)(next & mask)].timeouts;
+                for (int i = slot.size() - 1; i >= 0; i--) {
+                    Timeout t = slot.get(i);
+                    if (t.cancelled || t.dueTick <= next) {
+                        slot.set(i, slot.get(slot.size() - 1));
+                        slot.remove(slot.size() - 1);
+                        pending--;
+                        if (!t.cancelled) {
+                            due.add(t);
+                        }
+                    }
+                }
+            }
+            for (int i = 0; i < due.size(); i++) {
+                try {
+                    due.get(i).task.run();
+                } catch (Throwable e) {
+                    e.printStackTrace();
+                }
+            }
+            due.clear();
+        }
+    }
+}
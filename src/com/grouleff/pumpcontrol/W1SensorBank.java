@@ -0,0 +1,329 @@
+package com.grouleff.pumpcontrol;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * DS18B20 temperature sensors on the 1-Wire bus, sampled in the background.
+ *
+ * Reading a w1_slave file blocks while the sensor converts (about 750 ms), so every
+ * sensor gets its own sampler thread, and the sensors convert in parallel. Each sample
+ * is published as an immutable Reading; callers only ever read the latest one, which
+ * never blocks.
+ *
+ * A w1_slave file looks like:
+ *   72 01 4b 46 7f ff 0e 10 57 : crc=57 YES
+ *   72 01 4b 46 7f ff 0e 10 57 t=23125
+ *
+ * Configured by system properties:
+ *  pumpcontrol.w1.devices - where to look for 28-* sensors (default /sys/bus/w1/devices)
+ *  pumpcontrol.w1.interval - milliseconds between samples of a sensor (default 2000), until
+ *      the owner sets its own, see setIntervalMillis()
+ *  pumpcontrol.w1.stale - milliseconds after which a value is no longer used (default 30000)
+ */
+public class W1SensorBank implements Closeable {
+    /** parse() result when the CRC line does not say YES. */
+    static final int CRC_FAILED = Integer.MIN_VALUE;
+    /** parse() result when there is no t= value. */
+    static final int UNPARSABLE = Integer.MIN_VALUE + 1;
+
+    private static final String FAMILY_DS18B20 = "28-";
+    private static final long CONVERSION_MILLIS = 750; // 12 bit resolution.
+
+    private final String devicesDir;
+    private volatile long intervalMillis; // Samplers wait on this bank, and are woken when it changes.
+    private final long staleMillis;
+    private final Map<String, Sensor> sensors = new ConcurrentHashMap<String, Sensor>();
+    private volatile boolean closed;
+
+    public W1SensorBank() {
+        this(System.getProperty("pumpcontrol.w1.devices", "/sys/bus/w1/devices"),
+             Integer.getInteger("pumpcontrol.w1.interval", 2000),
+             Integer.getInteger("pumpcontrol.w1.stale", 30000));
+    }
+
+    public W1SensorBank(String devicesDir, long intervalMillis, long staleMillis) {
+        this.devicesDir = devicesDir;
+        this.intervalMillis = intervalMillis;
+        this.staleMillis = staleMillis;
+    }
+
+    /** One sample. Temperatures are kept in milli degrees Celsius, as the kernel gives them. */
+    public static final class Reading {
+        static final Reading NONE = new Reading(0, 0, false, 0);
+
+        final int milliCelsius;
+        final long at; // System.currentTimeMillis() of the last good sample, 0 for none.
+        final boolean lastCrcOk;
+        final long crcFailures;
+
+        Reading(int milliCelsius, long at, boolean lastCrcOk, long crcFailures) {
+            this.milliCelsius = milliCelsius;
+            this.at = at;
+            this.lastCrcOk = lastCrcOk;
+            this.crcFailures = crcFailures;
+        }
+
+        public double getCelsius() {
+            return milliCelsius / 1000d;
+        }
+
+        public long getAt() {
+            return at;
+        }
+
+        /** @return false if the latest attempt failed its CRC - the value is from before that. */
+        public boolean isLastCrcOk() {
+            return lastCrcOk;
+        }
+
+        public long getCrcFailures() {
+            return crcFailures;
+        }
+    }
+
+    public final class Sensor {
+        private final String id;
+        private final String path;
+        private final byte[] buffer = new byte[400];
+        private volatile Reading latest = Reading.NONE;
+        private Thread sampler;
+        private final Metrics.Counter samples;
+
+        Sensor(String id, String path) {
+            this.id = id;
+            this.path = path;
+            this.samples = Metrics.counter("pumpcontrol_w1_samples_total", Metrics.label("sensor", id), "Sensor reads, each a conversion on the bus.");
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public Reading getLatest() {
+            return latest;
+        }
+
+        public boolean isStale() {
+            return System.currentTimeMillis() - latest.at > staleMillis;
+        }
+
+        /** @return latest temperature, or NaN if there is no fresh one. Never blocks. */
+        public double getTemperature() {
+            Reading r = latest;
+            if (System.currentTimeMillis() - r.at > staleMillis) {
+                return Double.NaN;
+            }
+            return r.getCelsius();
+        }
+
+        void sampleOnce() {
+            samples.inc();
+            int len = 0;
+            FileInputStream fis = null;
+            try {
+                fis = new FileInputStream(path);
+                int n;
+                while (len < buffer.length && (n = fis.read(buffer, len, buffer.length - len)) > 0) {
+                    len += n;
+                }
+            } catch (IOException e) {
+                System.err.println("Sensor " + id + ": " + e);
+            } finally {
+                if (fis != null) {
+                    try {
+                        fis.close();
+                    } catch (IOException e) {
+                        // Ignore
+                    }
+                }
+            }
+            int t = parse(buffer, len);
+            Reading previous = latest;
+            if (t == CRC_FAILED) {
+                latest = new Reading(previous.milliCelsius, previous.at, false, previous.crcFailures + 1);
+            } else if (t == UNPARSABLE) {
+                if (len > 0) {
+                    System.out.println("Temperature parsing problem: " + new String(buffer, 0, len));
+                }
+            } else {
+                latest = new Reading(t, System.currentTimeMillis(), true, previous.crcFailures);
+            }
+        }
+
+        void start() {
+            sampler = new Thread("w1-" + id) {
+                @Override
+                public void run() {
+                    while (!closed) {
+                        long started = System.currentTimeMillis();
+                        sampleOnce();
+                        try {
+                            synchronized (W1SensorBank.this) {
+                                long left;
+                                while (!closed && (left = intervalMillis - (System.currentTimeMillis() - started)) > 0) {
+                                    W1SensorBank.this.wait(left);
+                                }
+                            }
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            };
+            sampler.setDaemon(true);
+            sampler.start();
+        }
+    }
+
+    /**
+     * Hand written parser for w1_slave content, allocation free.
+     *
+     * @return milli degrees Celsius, or CRC_FAILED or UNPARSABLE.
+     */
+    static int parse(byte[] b, int len) {
+        int crc = indexOf(b, 0, len, 'c', 'r', 'c', '=');
+        if (crc < 0) {
+            return UNPARSABLE;
+        }
+        int eol = crc;
+        while (eol < len && b[eol] != '\n') {
+            eol++;
+        }
+        if (eol < 3 || b[eol - 3] != 'Y' || b[eol - 2] != 'E' || b[eol - 1] != 'S') {
+            return CRC_FAILED;
+        }
+        int t = indexOf(b, eol, len, 't', '=', 0, 0);
+        if (t < 0) {
+            return UNPARSABLE;
+        }
+        int i = t + 2;
+        boolean negative = i < len && b[i] == '-';
+        if (negative) {
+            i++;
+        }
+        int value = 0;
+        int digits = 0;
+        for (; i < len && b[i] >= '0' && b[i] <= '9' && digits < 7; i++, digits++) {
+            value = value * 10 + (b[i] - '0');
+        }
+        if (digits == 0) {
+            return UNPARSABLE;
+        }
+        return negative ? -value : value;
+    }
+
+    /** Index of the pattern (2 or 4 chars, 0 terminated) in b[from..len), or -1. */
+    private static int indexOf(byte[] b, int from, int len, int c0, int c1, int c2, int c3) {
+        int n = c2 == 0 ? 2 : 4;
+        for (int i = from; i + n <= len; i++) {
+            if (b[i] == c0 && b[i + 1] == c1 && (n == 2 || (b[i + 2] == c2 && b[i + 3] == c3))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** Add a sensor by its w1_slave file. Adding the same one twice gives the same sensor. */
+    public Sensor add(String path) {
+        File slave = new File(path);
+        // Sensors are named by their device directory, e.g. 28-0000072ab93b; anything else by path.
+        String id = "w1_slave".equals(slave.getName()) && slave.getParentFile() != null ? slave.getParentFile().getName() : path;
+        Sensor s = new Sensor(id, path);
+        Sensor existing = sensors.putIfAbsent(id, s);
+        return existing != null ? existing : s;
+    }
+
+    /**
+     * The w1_slave files of every DS18B20 found in the devices directory - for the log;
+     * nothing is added, as each sensor sampled costs a conversion on the bus.
+     */
+    public List<String> discover() {
+        List<String> found = new ArrayList<String>();
+        File[] dirs = new File(devicesDir).listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(FAMILY_DS18B20);
+            }
+        });
+        if (dirs != null) {
+            for (File d : dirs) {
+                found.add(new File(d, "w1_slave").getPath());
+            }
+        }
+        return found;
+    }
+
+    public Sensor get(String id) {
+        return sensors.get(id);
+    }
+
+    public Iterable<Sensor> getSensors() {
+        return sensors.values();
+    }
+
+    /**
+     * Sample every sensor this often from now on - a sampler waiting for a longer interval
+     * samples at once if the new one has passed. Kept below the stale time, and no shorter
+     * than a conversion takes.
+     */
+    public void setIntervalMillis(long millis) {
+        long interval = Math.max(CONVERSION_MILLIS, Math.min(millis, staleMillis / 2));
+        if (interval != intervalMillis) {
+            synchronized (this) {
+                intervalMillis = interval;
+                notifyAll();
+            }
+        }
+    }
+
+    public long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    /** Start a sampler for each sensor added so far. */
+    public void start() {
+        for (Sensor s : sensors.values()) {
+            s.start();
+        }
+    }
+
+    /** Wait until every sensor has a fresh value, or the timeout passes. @return true if all have one. */
+    public boolean awaitReadings(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (true) {
+            boolean all = true;
+            for (Sensor s : sensors.values()) {
+                all &= !s.isStale();
+            }
+            if (all) {
+                return true;
+            }
+            if (System.currentTimeMillis() >= deadline) {
+                return false;
+            }
+            Thread.sleep(50);
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        for (Sensor s : sensors.values()) {
+            if (s.sampler != null) {
+                s.sampler.interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.grouleff.pumpcontrol;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+/**
+ * The sliced CRC against the original byte-at-a-time one, calculateReferenceCheckValue(),
+ * for random telegrams at random lengths and offsets - every length modulo 8, so the
+ * byte-at-a-time tail after the 8 byte steps is covered - through arrays, heap and direct
+ * buffers, and the Accumulator fed in pieces, down to the receiver's residue check.
+ *
+ * Run by "ant test"; exits non-zero on the first disagreement.
+ */
+public class GeniCRCTest {
+    private static final int ROUNDS = 100000;
+
+    public static void main(String[] args) {
+        long seed = args.length > 0 ? Long.parseLong(args[0]) : System.nanoTime();
+        Random random = new Random(seed);
+        try {
+            for (int n = 0; n < ROUNDS; n++) {
+                check(random, n);
+            }
+        } catch (AssertionError e) {
+            System.err.println("GeniCRCTest failed, seed " + seed + ": " + e.getMessage());
+            System.exit(1);
+        }
+        System.out.println("GeniCRCTest: " + ROUNDS + " telegrams ok");
+    }
+
+    private static void check(Random random, int n) {
+        byte[] raw = new byte[random.nextInt(300) + 3];
+        random.nextBytes(raw);
+        int start = random.nextInt(raw.length);
+        int end = start + random.nextInt(raw.length - start + 1);
+        int expected = GeniCRC.calculateReferenceCheckValue(raw, start, end);
+
+        same(expected, GeniCRC.calculateTransmitterCheckValue(raw, start, end), "array", n, start, end);
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(raw.length);
+        direct.put(raw);
+        if (random.nextBoolean()) {
+            direct.order(ByteOrder.LITTLE_ENDIAN); // Read a long at a time - must not matter.
+        }
+        same(expected, GeniCRC.calculateTransmitterCheckValue(direct, start, end), "direct buffer", n, start, end);
+
+        if (start > 0) {
+            ByteBuffer heap = ByteBuffer.wrap(raw, 1, raw.length - 1).slice(); // Non-zero array offset.
+            same(expected, GeniCRC.calculateTransmitterCheckValue(heap, start - 1, end - 1), "heap buffer", n, start, end);
+        }
+
+        GeniCRC.Accumulator accumulator = new GeniCRC.Accumulator();
+        int split = start + random.nextInt(end - start + 1);
+        for (int i = start; i < split && i < start + 3; i++) {
+            accumulator.update(raw[i]); // A few single bytes, as a framer feeds them.
+        }
+        accumulator.update(raw, Math.min(split, start + 3), split);
+        direct.limit(end);
+        direct.position(split);
+        accumulator.update(direct);
+        same(expected, accumulator.getCheckValue(), "accumulator", n, start, end);
+        if (accumulator.getCount() != end - start) {
+            throw new AssertionError("accumulator counted " + accumulator.getCount() + " of " + (end - start) + " bytes");
+        }
+
+        if (end + 2 <= raw.length) {
+            // The residue path: telegram and its CRC-Value fed through, as a receiver does.
+            GeniCRC.appendTransmitterCheckValue(raw, start, end);
+            if (!GeniCRC.isReceivedCheckValueValid(raw, start, end, (raw[end] & 0xff) << 8 | raw[end + 1] & 0xff)) {
+                throw new AssertionError("appended check value not valid, round " + n);
+            }
+            accumulator.reset();
+            accumulator.update(raw, start, end + 2);
+            if (!accumulator.isReceivedTelegramValid()) {
+                throw new AssertionError("sound telegram rejected, round " + n + ", bytes " + start + ".." + end);
+            }
+            int flip = start + random.nextInt(end + 2 - start);
+            raw[flip] ^= 1 << random.nextInt(8);
+            accumulator.reset();
+            accumulator.update(raw, start, end + 2);
+            if (accumulator.isReceivedTelegramValid()) {
+                throw new AssertionError("telegram with a bit flipped at " + flip + " accepted, round " + n);
+            }
+        }
+    }
+
+    private static void same(int expected, int actual, String what, int n, int start, int end) {
+        if (expected != actual) {
+            throw new AssertionError(what + ": " + Integer.toHexString(actual) + " instead of " + Integer.toHexString(expected)
+                                     + ", round " + n + ", bytes " + start + ".." + end);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.grouleff.pumpcontrol;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * The proxy's forward path takes its packets from the pool once warm: telegrams from a
+ * client socket through NioListener to the in-process pump simulator and back, with the
+ * link writing them and PacketLog logging them as in production. The JVM's per-thread
+ * allocation counter is read for the two proxy threads - the event loop and the dongle
+ * worker - around a loop of round trips. Fails if a telegram misses the pool, or if a
+ * round trip allocates a packet's buffer on top of what is left: the link's future and
+ * timer for the request, and the selector's key iterator - some 300 bytes.
+ *
+ * See also PacketPoolBenchmark, for the cost per hop. Run by "ant test"; exits non-zero
+ * on failure.
+ */
+public class PacketPoolTest {
+    private static final int SIZE = 40;
+    private static final int WARMUP = 20000;
+    private static final int ROUNDS = 20000;
+    private static final long PER_ROUND = 512; // Bytes, see above.
+    private static final PrintStream console = System.out;
+    private static final PrintStream errors = System.err;
+
+    public static void main(String[] args) throws Exception {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)
+            || !((com.sun.management.ThreadMXBean)threads).isThreadAllocatedMemorySupported()) {
+            console.println("PacketPoolTest: skipped, this JVM does not count allocations per thread");
+            return;
+        }
+        com.sun.management.ThreadMXBean counter = (com.sun.management.ThreadMXBean)threads;
+        counter.setThreadAllocatedMemoryEnabled(true);
+        TelegramFixtures.silenceConsole(); // Logged as always, printed nowhere.
+
+        SimulatedLink link = new SimulatedLink(new MI301Simulator(0, 0, 0, 0, 0, 1));
+        link.setPumpAddress(255, new Packet());
+        MI301DongleProxy.addLink(link);
+        ServerSocket free = new ServerSocket(0);
+        int port = free.getLocalPort();
+        free.close();
+        final NioListener listener = new NioListener(port);
+        Thread proxy = new Thread("proxy") {
+            @Override
+            public void run() {
+                listener.listenForever();
+            }
+        };
+        proxy.setDaemon(true);
+        proxy.start();
+
+        Socket socket = new Socket("localhost", port);
+        socket.setTcpNoDelay(true);
+        socket.setSoTimeout(5000);
+        byte[] request = TelegramFixtures.telegram(SIZE);
+        TelegramFramer framer = new TelegramFramer();
+        Packet reply = new Packet();
+        InputStream in = socket.getInputStream();
+        OutputStream out = socket.getOutputStream();
+
+        PreEncodedTelegram.setAddress(255).writeTo(out, 1); // The proxy resets the dongle on first use, as a client would.
+        if (!framer.receive(in, reply, 5000)) {
+            fail("set address not answered");
+        }
+        roundTrips(request, out, framer, in, reply, WARMUP); // Fills the pool, and lets the JIT settle.
+        long[] proxyThreads = {proxy.getId(), threadNamed("dongle-worker").getId()};
+        long missesBefore = PacketPool.SHARED.getMisses();
+        long before = allocated(counter, proxyThreads);
+        roundTrips(request, out, framer, in, reply, ROUNDS);
+        long allocated = allocated(counter, proxyThreads) - before;
+        socket.close();
+
+        if (PacketPool.SHARED.getMisses() != missesBefore) {
+            fail(PacketPool.SHARED.getMisses() - missesBefore + " acquires missed the pool");
+        }
+        if (allocated > PER_ROUND * ROUNDS) {
+            fail(allocated + " bytes allocated in " + ROUNDS + " round trips, " + allocated / ROUNDS + " per round trip");
+        }
+        console.println("PacketPoolTest: " + allocated / ROUNDS + " bytes allocated per round trip, no pool misses ok");
+    }
+
+    private static void roundTrips(byte[] request, OutputStream out, TelegramFramer framer, InputStream in, Packet reply, int rounds)
+            throws Exception {
+        for (int i = 0; i < rounds; i++) {
+            out.write(request);
+            if (!framer.receive(in, reply, 5000) || reply.getSeqnoAndSrcField() != request[3]) {
+                fail("telegram " + i + " not answered");
+            }
+        }
+    }
+
+    private static long allocated(com.sun.management.ThreadMXBean counter, long[] ids) {
+        long sum = 0;
+        for (long bytes : counter.getThreadAllocatedBytes(ids)) {
+            sum += bytes;
+        }
+        return sum;
+    }
+
+    private static Thread threadNamed(String name) {
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.getName().equals(name)) {
+                return t;
+            }
+        }
+        throw new IllegalStateException("no thread " + name);
+    }
+
+    private static void fail(String message) {
+        errors.println("PacketPoolTest failed: " + message);
+        System.exit(1);
+    }
+}
@@ -0,0 +1,66 @@
+package com.grouleff.pumpcontrol;
+
+/**
+ * A fresh value comes from memory even while another item's fetch waits for the link:
+ * the scheduler holds the lease, a lookup of an item not yet read waits for it inside
+ * the fetch, and a lookup of an item read a moment ago must answer right away, not
+ * after the fetch. Against the in-process pump simulator.
+ *
+ * Run by "ant test"; exits non-zero on failure.
+ */
+public class PumpGatewayTest {
+    private static final long HIT_MILLIS = 200; // Far below the lease wait of a blocked fetch.
+
+    public static void main(String[] args) throws Exception {
+        MI301Simulator simulator = new MI301Simulator(9600, 20000, 0, 0, 0, 1);
+        simulator.setItem(2, 32, 120);
+        simulator.setItem(2, 33, 5);
+        SimulatedLink link = new SimulatedLink(simulator);
+        link.setPumpAddress(255, new Packet());
+        final PumpGateway gateway = new PumpGateway(link, 255, 60000);
+
+        if (gateway.get(2, 32, 60000).value != 120) {
+            fail("2/32 not read");
+        }
+
+        LinkArbiter.Lease control = link.getArbiter().newLease("control", LinkArbiter.PRIORITY_CONTROL);
+        if (!control.acquire(1000)) {
+            fail("no lease for the scheduler");
+        }
+        final int[] missed = {-1};
+        Thread miss = new Thread("miss") {
+            @Override
+            public void run() {
+                try {
+                    missed[0] = gateway.get(2, 33, 60000).value; // Fetches, and waits for the lease.
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        miss.start();
+        Thread.sleep(300); // Well into the fetch's wait for the lease.
+
+        long began = System.nanoTime();
+        int hit = gateway.get(2, 32, 60000).value;
+        long hitMillis = (System.nanoTime() - began) / 1000000;
+        control.release();
+        miss.join(5000);
+
+        if (hit != 120) {
+            fail("hit answered " + hit);
+        }
+        if (hitMillis > HIT_MILLIS) {
+            fail("hit took " + hitMillis + " ms, waiting behind a fetch of another item");
+        }
+        if (missed[0] != 5) {
+            fail("2/33 answered " + missed[0] + " once the lease was free");
+        }
+        System.out.println("PumpGatewayTest: hit in " + hitMillis + " ms during a blocked fetch ok");
+    }
+
+    private static void fail(String message) {
+        System.err.println("PumpGatewayTest failed: " + message);
+        System.exit(1);
+    }
+}